@@ -67,6 +67,8 @@ var colors = [
     'yellow'
 ];
 var statusIntervalHandle;
+var statusPolling = false; //True while a status request is outstanding or about to be retried
+var statusRetryDelay = 1000; //Milliseconds to wait before asking for status again after an error
 var endedGame = false;
 
 //Adds a clone function to the array prototype that deep-copies the array
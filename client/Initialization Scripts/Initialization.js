@@ -163,7 +163,7 @@ var initMap = function (geography) {
             $('#mainMenu').hide();
             panZoom.enable();
             drawMileposts();
-            statusIntervalHandle = setInterval('statusGet()', 250);
+            startStatusPolling();
         },
         error: function (a, b, c) {
             processAjaxErrors(a, b, c);
@@ -195,7 +195,7 @@ var enterGame = function () {
     else {
         // join/resume: we'll make the map once we have gotten a status message 
         // and know the geography
-        statusIntervalHandle = setInterval('statusGet()', 250);
+        startStatusPolling();
     }
 }
 
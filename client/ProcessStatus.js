@@ -70,4 +70,41 @@ var processStatus = function (data) {
             $('#gameDisplay').show();
         }
     }
+};
+
+//Turns a status delta from the server back into a full status message, by applying it to the last status processed
+var applyStatusDelta = function (data) {
+    if (!data.delta)
+        return data;
+    var players = lastStatusMessage.players.slice();
+    for (var i = 0; i < data.players.length; i++) {
+        var changed = data.players[i];
+        var old = findPid(players, changed.pid);
+        changed.rail = old ? old.rail : {};
+        if (old)
+            players[players.indexOf(old)] = changed;
+        else
+            players.push(changed);
+    }
+    for (var trackPid in data.track) {
+        var rail = findPid(players, trackPid).rail;
+        var built = data.track[trackPid];
+        for (var j = 0; j + 1 < built.length; j += 2) {
+            addRailEdge(rail, built[j], built[j + 1]);
+            addRailEdge(rail, built[j + 1], built[j]);
+        }
+    }
+    data.players = players;
+    delete data.track;
+    delete data.since;
+    delete data.delta;
+    return data;
+};
+
+//Adds one direction of a built edge to a rail map, keyed the way the server serializes mileposts
+var addRailEdge = function (rail, from, to) {
+    var key = '{"x":' + from.x + ',"y":' + from.y + '}';
+    if (!rail[key])
+        rail[key] = [];
+    rail[key].push({ x: to.x, y: to.y });
 };
\ No newline at end of file
@@ -271,23 +271,41 @@ var newGame = function (color, handle, gameGeo, gameName, handSize, startingMone
     });
 };
 
-//Gets a status response from the server
+//Gets a status response from the server. The server holds the request until the game
+//has moved past the last transaction we processed (long polling), so as soon as one
+//response comes in we ask for the next.
 var statusGet = function () {
-    //setTimeout(200, statusGet);
+    if (endedGame) {
+        statusPolling = false;
+        return;
+    }
+    statusPolling = true;
 
     //Request status from server
     //requestData = gid ? {messageType:'statusUpdate', pid:pid, gid:gid} : {messageType:'statusUpdate', pid:pid};
     var requestData = { messageType: 'status', gid: gid, pid: pid };
+    if (lastStatus)
+        requestData.sinceTransaction = lastStatus;
+    if (lastStatus && lastStatusMessage && lastStatusMessage.transaction == lastStatus)
+        requestData.delta = true;
     $.ajax({
         type: "GET",
         url: server,
         data: JSON.stringify(requestData),
         dataType: 'json',
         success: function (responseData) {
-            processStatus(responseData);
+            processStatus(applyStatusDelta(responseData));
+            statusGet();
         },
         error: function (xhr, textStatus, errorThrown) {
             processAjaxErrors(xhr, textStatus, errorThrown);
+            setTimeout(statusGet, statusRetryDelay);
         }
     });
+};
+
+//Start polling for status, unless we already are
+var startStatusPolling = function () {
+    if (!statusPolling)
+        statusGet();
 };
\ No newline at end of file
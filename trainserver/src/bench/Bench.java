@@ -0,0 +1,137 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/** A small benchmark harness in the manner of JMH, for running without a build tool. Each
+ * benchmark is warmed up until the JIT has settled, then timed over several iterations; the
+ * score is the mean time per operation, with the spread across iterations.
+ *
+ * What each operation returns is checked against a field the JIT can't see through, so the
+ * work can't be optimized away. Unlike JMH, everything runs in one JVM, so a benchmark can be
+ * skewed by the profile the ones before it left behind -- run a single benchmark (pass a
+ * pattern) when comparing numbers closely.
+ *
+ * Properties: "bench.warmup" and "bench.time" are milliseconds of warmup and of each
+ * iteration, "bench.iterations" the number of iterations.
+ */
+public final class Bench {
+
+	/** One operation of a benchmark */
+	public interface Op {
+		Object run() throws Exception;
+	}
+
+	/** What a benchmark scored */
+	public static final class Result {
+		public final String name;
+		public final double nanosPerOp;		// mean over the iterations
+		public final double stdev;			// across the iterations
+		public final int iterations;
+
+		Result(String name, double nanosPerOp, double stdev, int iterations) {
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.stdev = stdev;
+			this.iterations = iterations;
+		}
+	}
+
+	private static final class Benchmark {
+		final String name;
+		final Op op;
+
+		Benchmark(String name, Op op) {
+			this.name = name;
+			this.op = op;
+		}
+	}
+
+	private final long warmupNanos = Long.getLong("bench.warmup", 2000) * 1000000;
+	private final long iterationNanos = Long.getLong("bench.time", 1000) * 1000000;
+	private final int iterations = Integer.getInteger("bench.iterations", 5);
+	private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	private volatile Object never = new Object();
+	private volatile int sink;
+
+	public void add(String name, Op op) {
+		benchmarks.add(new Benchmark(name, op));
+	}
+
+	/** Runs the benchmarks whose names match any of the patterns (all of them, if there are
+	 * none), printing each score as it's done
+	 */
+	public List<Result> run(PrintStream out, String... patterns) throws Exception {
+		List<Result> results = new ArrayList<Result>();
+		out.println(String.format("%-40s %5s %14s %12s  %s", "Benchmark", "Cnt", "Score", "Stdev", "Units"));
+		for (Benchmark benchmark: benchmarks) {
+			if (!matches(benchmark.name, patterns))
+				continue;
+			System.gc();
+			Result result = measure(benchmark);
+			results.add(result);
+			out.println(String.format("%-40s %5d %14.3f %12.3f  us/op", result.name, result.iterations,
+					result.nanosPerOp / 1000, result.stdev / 1000));
+		}
+		return results;
+	}
+
+	private static boolean matches(String name, String[] patterns) {
+		if (patterns.length == 0)
+			return true;
+		for (String pattern: patterns)
+			if (Pattern.compile(pattern).matcher(name).find())
+				return true;
+		return false;
+	}
+
+	private Result measure(Benchmark benchmark) throws Exception {
+		// Warm up, and find how many operations take about a millisecond, so the clock
+		// is read once a batch rather than once an operation
+		int batch = 1;
+		long warmupEnd = System.nanoTime() + warmupNanos;
+		while (System.nanoTime() < warmupEnd) {
+			long start = System.nanoTime();
+			runBatch(benchmark.op, batch);
+			if (System.nanoTime() - start < 1000000 && batch < 1 << 20)
+				batch *= 2;
+		}
+
+		double[] scores = new double[iterations];
+		for (int i = 0; i < iterations; ++i) {
+			long ops = 0;
+			long start = System.nanoTime();
+			long elapsed;
+			do {
+				runBatch(benchmark.op, batch);
+				ops += batch;
+				elapsed = System.nanoTime() - start;
+			} while (elapsed < iterationNanos);
+			scores[i] = (double) elapsed / ops;
+		}
+
+		double mean = 0;
+		for (double score: scores)
+			mean += score;
+		mean /= iterations;
+		double variance = 0;
+		for (double score: scores)
+			variance += (score - mean) * (score - mean);
+		double stdev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		return new Result(benchmark.name, mean, stdev, iterations);
+	}
+
+	/** Compares each result with an object it can't be, as JMH's Blackhole does, so the
+	 * result has to be made but nothing more is done with it
+	 */
+	private void runBatch(Op op, int batch) throws Exception {
+		Object never = this.never;
+		int matched = 0;
+		for (int i = 0; i < batch; ++i)
+			if (op.run() == never)
+				++matched;
+		sink += matched;
+	}
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import map.Milepost;
+import map.MilepostId;
+import map.RoutePlanner;
+import map.TrainMap;
+import train.Game;
+import train.GameData;
+import train.GameException;
+import train.Geography;
+import train.RequestDecoder;
+import train.StatusCache;
+import train.TrainServer;
+
+/** Benchmarks of the engine's hot paths: checking track, moving trains and undoing them,
+ * building status, loading maps and decoding requests.
+ *
+ * Run with the server's classpath:
+ * 	java -cp trains.jar:... bench.EngineBenchmarks [pattern ...]
+ * where each pattern picks the benchmarks whose names contain a match (all of them, if none
+ * are given). See Bench for the properties that set how long each one runs.
+ */
+public class EngineBenchmarks {
+
+	public static void main(String[] args) throws Exception {
+		// The game logs every action; keep that out of the numbers
+		if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null)
+			System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+		Bench bench = new Bench();
+		add(bench);
+		bench.run(System.out, args);
+	}
+
+	static void add(Bench bench) throws Exception {
+		// Track: pricing a long build against a late game's rail
+		String late = Fixtures.lateGame();
+		Game lateGame = TrainServer.getGame(late);
+		String builder = lateGame.getActivePid();
+		TrainMap map = lateGame.gameData.getMap();
+		MilepostId from = lateGame.getGlobalRail().getRail(builder).getRail().keySet().iterator().next();
+		RoutePlanner.Route route = null;
+		for (Milepost city: map.getMajorCities()) {		// the longest way from their track to a major city
+			RoutePlanner.Route to;
+			try {
+				to = lateGame.planBuild(builder, from, new MilepostId[] { city.id });
+			} catch (GameException e) {
+				continue;		// over water
+			}
+			if (route == null || to.mileposts.size() > route.mileposts.size())
+				route = to;
+		}
+		Milepost[] build = Fixtures.milepost(map, route.mileposts.toArray(new MilepostId[route.mileposts.size()]));
+		System.out.println(String.format("late game: %d turns, checkBuild over %d mileposts, status %d bytes",
+				lateGame.getTurns(), build.length, TrainServer.status(statusRequest(late)).length()));
+		bench.add("GlobalRail.checkBuild", () -> lateGame.getGlobalRail().checkBuild(builder, build));
+
+		// Moves, and undoing them. Each move is undone again so every operation starts from
+		// the same state.
+		String moving = Fixtures.trainOnTrack();
+		Game game = TrainServer.getGame(moving);
+		bench.add("Game.testMoveTrain", () -> {
+			game.testMoveTrain("p0", 0, Fixtures.MOVE);
+			return game;
+		});
+		bench.add("Game.moveTrain+undo", () -> {
+			game.moveTrain("p0", 0, Fixtures.MOVE);
+			game.undo();
+			return game;
+		});
+		bench.add("Game.undo+redo", () -> {
+			if (game.getPlayer("p0").getTrains()[0].getLocation().id.equals(Fixtures.TRACK[0]))
+				game.moveTrain("p0", 0, Fixtures.MOVE);		// something to undo, the first time
+			game.undo();
+			game.redo();
+			return game;
+		});
+
+		// Status: built and serialized every time (dropped from the cache first), and from
+		// the cache
+		String early = Fixtures.startedGame("africa", 2, 70);
+		StatusCache cache = TrainServer.getStatusCache();
+		String earlyRequest = statusRequest(early);
+		String lateRequest = statusRequest(late);
+		bench.add("TrainServer.status.early", () -> {
+			cache.remove(early);
+			return TrainServer.status(earlyRequest);
+		});
+		bench.add("TrainServer.status.late", () -> {
+			cache.remove(late);
+			return TrainServer.status(lateRequest);
+		});
+		bench.add("TrainServer.status.late.cached", () -> TrainServer.status(lateRequest));
+
+		// Maps: reading each geography's files into a new copy
+		for (String geography: GameData.getGeographies()) {
+			try {
+				Geography.readUnshared(geography);
+			} catch (GameException e) {
+				System.out.println(String.format("skipping %s, it doesn't load: %s", geography, e.getMessage()));
+				continue;
+			}
+			bench.add("Geography.read." + geography, () -> Geography.readUnshared(geography).getMap());
+		}
+
+		// Requests as they come off the wire
+		byte[] buildTrack = String.format("{\"messageType\":\"buildTrack\", \"gid\":\"%s\", \"pid\":\"p0\", "
+				+ "\"mileposts\":[{\"x\":34,\"y\":56},{\"x\":33,\"y\":55},{\"x\":33,\"y\":54},{\"x\":32,\"y\":53},"
+				+ "{\"x\":31,\"y\":53},{\"x\":31,\"y\":52},{\"x\":30,\"y\":52},{\"x\":29,\"y\":52}]}", moving)
+				.getBytes(StandardCharsets.UTF_8);
+		bench.add("RequestDecoder.decode.buildTrack", () -> {
+			ByteBuf content = Unpooled.wrappedBuffer(buildTrack);
+			return RequestDecoder.decode(content);
+		});
+		String statusQuery = "/?" + earlyRequest.replace("\"", "%22").replace(" ", "%20");
+		bench.add("RequestDecoder.decodeQuery.status", () -> RequestDecoder.decodeQuery(statusQuery));
+	}
+
+	private static String statusRequest(String gid) {
+		return String.format("{\"messageType\":\"status\", \"gid\":\"%s\"}", gid);
+	}
+}
@@ -0,0 +1,119 @@
+package bench;
+
+import java.util.List;
+import java.util.Set;
+
+import map.Milepost;
+import map.MilepostId;
+import map.RoutePlanner;
+import map.TrainMap;
+import player.Player;
+import reference.Card;
+import reference.Trip;
+import train.Game;
+import train.GameException;
+import train.TrainServer;
+
+/** Games to benchmark against. Every fixture deals its games from a fixed seed and plays
+ * them the same way, so a run measures the same states as the last one.
+ */
+final class Fixtures {
+	static final long SEED = 20140614L;
+	static final String[] COLORS = { "blue", "green", "red", "black", "purple", "yellow" };
+
+	/** Track from a major city, and the move a train placed at its start can make along it */
+	static final MilepostId[] TRACK = {
+		new MilepostId(34,56), new MilepostId(33,55), new MilepostId(33,54), new MilepostId(32,53),
+		new MilepostId(31,53), new MilepostId(31,52), new MilepostId(30,52), new MilepostId(29,52),
+		new MilepostId(28,52), new MilepostId(27,52), new MilepostId(26,51), new MilepostId(26,50),
+		new MilepostId(25,49), new MilepostId(25,48), new MilepostId(24,47), new MilepostId(25,46),
+	};
+	static final MilepostId[] MOVE = java.util.Arrays.copyOfRange(TRACK, 1, 13);
+
+	private Fixtures() {}
+
+	/** A new game with the players in it, started
+	 * @return the gid
+	 */
+	static String startedGame(String geography, int players, int startingMoney) throws GameException {
+		TrainServer.seedGames(SEED);
+		String response = TrainServer.newGame(String.format(
+				"{\"messageType\":\"newGame\", \"pid\":\"p0\", \"color\":\"%s\", \"gameType\":\"%s\", \"name\":\"bench\", "
+				+ "\"ruleSet\":{\"handSize\":4, \"startingMoney\":%d, \"numTrains\":1}}",
+				COLORS[0], geography, startingMoney));
+		String gid = response.substring(8, 16);
+		for (int i = 1; i < players; ++i)
+			TrainServer.joinGame(String.format("{\"messageType\":\"joinGame\", \"gid\":\"%s\", \"pid\":\"p%d\", \"color\":\"%s\"}",
+					gid, i, COLORS[i]));
+		Game game = TrainServer.getGame(gid);
+		for (Player p: game.getPlayers())
+			game.startGame(p.name, true);
+		return gid;
+	}
+
+	/** One player with a train sitting at the start of TRACK, past the building turns, so it
+	 * can move along MOVE
+	 */
+	static String trainOnTrack() throws GameException {
+		String gid = startedGame("africa", 1, 70);
+		Game game = TrainServer.getGame(gid);
+		game.buildTrack("p0", TRACK);
+		while (game.getTurns() < 3)
+			game.endTurn(game.getActivePid());
+		game.placeTrain("p0", 0, TRACK[0]);
+		return gid;
+	}
+
+	/** Four players who have each spent a couple of dozen turns building toward the cities on
+	 * their cards, with trains placed: the size of status a game has late on
+	 */
+	static String lateGame() throws GameException {
+		String gid = startedGame("africa", 4, 1000);
+		Game game = TrainServer.getGame(gid);
+		for (int turn = 0; turn < 100; ++turn) {
+			String pid = game.getActivePid();
+			buildToward(game, pid, 20);
+			Player p = game.getPlayer(pid);
+			Set<MilepostId> rail = game.getGlobalRail().getRail(pid).getRail().keySet();
+			if (game.getTurns() >= 3 && p.getTrains()[0].getLocation() == null && !rail.isEmpty())
+				game.placeTrain(pid, 0, rail.iterator().next());
+			game.endTurn(pid);
+		}
+		return gid;
+	}
+
+	/** Builds as much of the cheapest route to a city on the player's cards as the money
+	 * allows, trying the cities in the order they're on the cards
+	 */
+	private static void buildToward(Game game, String pid, int budget) throws GameException {
+		TrainMap map = game.gameData.getMap();
+		for (Card card: game.getPlayer(pid).getCards())
+			for (Trip trip: card.trips) {
+				MilepostId city = map.getCityLocation(trip.dest);
+				if (city == null || game.getGlobalRail().getRail(pid).getRail().containsKey(city))
+					continue;
+				RoutePlanner.Route route;
+				try {
+					route = game.planBuild(pid, null, new MilepostId[] { city });
+				} catch (GameException e) {
+					continue;		// can't get there
+				}
+				List<MilepostId> path = route.mileposts;
+				for (int end = path.size(); end >= 2; --end) {
+					MilepostId[] build = path.subList(0, end).toArray(new MilepostId[end]);
+					int cost = game.getGlobalRail().checkBuild(pid, milepost(map, build));
+					if (cost >= 0 && cost <= budget) {
+						game.buildTrack(pid, build);
+						return;
+					}
+				}
+			}
+	}
+
+	static Milepost[] milepost(TrainMap map, MilepostId[] ids) {
+		Milepost[] mps = new Milepost[ids.length];
+		for (int i = 0; i < ids.length; ++i)
+			mps[i] = map.getMilepost(ids[i]);
+		return mps;
+	}
+}
@@ -0,0 +1,368 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import train.Metrics;
+
+/** Plays many games at once against a running server, over http, the way the browser client
+ * does: players create and join games, start them, build, place and move their trains, and
+ * each keeps a status request open (long polling) the whole time. Games that finish are
+ * replaced by new ones until the run is over. At the end it reports throughput, latency
+ * percentiles and errors for each message type, and the server's dispatcher queue as read
+ * from its /metrics.
+ *
+ * Every player sends from this machine, so start the server with -DclientRate=0 to turn off
+ * its per-address rate limit, or the refusals will be the server protecting itself from us.
+ *
+ * Properties (all optional):
+ * 	load.url		server, default http://127.0.0.1:8080/
+ * 	load.games		games played at once, default 100
+ * 	load.players	players in each game, default 4
+ * 	load.duration	seconds to run, default 60
+ * 	load.think		milliseconds a player waits between actions, on average, default 1000
+ * 	load.turns		turns after which a game is ended, default 30
+ * 	load.geography	map to play on, default africa
+ * 	load.threads	client event loop threads, default the number of cores
+ * 	load.seed		seeds the players' choices, default 1
+ */
+public class LoadGenerator {
+	/** Long polls are held by the server until the game changes, so their latency is how
+	 * long the other players took; they're reported apart from status requests answered
+	 * right away
+	 */
+	static final String STATUS_POLL = "status(poll)";
+
+	final URI server;
+	final int games = Integer.getInteger("load.games", 100);
+	final int players = Integer.getInteger("load.players", 4);
+	final long durationMillis = Long.getLong("load.duration", 60) * 1000;
+	final long thinkMillis = Long.getLong("load.think", 1000);
+	final int turns = Integer.getInteger("load.turns", 30);
+	final String geography = System.getProperty("load.geography", "africa");
+	final long seed = Long.getLong("load.seed", 1);
+
+	private final EventLoopGroup group = new NioEventLoopGroup(
+			Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors()));
+	private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+	private final AtomicInteger gamesStarted = new AtomicInteger();
+	final AtomicInteger gamesFinished = new AtomicInteger();
+	private final AtomicLong maxQueued = new AtomicLong();
+	private volatile long lastQueued;
+	private volatile long deadline;
+
+	/** Requests of one message type */
+	static final class Stats {
+		final Metrics.Histogram latency = new Metrics.Histogram();
+		final LongAdder ok = new LongAdder();
+		final LongAdder rejected = new LongAdder();		// 400: the game said no
+		final LongAdder refused = new LongAdder();		// 429 or 503: the server was too busy
+		final LongAdder failed = new LongAdder();		// any other status, or no response at all
+	}
+
+	/** What came back for a request */
+	interface Response {
+		/** @param status	http status, or 0 if the request failed without one */
+		void done(int status, String body);
+	}
+
+	/** A keep-alive connection that carries one request at a time, as a browser's does. It
+	 * reconnects when the server has closed it, so the handler goes in each new channel.
+	 */
+	@ChannelHandler.Sharable
+	final class Connection extends SimpleChannelInboundHandler<FullHttpResponse> {
+		private final EventLoop loop;
+		private Channel channel;
+		private Response pending;
+		private String pendingType;
+		private long sent;
+
+		Connection(EventLoop loop) {
+			this.loop = loop;
+		}
+
+		/** Sends the message, a json object, as a GET (status) or a POST (everything else) */
+		void send(String messageType, String json, boolean get, Response response) {
+			String type = messageType.equals("status") && json.contains("sinceTransaction") ? STATUS_POLL : messageType;
+			FullHttpRequest request;
+			if (get)
+				request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, server.getPath() + "?" + encode(json));
+			else {
+				byte[] content = json.getBytes(StandardCharsets.UTF_8);
+				request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, server.getPath(),
+						Unpooled.wrappedBuffer(content));
+				request.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
+				request.headers().set(HttpHeaders.Names.CONTENT_LENGTH, content.length);
+			}
+			send(type, request, response);
+		}
+
+		/** Gets a page other than the game's, such as the metrics */
+		void get(String type, String path, Response response) {
+			send(type, new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path), response);
+		}
+
+		private void send(String type, FullHttpRequest request, Response response) {
+			request.headers().set(HttpHeaders.Names.HOST, server.getHost());
+			request.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, HttpHeaders.Values.GZIP);
+			loop.execute(() -> {
+				pending = response;
+				pendingType = type;
+				sent = System.nanoTime();
+				if (channel != null && channel.isActive()) {
+					channel.writeAndFlush(request);
+					return;
+				}
+				Bootstrap bootstrap = new Bootstrap().group(loop).channel(NioSocketChannel.class)
+					.option(ChannelOption.TCP_NODELAY, true)
+					.handler(new ChannelInitializer<SocketChannel>() {
+						@Override
+						protected void initChannel(SocketChannel ch) {
+							ch.pipeline().addLast(new HttpClientCodec(),
+									new HttpObjectAggregator(16 * 1024 * 1024), Connection.this);
+						}
+					});
+				ChannelFuture connect = bootstrap.connect(server.getHost(), port());
+				channel = connect.channel();
+				connect.addListener(future -> {
+					if (future.isSuccess())
+						channel.writeAndFlush(request);
+					else {
+						request.release();
+						finish(0, null);
+					}
+				});
+			});
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+			finish(response.getStatus().code(), content(response));
+		}
+
+		/** The response's content, unzipped if it came compressed. Netty's decompressor needs
+		 * jzlib, which the server doesn't ship with, so this uses the JDK's.
+		 */
+		private String content(FullHttpResponse response) {
+			if (!HttpHeaders.Values.GZIP.equalsIgnoreCase(response.headers().get(HttpHeaders.Names.CONTENT_ENCODING)))
+				return response.content().toString(StandardCharsets.UTF_8);
+			try (Reader in = new InputStreamReader(new GZIPInputStream(new ByteBufInputStream(response.content())),
+					StandardCharsets.UTF_8)) {
+				StringBuilder content = new StringBuilder(response.content().readableBytes() * 8);
+				char[] buffer = new char[8192];
+				for (int n; (n = in.read(buffer)) != -1; )
+					content.append(buffer, 0, n);
+				return content.toString();
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) {
+			if (ctx.channel() != channel)
+				return;		// one closed earlier
+			channel = null;
+			finish(0, null);		// closed with a request outstanding
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			ctx.close();
+		}
+
+		private void finish(int status, String body) {
+			Response response = pending;
+			if (response == null)
+				return;
+			pending = null;
+			record(pendingType, status, System.nanoTime() - sent);
+			response.done(status, body);
+		}
+
+		void close() {
+			loop.execute(() -> {
+				pending = null;
+				if (channel != null)
+					channel.close();
+			});
+		}
+	}
+
+	LoadGenerator(URI server) {
+		this.server = server;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null)
+			System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+		LoadGenerator generator = new LoadGenerator(new URI(System.getProperty("load.url", "http://127.0.0.1:8080/")));
+		generator.run();
+	}
+
+	void run() throws Exception {
+		SimulatedGame.Geometry geometry = SimulatedGame.Geometry.load(geography);
+		System.out.println(String.format("%d games of %d players on %s, for %d seconds, against %s",
+				games, players, geography, durationMillis / 1000, server));
+		long start = System.currentTimeMillis();
+		deadline = start + durationMillis;
+		CountDownLatch done = new CountDownLatch(games);
+		for (int i = 0; i < games; ++i) {
+			int slot = i;
+			EventLoop loop = group.next();
+			// Spread the starts over the first few seconds, as players would arrive
+			loop.schedule(() -> playGames(slot, loop, geometry, done), slot * 20L % 5000, TimeUnit.MILLISECONDS);
+		}
+
+		Connection metrics = new Connection(group.next());
+		long lastReport = start;
+		long lastCount = 0;
+		while (!done.await(5, TimeUnit.SECONDS)) {
+			scrapeQueue(metrics);
+			long now = System.currentTimeMillis();
+			long count = total();
+			System.out.println(String.format("%4ds  %8.1f requests/s  %d games started, %d finished  server queue %d",
+					(now - start) / 1000, (count - lastCount) * 1000.0 / Math.max(1, now - lastReport),
+					gamesStarted.get(), gamesFinished.get(), lastQueued));
+			lastReport = now;
+			lastCount = count;
+			if (now > deadline + 60000)
+				break;		// games that are stuck; report what we have
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		report(elapsed);
+		group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+	}
+
+	/** Plays one game after another in this slot until the run is over */
+	private void playGames(int slot, EventLoop loop, SimulatedGame.Geometry geometry, CountDownLatch done) {
+		if (!running()) {
+			done.countDown();
+			return;
+		}
+		gamesStarted.incrementAndGet();
+		new SimulatedGame(this, loop, geometry, seed * 1000003 + gamesStarted.get(),
+				() -> playGames(slot, loop, geometry, done)).start();
+	}
+
+	boolean running() {
+		return System.currentTimeMillis() < deadline;
+	}
+
+	private int port() {
+		return server.getPort() != -1 ? server.getPort() : 80;
+	}
+
+	void record(String messageType, int status, long nanos) {
+		Stats s = stats.get(messageType);
+		if (s == null)
+			s = stats.computeIfAbsent(messageType, type -> new Stats());
+		if (status == 200 || status == 304) {
+			s.ok.increment();
+			s.latency.record(nanos);
+		}
+		else if (status == 400) {
+			s.rejected.increment();
+			s.latency.record(nanos);
+		}
+		else if (status == 429 || status == 503)
+			s.refused.increment();
+		else
+			s.failed.increment();
+	}
+
+	private long total() {
+		long count = 0;
+		for (Stats s: stats.values())
+			count += s.ok.sum() + s.rejected.sum() + s.refused.sum() + s.failed.sum();
+		return count;
+	}
+
+	private static final Pattern QUEUED = Pattern.compile("^trainserver_dispatcher_queued\\{[^}]*\\} (\\d+)", Pattern.MULTILINE);
+
+	/** Reads the dispatcher's queue depth from the server's metrics */
+	private void scrapeQueue(Connection connection) {
+		connection.get("metrics", server.resolve("metrics").getPath(), (status, body) -> {
+			if (body == null)
+				return;
+			Matcher m = QUEUED.matcher(body);
+			if (m.find()) {
+				lastQueued = Long.parseLong(m.group(1));
+				maxQueued.accumulateAndGet(lastQueued, Math::max);
+			}
+		});
+	}
+
+	private void report(long elapsedMillis) {
+		double seconds = elapsedMillis / 1000.0;
+		System.out.println();
+		System.out.println(String.format("%-16s %9s %9s %9s %9s %9s %8s %8s %8s", "Message", "Requests", "Per sec",
+				"p50 ms", "p99 ms", "p999 ms", "Rejected", "Refused", "Failed"));
+		long requests = 0;
+		for (Map.Entry<String, Stats> entry: new TreeMap<String, Stats>(stats).entrySet()) {
+			if (entry.getKey().equals("metrics"))
+				continue;
+			Stats s = entry.getValue();
+			long count = s.ok.sum() + s.rejected.sum() + s.refused.sum() + s.failed.sum();
+			requests += count;
+			System.out.println(String.format("%-16s %9d %9.1f %9.2f %9.2f %9.2f %8s %8s %8s", entry.getKey(), count,
+					count / seconds, s.latency.percentile(0.5) / 1e6, s.latency.percentile(0.99) / 1e6,
+					s.latency.percentile(0.999) / 1e6, percent(s.rejected.sum(), count),
+					percent(s.refused.sum(), count), percent(s.failed.sum(), count)));
+		}
+		System.out.println(String.format("%d requests in %.1f s: %.1f requests/s; %d games finished; "
+				+ "server queue at most %d", requests, seconds, requests / seconds, gamesFinished.get(), maxQueued.get()));
+		System.out.println("Latencies are to within a quarter; " + STATUS_POLL + " is held by the server until the game changes.");
+	}
+
+	private static String percent(long part, long whole) {
+		return whole == 0 || part == 0 ? "-" : String.format("%.2f%%", part * 100.0 / whole);
+	}
+
+	private static String encode(String json) {
+		try {
+			return URLEncoder.encode(json, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
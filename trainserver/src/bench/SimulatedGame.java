@@ -0,0 +1,339 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import io.netty.channel.EventLoop;
+import map.Milepost;
+import map.MilepostId;
+import train.GameException;
+import train.Geography;
+
+/** One game played by simulated players, as the browser client plays it: the host creates
+ * the game, the others join, everyone starts it, and then each player long polls status and
+ * takes their turn when it comes round. Building turns build toward a major city; after
+ * that, a player places their train on their track, moves it back and forth along it, and
+ * now and then builds some more. Once the game has gone on for enough turns, or the run is
+ * over, everyone asks to end it.
+ *
+ * Nothing here is shared with other games: all of a game's callbacks run on its event loop,
+ * so its state needs no locking.
+ */
+final class SimulatedGame {
+	private static final Gson gson = new Gson();
+	private static final int MAX_MOVE = 12;		// a freight train's mileposts in a turn
+	private static final int BUILD_BUDGET = 20;		// the most a player can spend in a turn
+
+	/** What the players need to know about the map, read once for every game */
+	static final class Geometry {
+		final String geography;
+		final List<MilepostId> majorCities = new ArrayList<MilepostId>();
+
+		private Geometry(String geography) {
+			this.geography = geography;
+		}
+
+		static Geometry load(String geography) throws GameException {
+			Geometry geometry = new Geometry(geography);
+			for (Milepost city: Geography.readUnshared(geography).getMap().getMajorCities())
+				geometry.majorCities.add(city.id);
+			return geometry;
+		}
+	}
+
+	/** The parts of a status (or a delta) the players act on */
+	private static final class Status {
+		int transaction;
+		Turn turnData;
+		boolean ended;
+		int turns;
+	}
+
+	private static final class Turn {
+		String pid;
+	}
+
+	/** Route from planRoute */
+	private static final class Route {
+		List<MilepostId> mileposts;
+		int cost;
+	}
+
+	private final LoadGenerator load;
+	private final EventLoop loop;
+	private final Geometry geometry;
+	private final Random random;
+	private final Runnable finished;
+	private final List<Player> players = new ArrayList<Player>();
+	private String gid;
+	private int joined;
+	private int started;
+	private int stopped;
+
+	SimulatedGame(LoadGenerator load, EventLoop loop, Geometry geometry, long seed, Runnable finished) {
+		this.load = load;
+		this.loop = loop;
+		this.geometry = geometry;
+		this.random = new Random(seed);
+		this.finished = finished;
+		for (int i = 0; i < load.players; ++i)
+			players.add(new Player("p" + i, Fixtures.COLORS[i % Fixtures.COLORS.length]));
+	}
+
+	void start() {
+		Player host = players.get(0);
+		host.actions.send("newGame", message("newGame", "pid", host.pid, "color", host.color,
+				"gameType", geometry.geography, "name", "load"), false, (status, body) -> {
+			if (status != 200) {
+				// Try again if the server is just busy, otherwise give the slot back
+				if (load.running())
+					later(1000, this::start);
+				else
+					finish();
+				return;
+			}
+			gid = body.substring(8, 16);
+			joined();
+			for (Player p: players.subList(1, players.size()))
+				p.join();
+		});
+	}
+
+	/** Once everyone is in, everyone starts */
+	private void joined() {
+		if (++joined < players.size())
+			return;
+		for (Player p: players)
+			p.actions.send("startGame", message("startGame", "gid", gid, "pid", p.pid, "ready", true), false,
+					(status, body) -> {
+				if (++started == players.size())
+					for (Player q: players)
+						q.poll();
+			});
+	}
+
+	/** Once everyone has seen the game end (or given up on it), the slot plays another */
+	private void stopped() {
+		if (++stopped < players.size())
+			return;
+		finish();
+	}
+
+	private void finish() {
+		for (Player p: players) {
+			p.actions.close();
+			p.polls.close();
+		}
+		if (gid != null)
+			load.gamesFinished.incrementAndGet();
+		finished.run();
+	}
+
+	private void later(long millis, Runnable task) {
+		loop.schedule(task, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/** A think time around the average, so the players don't move in step */
+	private long think() {
+		return load.thinkMillis / 2 + (long) (random.nextDouble() * load.thinkMillis);
+	}
+
+	private final class Player {
+		final String pid;
+		final String color;
+		/** One connection for actions, and one for the long poll, as a browser would use */
+		final LoadGenerator.Connection actions;
+		final LoadGenerator.Connection polls;
+		final List<MilepostId> rail = new ArrayList<MilepostId>();		// in the order built
+		MilepostId target;			// city being built toward
+		MilepostId location;		// of the train, once placed
+		Integer since;				// the last transaction seen
+		boolean acting;
+		int turnsTaken;
+		boolean ending;
+		boolean stopped;
+
+		Player(String pid, String color) {
+			this.pid = pid;
+			this.color = color;
+			this.actions = load.new Connection(loop);
+			this.polls = load.new Connection(loop);
+		}
+
+		void join() {
+			actions.send("joinGame", message("joinGame", "gid", gid, "pid", pid, "color", color), false,
+					(status, body) -> joined());
+		}
+
+		/** Asks for status, waiting for the game to change if it has seen it before. What
+		 * comes back is only acted on if the player wasn't in the middle of a turn when the
+		 * poll went out; otherwise it may be from before the turn ended.
+		 */
+		void poll() {
+			int turn = turnsTaken;
+			boolean wasActing = acting;
+			String request = since == null ? message("status", "gid", gid)
+					: message("status", "gid", gid, "sinceTransaction", since, "delta", true);
+			polls.send("status", request, true, (code, body) -> {
+				if (code != 200 && code != 304) {
+					later(1000, this::poll);		// as the client does after an error
+					return;
+				}
+				Status status = code == 200 ? parse(body, Status.class) : null;
+				if (status == null) {
+					poll();
+					return;
+				}
+				boolean current = !wasActing && turn == turnsTaken;
+				if (current)
+					since = status.transaction;
+				if (status.ended) {
+					stop();
+					return;
+				}
+				if (current)
+					react(status);
+				poll();
+			});
+		}
+
+		private void react(Status status) {
+			if ((status.turns >= load.turns || !load.running()) && !ending) {
+				ending = true;
+				actions.send("endGame", message("endGame", "gid", gid, "pid", pid, "ready", true), false,
+						(code, body) -> {});
+			}
+			if (!ending && !acting && status.turnData != null && pid.equals(status.turnData.pid)) {
+				acting = true;
+				later(think(), () -> takeTurn(status.turns));
+			}
+		}
+
+		private void stop() {
+			if (stopped)
+				return;
+			stopped = true;
+			stopped();
+		}
+
+		private void takeTurn(int turns) {
+			if (turns < 3 || rail.size() < 2)
+				build(this::endTurn);
+			else if (location == null)
+				placeTrain();
+			else
+				move();
+		}
+
+		/** Builds as much as a turn's money buys toward the target city, choosing a new
+		 * target once it's reached
+		 */
+		private void build(Runnable then) {
+			// From the end of their track, or a major city to start with: left to itself, the
+			// planner would start from the target, as it's a major city too
+			MilepostId from = rail.isEmpty() ? randomCity() : rail.get(rail.size() - 1);
+			while (target == null || rail.contains(target) || target.equals(from))
+				target = randomCity();
+			actions.send("planRoute", message("planRoute", "gid", gid, "pid", pid, "route", "build",
+					"from", from, "to", new MilepostId[] { target }), false, (code, body) -> {
+				Route route = code == 200 ? parse(body, Route.class) : null;
+				if (route == null || route.mileposts == null || route.mileposts.size() < 2) {
+					target = null;		// can't get there from here; somewhere else next time
+					later(think(), then);
+					return;
+				}
+				// Build the share of the route the budget covers, on the average cost of a
+				// milepost, keeping a quarter back for the stretch being dearer than average
+				int end = route.mileposts.size();
+				if (route.cost > BUILD_BUDGET * 3 / 4)
+					end = Math.max(2, end * BUILD_BUDGET * 3 / 4 / route.cost);
+				List<MilepostId> build = route.mileposts.subList(0, end);
+				later(think(), () -> actions.send("buildTrack", message("buildTrack", "gid", gid, "pid", pid,
+						"mileposts", build), false, (built, ignored) -> {
+					if (built == 200)
+						for (MilepostId id: build)
+							if (!rail.contains(id))
+								rail.add(id);
+					later(think(), then);
+				}));
+			});
+		}
+
+		private MilepostId randomCity() {
+			return geometry.majorCities.get(random.nextInt(geometry.majorCities.size()));
+		}
+
+		private void placeTrain() {
+			MilepostId where = rail.get(0);
+			actions.send("placeTrain", message("placeTrain", "gid", gid, "pid", pid, "train", 0, "where", where),
+					false, (code, body) -> {
+				if (code == 200)
+					location = where;
+				later(think(), this::endTurn);
+			});
+		}
+
+		/** Moves toward whichever end of the track is farther away, then sometimes builds */
+		private void move() {
+			MilepostId first = rail.get(0);
+			MilepostId last = rail.get(rail.size() - 1);
+			MilepostId to = rail.indexOf(location) < rail.size() / 2 ? last : first;
+			actions.send("planRoute", message("planRoute", "gid", gid, "pid", pid, "route", "move", "train", 0,
+					"to", new MilepostId[] { to }), false, (code, body) -> {
+				Route route = code == 200 ? parse(body, Route.class) : null;
+				if (route == null || route.mileposts == null || route.mileposts.size() < 2) {
+					later(think(), this::endTurn);
+					return;
+				}
+				// The route starts where the train is
+				List<MilepostId> steps = route.mileposts.subList(1, Math.min(route.mileposts.size(), MAX_MOVE + 1));
+				later(think(), () -> actions.send("moveTrain", message("moveTrain", "gid", gid, "pid", pid,
+						"train", 0, "mileposts", steps), false, (moved, ignored) -> {
+					if (moved == 200)
+						location = steps.get(steps.size() - 1);
+					if (random.nextInt(3) == 0)
+						later(think(), () -> build(this::endTurn));
+					else
+						later(think(), this::endTurn);
+				}));
+			});
+		}
+
+		private void endTurn() {
+			actions.send("endTurn", message("endTurn", "gid", gid, "pid", pid), false, (code, body) -> {
+				if (code == 0 || code == 429 || code == 503) {
+					later(1000, this::endTurn);		// the turn has to end, or the game stops
+					return;
+				}
+				++turnsTaken;
+				acting = false;
+			});
+		}
+	}
+
+	/** A request, from its message type and then pairs of field names and values */
+	private static String message(String messageType, Object... fields) {
+		Map<String, Object> message = new LinkedHashMap<String, Object>();
+		message.put("messageType", messageType);
+		for (int i = 0; i < fields.length; i += 2)
+			message.put((String) fields[i], fields[i + 1]);
+		return gson.toJson(message);
+	}
+
+	private static <T> T parse(String body, Class<T> type) {
+		if (body == null || body.isEmpty())
+			return null;
+		try {
+			return gson.fromJson(body, type);
+		} catch (JsonSyntaxException e) {
+			return null;
+		}
+	}
+}
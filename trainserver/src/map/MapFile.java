@@ -0,0 +1,249 @@
+package map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reference.City;
+import train.GameException;
+
+/** Compiled form of a TrainMap, so a geography can be loaded without parsing the csv files.
+ * All numbers are big-endian.
+ *
+ * header:		magic "TMAP", version, width, height, left offset, top offset, map width, map height (ints)
+ * rows:		number of mileposts in each row (height shorts)
+ * cities:		count (short), then each name as a length (short) and UTF-8 bytes
+ * mileposts:	for each milepost in the rows, row by row: type (byte), city (short index, -1 for none),
+ * 				ferry bits (byte, bit i set if edge i is a ferry), cost of each of the six edges (bytes,
+ * 				0 if there is no edge)
+ * ferries:		count (int), then for each ferry edge: milepost index, direction (byte), destination index
+ *
+ * Edges that aren't ferries always go to the neighboring milepost in that direction, so only
+ * their cost is stored.
+ */
+public final class MapFile {
+	public static final String FILE_NAME = "map.bin";
+
+	private static final int MAGIC = 0x544d4150;	// "TMAP"
+	private static final int VERSION = 1;
+	private static final int MILEPOST_BYTES = 10;
+	private static final int FERRY_BYTES = 9;
+
+	// Offsets to the neighbor in each direction, NE clockwise to NW, for even and odd rows
+	private static final int[] evenDx = { 0, 1, 0, -1, -1, -1 };
+	private static final int[] oddDx = { 1, 1, 1, 0, -1, 0 };
+	private static final int[] dy = { -1, 0, 1, 1, 0, -1 };
+
+	private static Logger log = LoggerFactory.getLogger(MapFile.class);
+
+	private MapFile() {}
+
+	/** Returns the milepost next to (x, y) in the direction, which may be off the map */
+	static MilepostId neighbor(int x, int y, int direction) {
+		int dx = (y & 1) == 0 ? evenDx[direction] : oddDx[direction];
+		return new MilepostId(x + dx, y + dy[direction]);
+	}
+
+	/** Writes the compiled map
+	 * @throws GameException if the map can't be represented in the compiled form
+	 */
+	public static void write(TrainMap map, File file) throws IOException, GameException {
+		int width = map.getWidth();
+		int height = map.getHeight();
+		List<String> cityNames = new ArrayList<String>();
+		Map<String, Integer> cityIndex = new HashMap<String, Integer>();
+		List<int[]> ferries = new ArrayList<int[]>();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			TrainMap.SerializeData data = map.getSerializeData();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(data.leftOffset);
+			out.writeInt(data.topOffset);
+			out.writeInt(data.mapWidth);
+			out.writeInt(data.mapHeight);
+			for (int y = 0; y < height; ++y)
+				out.writeShort(map.getRowLength(y));
+
+			for (Milepost mp: data.orderedMileposts) {
+				if (mp.city != null && !cityIndex.containsKey(mp.city.name)) {
+					cityIndex.put(mp.city.name, cityNames.size());
+					cityNames.add(mp.city.name);
+				}
+			}
+			out.writeShort(cityNames.size());
+			for (String name: cityNames) {
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+				out.writeShort(bytes.length);
+				out.write(bytes);
+			}
+
+			for (Milepost mp: data.orderedMileposts) {
+				out.writeByte(mp.type.ordinal());
+				out.writeShort(mp.city != null ? cityIndex.get(mp.city.name) : -1);
+				int ferryBits = 0;
+				byte[] costs = new byte[6];
+				for (int i = 0; i < 6; ++i) {
+					Edge edge = mp.edges != null ? mp.edges[i] : null;
+					if (edge == null)
+						continue;
+					if (edge.cost <= 0 || edge.cost > Byte.MAX_VALUE) {
+						log.error("Edge from {} to {} costs {}", mp.id, edge.destination.id, edge.cost);
+						throw new GameException(GameException.BAD_MAP_DATA);
+					}
+					costs[i] = (byte) edge.cost;
+					if (edge instanceof Ferry) {
+						ferryBits |= 1 << i;
+						ferries.add(new int[] { map.index(mp.id), i, map.index(edge.destination.id) });
+					}
+					else if (!edge.destination.id.equals(neighbor(mp.id.x, mp.id.y, i))) {
+						log.error("Edge {} from {} goes to {}, which isn't next to it", i, mp.id, edge.destination.id);
+						throw new GameException(GameException.BAD_MAP_DATA);
+					}
+				}
+				out.writeByte(ferryBits);
+				out.write(costs);
+			}
+
+			out.writeInt(ferries.size());
+			for (int[] ferry: ferries) {
+				out.writeInt(ferry[0]);
+				out.writeByte(ferry[1]);
+				out.writeInt(ferry[2]);
+			}
+		}
+	}
+
+	/** Reads a compiled map by mapping the file into memory */
+	public static TrainMap read(File file, Map<String, City> cities) throws IOException, GameException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cities);
+		}
+	}
+
+	/** Reads a compiled map
+	 * @param cities	cities of the geography, to attach to the city mileposts
+	 * @throws GameException if the data isn't a compiled map, is for another version, or its
+	 * size doesn't agree with the mileposts in it
+	 */
+	public static TrainMap read(ByteBuffer buffer, Map<String, City> cities) throws GameException {
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				log.error("Not a compiled map, or compiled by another version");
+				throw new GameException(GameException.BAD_MAP_DATA);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int[] bounds = new int[4];
+			for (int i = 0; i < bounds.length; ++i)
+				bounds[i] = buffer.getInt();
+			// Checked before anything is made to its size
+			if (width < 0 || height < 0 || height > buffer.remaining() / 2 || (long) width * height > Integer.MAX_VALUE) {
+				log.error("Compiled map can't be {} by {}", width, height);
+				throw new GameException(GameException.BAD_MAP_DATA);
+			}
+			int[] rowLengths = new int[height];
+			int widest = 0;
+			long records = 0;
+			for (int y = 0; y < height; ++y) {
+				rowLengths[y] = buffer.getShort();
+				if (rowLengths[y] < 0 || rowLengths[y] > width) {
+					log.error("Row {} of the compiled map has {} mileposts, and the map is {} wide", y, rowLengths[y], width);
+					throw new GameException(GameException.BAD_MAP_DATA);
+				}
+				widest = Math.max(widest, rowLengths[y]);
+				records += rowLengths[y];
+			}
+			if (widest != width) {
+				log.error("Compiled map is {} wide, but its widest row has {} mileposts", width, widest);
+				throw new GameException(GameException.BAD_MAP_DATA);
+			}
+
+			City[] cityTable = new City[buffer.getShort()];
+			for (int i = 0; i < cityTable.length; ++i) {
+				byte[] bytes = new byte[buffer.getShort()];
+				buffer.get(bytes);
+				String name = new String(bytes, StandardCharsets.UTF_8);
+				cityTable[i] = cities.get(name);
+				if (cityTable[i] == null)
+					log.warn("City milepost for " + name + " on map missing corresponding city in city list");
+			}
+
+			// Make all the mileposts first, so the edges have somewhere to go
+			Milepost.Type[] types = Milepost.Type.values();
+			Milepost[] mileposts = new Milepost[width * height];
+			int start = buffer.position();
+			if (buffer.remaining() < records * MILEPOST_BYTES + 4) {
+				log.error("Compiled map has rows for {} mileposts, but not the data for them", records);
+				throw new GameException(GameException.BAD_MAP_DATA);
+			}
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < rowLengths[y]; ++x) {
+					Milepost.Type type = types[buffer.get()];
+					short city = buffer.getShort();
+					mileposts[y * width + x] = new Milepost(x, y, city >= 0 ? cityTable[city] : null, type);
+					buffer.position(buffer.position() + MILEPOST_BYTES - 3);
+				}
+			}
+
+			buffer.position(start);
+			Edge[][] edges = new Edge[mileposts.length][];
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < rowLengths[y]; ++x) {
+					buffer.position(buffer.position() + 3);
+					int ferryBits = buffer.get();
+					Edge[] mpEdges = new Edge[6];
+					for (int i = 0; i < 6; ++i) {
+						int cost = buffer.get();
+						if (cost == 0 || (ferryBits & (1 << i)) != 0)
+							continue;
+						MilepostId next = neighbor(x, y, i);
+						Milepost destination = next.x >= 0 && next.x < width && next.y >= 0 && next.y < height
+							? mileposts[next.y * width + next.x] : null;
+						if (destination == null) {
+							log.error("Edge {} from ({}, {}) goes off the map", i, x, y);
+							throw new GameException(GameException.BAD_MAP_DATA);
+						}
+						mpEdges[i] = new Edge(destination, cost);
+					}
+					edges[y * width + x] = mpEdges;
+				}
+			}
+
+			int ferryCount = buffer.getInt();
+			if (ferryCount < 0 || buffer.remaining() != (long) ferryCount * FERRY_BYTES) {
+				log.error("Compiled map has rows for {} mileposts, but more or less data than that", records);
+				throw new GameException(GameException.BAD_MAP_DATA);
+			}
+			for (int i = 0; i < ferryCount; ++i) {
+				int from = buffer.getInt();
+				int direction = buffer.get();
+				int to = buffer.getInt();
+				edges[from][direction] = new Ferry(mileposts[to]);
+			}
+			for (int i = 0; i < mileposts.length; ++i)
+				if (mileposts[i] != null)
+					mileposts[i].updateEdges(edges[i]);
+			return new TrainMap(mileposts, width, height, rowLengths, bounds);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			log.error("Compiled map is truncated or corrupt");
+			throw new GameException(GameException.BAD_MAP_DATA);
+		}
+	}
+}
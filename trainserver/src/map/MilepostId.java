@@ -30,7 +30,7 @@ public class MilepostId implements Comparable<MilepostId> {
 	@Override
 	public int hashCode()
 	{
-		return x * y;
+		return (y << 16) ^ x;	// unique for any map we'll see, unlike x * y
 	}
 
 	@Override
@@ -27,7 +27,7 @@ public class MilepostShortFormTypeAdapter extends TypeAdapter<Milepost> {
         String[] parts = xy.split(",");
         int x = Integer.parseInt(parts[0]);
         int y = Integer.parseInt(parts[1]);
-		return gameContext.gameData.getMap().getMilepost(new MilepostId(x, y));
+		return gameContext.gameData.getMap().getMilepost(x, y);
 	}
 
   @Override
@@ -0,0 +1,205 @@
+package map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** Finds the cheapest route across a map from any of a set of mileposts to the nearest of
+ * another set, using A* over the dense milepost array. What an edge costs, and whether it
+ * can be used at all, is up to the caller, so the same search plans both building and moving.
+ * A planner only reads the map, so one can be shared by every game on that map.
+ */
+public class RoutePlanner {
+	/** How much it costs to go along an edge */
+	public interface EdgeCost {
+		/** @return the cost of going from the milepost along the edge, or -1 if the route can't use it */
+		int cost(Milepost from, Edge edge);
+	}
+
+	/** A route that was found, from the source to the target */
+	public static class Route {
+		public final List<MilepostId> mileposts;
+		public final int cost;
+
+		Route(List<MilepostId> mileposts, int cost) {
+			this.mileposts = mileposts;
+			this.cost = cost;
+		}
+	}
+
+	private static final int MAX_HEURISTIC_TARGETS = 16;	// past this, searching blind is cheaper
+
+	private final TrainMap map;
+	private final double minBuildCostPerHex;	// cheapest track anywhere, per hex of distance covered
+	private final double minStepsPerHex;		// fewest mileposts moved, per hex of distance covered
+
+	RoutePlanner(TrainMap map) {
+		this.map = map;
+		double minCost = Double.MAX_VALUE;
+		int longestEdge = 1;
+		for (int i = 0; i < map.getWidth() * map.getHeight(); ++i) {
+			Milepost mp = map.getMilepost(i);
+			if (mp == null || mp.edges == null)
+				continue;
+			for (Edge edge: mp.edges) {
+				if (edge == null)
+					continue;
+				int hexes = Math.max(1, hexDistance(mp.id, edge.destination.id));	// ferries can cross several
+				minCost = Math.min(minCost, (double) edge.cost / hexes);
+				longestEdge = Math.max(longestEdge, hexes);
+			}
+		}
+		minBuildCostPerHex = minCost == Double.MAX_VALUE ? 0 : minCost;
+		minStepsPerHex = 1.0 / longestEdge;
+	}
+
+	/** Scale for the heuristic when edges cost what it takes to build them */
+	public double minBuildCostPerHex() { return minBuildCostPerHex; }
+
+	/** Scale for the heuristic when every edge costs 1 */
+	public double minStepsPerHex() { return minStepsPerHex; }
+
+	/** Number of hexes between two mileposts. Odd rows are shifted half a hex to the right. */
+	public static int hexDistance(MilepostId a, MilepostId b) {
+		int aq = a.x - (a.y - (a.y & 1)) / 2;
+		int bq = b.x - (b.y - (b.y & 1)) / 2;
+		int dq = aq - bq;
+		int dr = a.y - b.y;
+		return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+	}
+
+	/** Finds the cheapest route from any of the sources to any of the targets.
+	 * @param costPerHex	no route can cost less than this per hex of distance (see
+	 * 		minBuildCostPerHex and minStepsPerHex); keeps the search from wandering
+	 * @return the route, or null if none of the targets can be reached
+	 */
+	public Route findRoute(Collection<Milepost> sources, Collection<Milepost> targets, EdgeCost edgeCost,
+			double costPerHex) {
+		int size = map.getWidth() * map.getHeight();
+		boolean[] isTarget = new boolean[size];
+		for (Milepost target: targets)
+			isTarget[map.index(target.id)] = true;
+		List<MilepostId> heuristicTargets = new ArrayList<MilepostId>();
+		if (targets.size() <= MAX_HEURISTIC_TARGETS)
+			for (Milepost target: targets)
+				heuristicTargets.add(target.id);
+		else
+			costPerHex = 0;
+
+		int[] cost = new int[size];
+		Arrays.fill(cost, Integer.MAX_VALUE);
+		int[] previous = new int[size];
+		boolean[] done = new boolean[size];
+		Heap open = new Heap(size);
+		for (Milepost source: sources) {
+			int index = map.index(source.id);
+			cost[index] = 0;
+			previous[index] = -1;
+			open.push(index, estimate(source.id, heuristicTargets, costPerHex));
+		}
+
+		while (!open.isEmpty()) {
+			int index = open.pop();
+			if (done[index])
+				continue;		// stale entry, already reached more cheaply
+			done[index] = true;
+			if (isTarget[index])
+				return route(index, cost[index], previous);
+			Milepost mp = map.getMilepost(index);
+			if (mp.edges == null)
+				continue;
+			for (Edge edge: mp.edges) {
+				if (edge == null)
+					continue;
+				int next = map.index(edge.destination.id);
+				if (next < 0 || done[next])
+					continue;
+				int step = edgeCost.cost(mp, edge);
+				if (step < 0)
+					continue;
+				int nextCost = cost[index] + step;
+				if (nextCost < cost[next]) {
+					cost[next] = nextCost;
+					previous[next] = index;
+					open.push(next, nextCost + estimate(edge.destination.id, heuristicTargets, costPerHex));
+				}
+			}
+		}
+		return null;
+	}
+
+	private static double estimate(MilepostId from, List<MilepostId> targets, double costPerHex) {
+		if (costPerHex <= 0)
+			return 0;
+		int nearest = Integer.MAX_VALUE;
+		for (MilepostId target: targets)
+			nearest = Math.min(nearest, hexDistance(from, target));
+		return nearest * costPerHex;
+	}
+
+	private Route route(int index, int cost, int[] previous) {
+		List<MilepostId> mileposts = new ArrayList<MilepostId>();
+		for (int i = index; i >= 0; i = previous[i])
+			mileposts.add(map.getMilepost(i).id);
+		Collections.reverse(mileposts);
+		return new Route(mileposts, cost);
+	}
+
+	/** Binary min-heap of milepost indexes, ordered by estimated total cost. An index can be
+	 * pushed more than once; the search skips the entries it has already finished with.
+	 */
+	private static class Heap {
+		private int[] items;
+		private double[] keys;
+		private int size;
+
+		Heap(int capacity) {
+			items = new int[Math.max(16, capacity)];
+			keys = new double[items.length];
+		}
+
+		boolean isEmpty() { return size == 0; }
+
+		void push(int item, double key) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, 2 * size);
+				keys = Arrays.copyOf(keys, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (keys[parent] <= key)
+					break;
+				items[i] = items[parent];
+				keys[i] = keys[parent];
+				i = parent;
+			}
+			items[i] = item;
+			keys[i] = key;
+		}
+
+		int pop() {
+			int top = items[0];
+			int item = items[--size];
+			double key = keys[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && keys[child + 1] < keys[child])
+					++child;
+				if (keys[child] >= key)
+					break;
+				items[i] = items[child];
+				keys[i] = keys[child];
+				i = child;
+			}
+			items[i] = item;
+			keys[i] = key;
+			return top;
+		}
+	}
+}
@@ -16,8 +16,13 @@ import reference.City;
 import train.GameException;
 
 public final class TrainMap {
-	private final Map<MilepostId, Milepost> milepostIndex;
+	private Milepost[] mileposts;	// indexed by y * width + x
+	private int width;
+	private int height;
+	private int[] rowLengths;		// number of mileposts read in each row
 	private final Map<String, MilepostId> cityLocations;
+	private final List<Milepost> majorCities;
+	private final RoutePlanner planner;
 
 	public class SerializeData {
 		public List<Milepost> orderedMileposts;	// used for map serialization
@@ -57,12 +62,50 @@ public final class TrainMap {
 	 */
 	public TrainMap(BufferedReader mapReader, BufferedReader riverReader, BufferedReader seaReader, 
 			BufferedReader ferryReader, Map<String, City> cities) throws IOException, GameException {
-		milepostIndex = new HashMap<MilepostId, Milepost>();
 		cityLocations = new HashMap<String, MilepostId>();
 		serializeData = new SerializeData();
 
 		generateMileposts(mapReader, cities);
 		generateEdges(riverReader, seaReader, ferryReader);
+		majorCities = findMajorCities();
+		planner = new RoutePlanner(this);
+	}
+
+	/** Builds the map from mileposts that already have their edges, as read from a compiled map.
+	 * @param rowLengths	number of mileposts in each row, from the left edge
+	 * @param bounds		left offset, top offset, width and height of the map, excluding whitespace
+	 */
+	TrainMap(Milepost[] mileposts, int width, int height, int[] rowLengths, int[] bounds) {
+		this.mileposts = mileposts;
+		this.width = width;
+		this.height = height;
+		this.rowLengths = rowLengths;
+		cityLocations = new HashMap<String, MilepostId>();
+		serializeData = new SerializeData();
+		serializeData.leftOffset = bounds[0];
+		serializeData.topOffset = bounds[1];
+		serializeData.mapWidth = bounds[2];
+		serializeData.mapHeight = bounds[3];
+		serializeData.mpWidth = height > 0 ? rowLengths[height - 1] : 0;
+		serializeData.mpHeight = height;
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < rowLengths[y]; ++x) {
+				Milepost mp = mileposts[y * width + x];
+				serializeData.orderedMileposts.add(mp);
+				if (mp.city != null)
+					cityLocations.put(mp.city.name, mp.id);
+			}
+		}
+		majorCities = findMajorCities();
+		planner = new RoutePlanner(this);
+	}
+
+	private List<Milepost> findMajorCities() {
+		List<Milepost> majorCities = new ArrayList<Milepost>();
+		for (Milepost mp: mileposts)
+			if (mp != null && mp.isMajorCity())
+				majorCities.add(mp);
+		return majorCities;
 	}
 	
 	public SerializeData getSerializeData() {
@@ -80,6 +123,7 @@ public final class TrainMap {
 		serializeData.mapWidth = Integer.parseInt(firstFields[2]);
 		serializeData.mapHeight = Integer.parseInt(firstFields[3]);
 		String line = mapDataReader.readLine();	// skip over the row header
+		List<Integer> lengths = new ArrayList<Integer>();
 		while ((line = mapDataReader.readLine()) != null) {
 		   // process the line.
 			String [] fields = line.split(",");
@@ -138,14 +182,23 @@ public final class TrainMap {
 				}
 				log.debug("Found milepost type {} at [{}, {}]", mpType, x, y);
 				Milepost mp = new Milepost(x, y, city, mpType);
-				milepostIndex.put(new MilepostId(x,y), mp);
 				serializeData.orderedMileposts.add(mp);
 				++x;
 			}
 			serializeData.mpWidth = x;
+			width = Math.max(width, x);
+			lengths.add(x);
 			++y;
 		}
 		serializeData.mpHeight = y;
+		height = y;
+		rowLengths = new int[height];
+		for (int i = 0; i < height; ++i)
+			rowLengths[i] = lengths.get(i);
+		
+		mileposts = new Milepost[width * height];
+		for (Milepost mp: serializeData.orderedMileposts)
+			mileposts[mp.id.y * width + mp.id.x] = mp;
 	}
 	
 	private boolean isCrossing(MilepostId source, MilepostId destination,
@@ -165,7 +218,7 @@ public final class TrainMap {
 			Map<MilepostId, Set<MilepostId>> riverCrossings,
 			Map<MilepostId, Set<MilepostId>> seaCrossings, Map<MilepostId, MilepostId[]> ferryCrossings) {
 		Edge edge = null;
-		Milepost destination = milepostIndex.get(destinationId);
+		Milepost destination = getMilepost(destinationId.x, destinationId.y);
 //		MilepostId sourceId = new MilepostId(source.x, source.y);
 		boolean isRiverCrossing = isCrossing(source.id, destinationId, riverCrossings);
 		if (isRiverCrossing)
@@ -252,8 +305,10 @@ public final class TrainMap {
 		Map<MilepostId, Set<MilepostId>> seaInletCrossings = readCrossings(seaReader);
 		Map<MilepostId, MilepostId[]> ferryCrossings = readFerries(ferryReader);
 		
-		for (MilepostId mpId: milepostIndex.keySet())  {
-			Milepost mp = milepostIndex.get(mpId);
+		for (Milepost mp: mileposts)  {
+			if (mp == null)
+				continue;
+			MilepostId mpId = mp.id;
 			Edge[] edges = new Edge[6];
 			if (mp.type != Milepost.Type.BLANK) {
 				if (mp.id.y % 2 == 0) {	// even row 
@@ -276,10 +331,10 @@ public final class TrainMap {
 			if(ferryCrossings.containsKey(mpId)){
 				MilepostId[] targets = ferryCrossings.get(mpId);
 				for(int i = 0; i < 6; i++){
-					if(targets[i] != null && milepostIndex.containsKey(targets[i])){
+					if(targets[i] != null && getMilepost(targets[i]) != null){
 						log.debug("Generating ferry from milepost [{}, {}] to milepost [{},{}], overwriting edge {}", 
 								mpId.y, mpId.x, targets[i].y, targets[i].x, edges[i]);
-						edges[i] = new Ferry(milepostIndex.get(targets[i]));
+						edges[i] = new Ferry(getMilepost(targets[i]));
 					}
 				}
 			}
@@ -288,6 +343,42 @@ public final class TrainMap {
 	}
 	
 	public Milepost getMilepost(MilepostId id){
-		return milepostIndex.get(id);
+		return getMilepost(id.x, id.y);
 	}
+	
+	/** Returns the milepost at (x, y), or null if that's off the map */
+	public Milepost getMilepost(int x, int y){
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		return mileposts[y * width + x];
+	}
+	
+	/** Returns the milepost with the given index (y * width + x), or null if there's none */
+	public Milepost getMilepost(int index){
+		if (index < 0 || index >= mileposts.length)
+			return null;
+		return mileposts[index];
+	}
+	
+	/** Packs the milepost's position into a single int, for indexing, or -1 if it's off the map */
+	public int index(MilepostId id){
+		if (id.x < 0 || id.x >= width || id.y < 0 || id.y >= height)
+			return -1;
+		return id.y * width + id.x;
+	}
+	
+	/** Every milepost that's part of a major city -- anyone can start building from these */
+	public List<Milepost> getMajorCities() { return majorCities; }
+	
+	public RoutePlanner getPlanner() { return planner; }
+	
+	public int getWidth() { return width; }
+	
+	public int getHeight() { return height; }
+	
+	/** Number of mileposts in row y; the rest of the row is off the map */
+	public int getRowLength(int y) { return rowLengths[y]; }
+	
+	/** Returns the id of the city at this location, or null if there's no city there */
+	public MilepostId getCityLocation(String cityName) { return cityLocations.get(cityName); }
 }
@@ -2,6 +2,7 @@ package player;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import map.Milepost;
 import map.MilepostId;
@@ -9,9 +10,22 @@ import train.GameException;
 
 public class GlobalRail {
 	private Map<String, Rail> rails; //maps pid to their track
+	private transient TrackOwners owners; //who built each piece of track, for all players
 	
 	public GlobalRail(){
 		rails = new HashMap<String, Rail>();
+		owners = new TrackOwners();
+	}
+	
+	private TrackOwners owners() {
+		if (owners == null) {	// deserialized -- rebuild from the rails
+			owners = new TrackOwners();
+			for (Map.Entry<String, Rail> rail: rails.entrySet())
+				for (Map.Entry<MilepostId, Set<MilepostId>> track: rail.getValue().getRail().entrySet())
+					for (MilepostId m: track.getValue())
+						owners.put(track.getKey(), m, rail.getKey());
+		}
+		return owners;
 	}
 	
 	public void join(String pid){
@@ -59,10 +73,22 @@ public class GlobalRail {
 		for(int i = 1; i < mps.length; i++){
 			Milepost snd = mps[i];
 			r.build(fst, snd);
+			owners().put(fst.getMilepostId(), snd.getMilepostId(), pid);
 			fst = snd;
 		}
 	}
 	
+	/** Takes out track built by build(), e.g. when the build is undone */
+	public void erase(String pid, Milepost[] mps) throws GameException{
+		if(!rails.containsKey(pid))
+			throw new GameException("PlayerNotFound");
+		Rail r = rails.get(pid);
+		for(int i = 1; i < mps.length; i++){
+			r.erase(mps[i - 1].getMilepostId(), mps[i].getMilepostId());
+			owners().remove(mps[i - 1].getMilepostId(), mps[i].getMilepostId());
+		}
+	}
+	
 	public boolean testMove(String rid, MilepostId[] mps) throws GameException{
 		if(!rails.containsKey(rid)) return false;
 		MilepostId fst = mps[0];
@@ -89,12 +115,7 @@ public class GlobalRail {
 	}
 	
 	public boolean anyConnects(MilepostId one, MilepostId two){
-		for(String pid : rails.keySet()){
-			try {
-				if(connects(pid, one, two)) return true;
-			} catch (GameException e) {		} //the exception is thrown when the pid is not identified
-		}
-		return false;
+		return owners().get(one, two) != null;
 	}
 	
 	/** Return the player who build this pair of mileposts, or null if none. 
@@ -104,12 +125,7 @@ public class GlobalRail {
 	 * @return
 	 */
 	public String getPlayer(MilepostId one, MilepostId two){
-		for(String pid : rails.keySet()){
-			try{
-				if(connects(pid, one, two)) return pid;
-			}catch(GameException e) { }
-		}
-		return null;
+		return owners().get(one, two);
 	}
 
 	public Rail getRail(String pid){
@@ -1,5 +1,7 @@
 package player;
 
+import java.util.function.Supplier;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +40,34 @@ public class Player {
 		this.stats = new Stats();
 	}
 	
+	/** Copy, for undo */
+	public Player(Player other) {
+		name = other.name;
+		color = other.color;
+		trains = new Train[other.trains.length];
+		for(int i = 0; i < trains.length; i++){
+			trains[i] = new Train(other.trains[i]);
+		}
+		restoreFields(other);
+	}
+	
+	/** Put the player back the way they were when the copy was made */
+	public void restore(Player saved) {
+		for(int i = 0; i < trains.length; i++){
+			trains[i].restore(saved.trains[i]);
+		}
+		restoreFields(saved);
+	}
+	
+	private void restoreFields(Player saved) {
+		money = saved.money;
+		cards = saved.cards.clone();
+		readyToStart = saved.readyToStart;
+		readyToEnd = saved.readyToEnd;
+		hasResigned = saved.hasResigned;
+		stats = new Stats(saved.stats);
+	}
+	
 	public void placeTrain(Milepost m, int t) throws GameException{
 		if(trains[t] == null) throw new GameException("GameNotStarted");
 		else if (trains[t].getLocation() == null) 
@@ -95,10 +125,14 @@ public class Player {
 	 * @param index is the location of the card in the player's hand, array-wise
 	 * @param next is the card drawn to replace that one
 	 */
-	public int deliverLoad(int cIndex, int tIndex, Card next) throws GameException {
+	/** Delivers the load on the card, replacing the card with one dealt once the delivery
+	 * has been checked, so a delivery that's turned away leaves the deck as it was
+	 */
+	public int deliverLoad(int cIndex, int tIndex, Supplier<Card> deal) throws GameException {
 		Card c = cards[cIndex];
 		Trip t = canDeliver(tIndex, c);
 		if(t == null) throw new GameException("InvalidDelivery");
+		Card next = deal.get();
 		trains[tIndex].dropLoad(t.load);
 		cards[cIndex] = next; 
 		++stats.deliveryCount;
@@ -1,4 +1,5 @@
 package player;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -15,14 +16,62 @@ public class Rail {
 		//all bindings are unordered: if a milepost is in another's set, that one's set contains the milepost
 	private String pid;
 	
+	// The same track as a list of edges, in pairs of mileposts, so it can be snapshotted
+	// without copying. Edges are only ever appended; anything else makes a new array.
+	private transient MilepostId[] edges;
+	private transient int edgeCount;
+	
+	/** The track as of when the snapshot was taken. Later building doesn't change it. */
+	public static class Snapshot {
+		private final MilepostId[] edges;
+		private final int edgeCount;
+		
+		Snapshot(MilepostId[] edges, int edgeCount) {
+			this.edges = edges;
+			this.edgeCount = edgeCount;
+		}
+		
+		/** Returns the track in the same form as Rail.getRail() */
+		public Map<MilepostId, Set<MilepostId>> getRail() {
+			Map<MilepostId, Set<MilepostId>> tracks = new HashMap<MilepostId, Set<MilepostId>>();
+			for (int i = 0; i < edgeCount; i += 2) {
+				add(tracks, edges[i], edges[i + 1]);
+				add(tracks, edges[i + 1], edges[i]);
+			}
+			return tracks;
+		}
+		
+		private static void add(Map<MilepostId, Set<MilepostId>> tracks, MilepostId one, MilepostId two) {
+			Set<MilepostId> s = tracks.get(one);
+			if (s == null) {
+				s = new HashSet<MilepostId>();
+				tracks.put(one, s);
+			}
+			s.add(two);
+		}
+	}
+	
 	public Rail(String pid){
 		this.pid = pid;
 		tracks = new HashMap<MilepostId, Set<MilepostId>>();
+		edges = new MilepostId[16];
 	}
 	
 	public Rail(String pid, Map<MilepostId, Set<MilepostId>> tracks){
 		this.pid = pid;
 		this.tracks = tracks;
+		edges = new MilepostId[16];
+		for (Map.Entry<MilepostId, Set<MilepostId>> entry: tracks.entrySet()) {
+			for (MilepostId m: entry.getValue()) {
+				if (entry.getKey().compareTo(m) < 0)	// each edge is in the map both ways
+					appendEdge(entry.getKey(), m);
+			}
+		}
+	}
+	
+	/** Returns the track as it is now, without copying it */
+	public Snapshot snapshot() {
+		return new Snapshot(edges, edgeCount);
 	}
 	
 	public Map<MilepostId, Set<MilepostId>> getRail(){
@@ -57,6 +106,8 @@ public class Rail {
 	private void removeTrack(MilepostId one, MilepostId two){
 		Set<MilepostId> s = tracks.get(one);
 		s.remove(two);
+		if(s.isEmpty())
+			tracks.remove(one);		// no longer built to this milepost
 	}
 
 	/** Adds the given track to the player's rails, if and only if the track can be legally built.
@@ -70,6 +121,7 @@ public class Rail {
 		}
 		addTrack(origin.getMilepostId(), next.getMilepostId());
 		addTrack(next.getMilepostId(), origin.getMilepostId());
+		appendEdge(origin.getMilepostId(), next.getMilepostId());
 		Edge e = origin.getEdge(next.id);
 		int cost = e.cost;
 		return cost;
@@ -78,6 +130,27 @@ public class Rail {
 	void erase(MilepostId one, MilepostId two){
 		removeTrack(one, two);
 		removeTrack(two, one);
+		
+		// Snapshots may share the edge array, so copy it without the edge
+		MilepostId[] remaining = new MilepostId[edges.length];
+		int count = 0;
+		for (int i = 0; i < edgeCount; i += 2) {
+			boolean match = (edges[i].equals(one) && edges[i + 1].equals(two)) ||
+				(edges[i].equals(two) && edges[i + 1].equals(one));
+			if (!match) {
+				remaining[count++] = edges[i];
+				remaining[count++] = edges[i + 1];
+			}
+		}
+		edges = remaining;
+		edgeCount = count;
+	}
+	
+	private void appendEdge(MilepostId one, MilepostId two) {
+		if (edgeCount + 2 > edges.length)
+			edges = Arrays.copyOf(edges, edges.length * 2);	// snapshots keep the old array
+		edges[edgeCount++] = one;
+		edges[edgeCount++] = two;
 	}
 	
 }
@@ -14,4 +14,15 @@ public class Stats {
 	
 	public Stats() {
 	}
+	
+	public Stats(Stats other) {
+		money = other.money;
+		milepostsBuilt = other.milepostsBuilt;
+		trackExpense = other.trackExpense;
+		deliveryCount = other.deliveryCount;
+		deliveryIncome = other.deliveryIncome;
+		rentalIncome = other.rentalIncome;
+		rentalExpense = other.rentalExpense;
+		milesTravelled = other.milesTravelled;
+	}
 }
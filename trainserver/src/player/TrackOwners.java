@@ -0,0 +1,109 @@
+package player;
+
+import java.util.Arrays;
+
+import map.MilepostId;
+
+/** Who built the track between each pair of neighboring mileposts, whichever way round the
+ * pair is given. The pair is packed into a long and looked up by open addressing, so
+ * finding the owner doesn't box anything or go through every player's rail.
+ */
+public class TrackOwners {
+	private static final long EMPTY = -1;	// packed keys are never negative
+
+	private long[] keys;
+	private String[] owners;
+	private int size;
+
+	public TrackOwners() {
+		allocate(64);
+	}
+
+	/** Returns the player who built this track, or null if nobody has */
+	public String get(MilepostId one, MilepostId two) {
+		long key = key(one, two);
+		int mask = keys.length - 1;
+		for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return owners[i];
+		}
+		return null;
+	}
+
+	public void put(MilepostId one, MilepostId two, String owner) {
+		if (2 * (size + 1) > keys.length)
+			resize(2 * keys.length);
+		insert(key(one, two), owner);
+	}
+
+	public void remove(MilepostId one, MilepostId two) {
+		long key = key(one, two);
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (keys[i] != key) {
+			if (keys[i] == EMPTY)
+				return;
+			i = (i + 1) & mask;
+		}
+		// Shift later entries back over the hole, unless they'd end up before their home slot
+		for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!between) {
+				keys[i] = keys[j];
+				owners[i] = owners[j];
+				i = j;
+			}
+		}
+		keys[i] = EMPTY;
+		owners[i] = null;
+		--size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Packs the pair of mileposts into a key that's the same for either order */
+	public static long key(MilepostId one, MilepostId two) {
+		long a = pack(one);
+		long b = pack(two);
+		return a < b ? (a << 32) | b : (b << 32) | a;
+	}
+
+	private static long pack(MilepostId m) {
+		return ((m.x & 0x7fff) << 16) | (m.y & 0xffff);
+	}
+
+	private int slot(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+	}
+
+	private void insert(long key, String owner) {
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		if (keys[i] == EMPTY)
+			++size;
+		keys[i] = key;
+		owners[i] = owner;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		String[] oldOwners = owners;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != EMPTY)
+				insert(oldKeys[i], oldOwners[i]);
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		owners = new String[capacity];
+		size = 0;
+	}
+}
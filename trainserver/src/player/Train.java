@@ -18,6 +18,20 @@ public class Train {
 		index = newIndex;
 	}
 		
+	/** Copy, for undo */
+	Train(Train other) {
+		index = other.index;
+		restore(other);
+	}
+	
+	/** Put the train back the way it was when the copy was made */
+	void restore(Train saved) {
+		speed = saved.speed;
+		capacity = saved.capacity;
+		loads = saved.loads.clone();
+		loc = saved.loc;
+	}
+		
 	public int index() {return index;}
 	
 	/** Moves the train to the given location.
@@ -29,6 +29,25 @@ public class TurnData {
 		pid = startingPid;
 	}
 	
+	/** Copy, for undo */
+	public TurnData(TurnData other) {
+		gid = other.gid;
+		restore(other);
+	}
+	
+	/** Put the turn back the way it was when the copy was made */
+	public void restore(TurnData saved) {
+		pid = saved.pid;
+		moneyMade = saved.moneyMade;
+		moneySpent = saved.moneySpent;
+		movesMade = saved.movesMade.clone();
+		rentedFrom = new ArrayList<String>(saved.rentedFrom);
+		turnInProgress = saved.turnInProgress;
+		ferried = saved.ferried;
+		upgrade = saved.upgrade;
+		upgradedTrain = saved.upgradedTrain;
+	}
+	
 	public boolean rentedFrom(String pid) {
 		return rentedFrom.contains(pid);
 	}
@@ -0,0 +1,163 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import map.MilepostId;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import train.Game;
+import train.GameException;
+import train.TrainServer;
+
+public class BatchTest extends GameTest {
+
+	static class Result {
+		String messageType;
+		String status;
+	}
+
+	static class Response {
+		boolean applied;
+		int transaction;
+		List<Result> results;
+	}
+
+	private static final Gson gson = new Gson();
+
+	private static final MilepostId[] buildMileposts = new MilepostId[] {
+			new MilepostId(2,18), new MilepostId(2,17), new MilepostId(3,16), new MilepostId(3,15),
+			new MilepostId(4,14), new MilepostId(4,13), new MilepostId(5,12), new MilepostId(5,11),
+			new MilepostId(6,10), new MilepostId(6,9), new MilepostId(6,8), new MilepostId(5,7),
+	};
+	private static final MilepostId[] moveMileposts = new MilepostId[] {
+			new MilepostId(2,17), new MilepostId(3,16), new MilepostId(3,15), new MilepostId(4,14),
+			new MilepostId(4,13), new MilepostId(5,12), new MilepostId(5,11), new MilepostId(6,10),
+	};
+
+	private static Response batch(String gid, String pid, String actions) throws GameException {
+		String request = "{\"messageType\":\"batch\",\"gid\":\"" + gid + "\",\"pid\":\"" + pid
+				+ "\",\"actions\":[" + actions + "]}";
+		return gson.fromJson(TrainServer.batch(request), Response.class);
+	}
+
+	private static String build(MilepostId[] mileposts) {
+		return "{\"messageType\":\"buildTrack\",\"mileposts\":" + gson.toJson(mileposts) + "}";
+	}
+
+	private static String place(MilepostId where) {
+		return "{\"messageType\":\"placeTrain\",\"train\":0,\"where\":" + gson.toJson(where) + "}";
+	}
+
+	private static String move(MilepostId[] mileposts) {
+		return "{\"messageType\":\"moveTrain\",\"train\":0,\"mileposts\":" + gson.toJson(mileposts) + "}";
+	}
+
+	private static final String endTurn = "{\"messageType\":\"endTurn\"}";
+
+	private Game startedGame() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Xavier", "black");
+		startGame(game);
+		skipPastBuildingTurns(game);
+		return game;
+	}
+
+	@Test
+	public void testBatchIsOneTransaction() throws GameException {
+		Game game = startedGame();
+		String gid = TrainServer.getGameId(game);
+		String pid = game.getActivePid();
+		int transaction = game.transaction();
+
+		Response response = batch(gid, pid,
+				build(buildMileposts) + "," + place(new MilepostId(2,18)) + "," + move(moveMileposts));
+		assertTrue(response.applied);
+		assertEquals(transaction + 1, response.transaction);
+		assertEquals(transaction + 1, game.transaction());
+		assertEquals(3, response.results.size());
+		for (Result result: response.results)
+			assertEquals("OK", result.status);
+		assertEquals("moveTrain", response.results.get(2).messageType);
+		assertEquals(new MilepostId(6,10), game.getActivePlayer().getTrains()[0].getLocation().getMilepostId());
+
+		// One undo takes back the whole batch
+		game = undo(gid, pid);
+		assertNull(game.getActivePlayer().getTrains()[0].getLocation());
+		game.buildTrack(pid, buildMileposts);		// track was taken out, so it can be built again
+		game = undo(gid, pid);
+		try {
+			game.undo();
+			fail("Expected a NothingToUndo error");
+		} catch (GameException e) {
+			assertEquals(GameException.NOTHING_TO_UNDO, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testFailedBatchChangesNothing() throws GameException {
+		Game game = startedGame();
+		String gid = TrainServer.getGameId(game);
+		String pid = game.getActivePid();
+		int transaction = game.transaction();
+		int money = game.getActivePlayer().getMoney();
+
+		// The train hasn't been placed, so it can't move
+		Response response = batch(gid, pid, build(buildMileposts) + "," + move(moveMileposts) + "," + endTurn);
+		assertFalse(response.applied);
+		assertEquals(transaction, response.transaction);
+		assertEquals(transaction, game.transaction());
+		assertEquals("Reverted", response.results.get(0).status);
+		assertNotEquals("OK", response.results.get(1).status);
+		assertEquals("NotRun", response.results.get(2).status);
+		assertEquals(pid, game.getActivePid());
+		assertEquals(money, game.getActivePlayer().getMoney());
+		assertTrue(game.testBuildTrack(pid, buildMileposts));
+		game.buildTrack(pid, buildMileposts);		// nothing was left half built
+	}
+
+	@Test
+	public void testBatchEndsTurn() throws GameException {
+		Game game = startedGame();
+		String gid = TrainServer.getGameId(game);
+		String pid = game.getActivePid();
+		int transaction = game.transaction();
+
+		try {
+			batch(gid, pid, endTurn + "," + build(buildMileposts));
+			fail("Ending the turn has to be the last action");
+		} catch (GameException e) {
+			assertEquals(GameException.BAD_MESSAGE, e.getMessage());
+		}
+		try {
+			batch(gid, pid, "{\"messageType\":\"undo\"}");
+			fail("Undo can't be batched");
+		} catch (GameException e) {
+			assertEquals(GameException.INVALID_MESSAGE_TYPE, e.getMessage());
+		}
+
+		Response response = batch(gid, pid, build(buildMileposts) + "," + endTurn);
+		assertTrue(response.applied);
+		assertEquals(transaction + 1, game.transaction());
+		assertNotEquals(pid, game.getActivePid());
+		try {
+			game.undo();
+			fail("The turn is over, so there's nothing to undo");
+		} catch (GameException e) {
+			assertEquals(GameException.NOTHING_TO_UNDO, e.getMessage());
+		}
+
+		// Only the active player can run a batch
+		try {
+			batch(gid, pid, build(buildMileposts));
+			fail("Expected a PlayerNotActive error");
+		} catch (GameException e) {
+			assertEquals(GameException.PLAYER_NOT_ACTIVE, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import train.ByteBufReader;
+import train.ByteBufWriter;
+
+public class ByteBufWriterTest {
+
+	@Test
+	public void testEncodesLikeString() {
+		String[] texts = { "", "{\"status\":\"OK\"}", "Z\u00fcrich", "\u6771\u4eac", "\ud83d\ude82 train", "bad \ud83d pair", "ends high \ud83d" };
+		for (String text: texts) {
+			ByteBuf buf = ByteBufWriter.encode(PooledByteBufAllocator.DEFAULT, text);
+			try {
+				byte[] bytes = new byte[buf.readableBytes()];
+				buf.readBytes(bytes);
+				assertTrue(text, Arrays.equals(text.getBytes(StandardCharsets.UTF_8), bytes));
+			} finally {
+				buf.release();
+			}
+		}
+	}
+
+	@Test
+	public void testStreamsJson() {
+		Gson gson = new Gson();
+		List<String> cities = Arrays.asList("Krak\u00f3w", "Lyon", "S\u00e3o Paulo");
+		for (int sizeHint: new int[] { 0, 4, 1024 }) {
+			ByteBuf buf = ByteBufWriter.toJson(PooledByteBufAllocator.DEFAULT, gson, cities, sizeHint);
+			try {
+				assertTrue(buf.isDirect());
+				assertEquals(gson.toJson(cities), buf.toString(StandardCharsets.UTF_8));
+			} finally {
+				buf.release();
+			}
+		}
+	}
+
+	@Test
+	public void testReadsUtf8() throws IOException {
+		String text = "Z\u00fcrich \u6771\u4eac \ud83d\ude82 train";
+		ByteBuf buf = Unpooled.copiedBuffer(text, StandardCharsets.UTF_8);
+		for (int chunk: new int[] { 1, 2, 3, 1024 }) {
+			ByteBufReader reader = new ByteBufReader(buf);
+			StringBuilder read = new StringBuilder();
+			char[] chars = new char[chunk];
+			int n;
+			while ((n = reader.read(chars, 0, chars.length)) > 0)
+				read.append(chars, 0, n);
+			assertEquals(text, read.toString());
+		}
+		assertEquals(0, buf.readerIndex());
+
+		// Truncated, overlong and invalid sequences are each replaced
+		byte[] bad = { 'a', (byte) 0xc3, 'b', (byte) 0xe6, (byte) 0x9d, (byte) 0xc0, (byte) 0x80, (byte) 0xff };
+		ByteBufReader reader = new ByteBufReader(Unpooled.wrappedBuffer(bad));
+		char[] chars = new char[16];
+		int n = reader.read(chars, 0, chars.length);
+		assertEquals("a\ufffdb\ufffd\ufffd\ufffd", new String(chars, 0, n));
+	}
+}
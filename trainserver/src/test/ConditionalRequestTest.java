@@ -0,0 +1,136 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import train.HttpTrainServer;
+
+public class ConditionalRequestTest {
+
+	static final String serverURL = "http://127.0.0.1:8080/";
+	private static Logger log = LoggerFactory.getLogger(ConditionalRequestTest.class);
+
+	private static Thread startServer() {
+		Thread t = new Thread(() -> {
+			try {
+				HttpTrainServer.startServer();
+			} catch (Exception e) {
+				log.error("Server failed", e);
+			}
+		});
+		t.start();
+		return t;
+	}
+
+	/** Sends the message, and returns the connection once the response is in */
+	private static HttpURLConnection send(String message, boolean isPost, String ifNoneMatch, boolean gzip)
+			throws IOException, InterruptedException {
+		String url = serverURL;
+		if (!isPost)
+			url += "?" + message.replace("\"", "%22");
+		// Wait for the server to come up
+		for (int tryCount = 50; ; --tryCount) {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setRequestProperty("Connection", "close");	// don't leave connections to this server cached for other tests
+			if (ifNoneMatch != null)
+				connection.setRequestProperty("If-None-Match", ifNoneMatch);
+			if (gzip)
+				connection.setRequestProperty("Accept-Encoding", "gzip");
+			try {
+				if (isPost) {
+					connection.setDoOutput(true);
+					connection.getOutputStream().write(message.getBytes("UTF-8"));
+				}
+				connection.getResponseCode();
+				return connection;
+			} catch (java.net.ConnectException e) {
+				if (tryCount <= 0)
+					throw e;
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	private static String read(HttpURLConnection connection) throws IOException {
+		InputStream in = connection.getInputStream();
+		if ("gzip".equals(connection.getHeaderField("Content-Encoding")))
+			in = new GZIPInputStream(in);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int n;
+		while ((n = in.read(chunk)) > 0)
+			out.write(chunk, 0, n);
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	@Test
+	public void testNotModified() throws Exception {
+		Thread serverThread = startServer();
+		try {
+			HttpURLConnection connection = send("{\"messageType\":\"newGame\", \"pid\":\"Louie\", \"color\":\"blue\", \"gameType\":\"africa\", \"name\":\"Conditional\"}", true, null, false);
+			String gid = read(connection).substring(8, 16);
+
+			// Map payloads are tagged by geography and game, whichever way they are encoded
+			String resume = String.format("{\"messageType\":\"resumeGame\", \"gid\":\"%s\", \"pid\":\"Louie\"}", gid);
+			connection = send(resume, true, null, false);
+			String mapTag = connection.getHeaderField("ETag");
+			assertNotNull(mapTag);
+			assertTrue(read(connection).startsWith("{\"gid\":\"" + gid + "\""));
+			assertEquals(304, send(resume, true, mapTag, false).getResponseCode());
+			connection = send(resume, true, null, true);
+			assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+			String gzipTag = connection.getHeaderField("ETag");
+			assertNotEquals(mapTag, gzipTag);
+			assertTrue(read(connection).startsWith("{\"gid\":\"" + gid + "\""));
+			assertEquals(304, send(resume, true, gzipTag, true).getResponseCode());
+
+			// Status is tagged by transaction
+			String status = String.format("{\"messageType\":\"status\",\"gid\":\"%s\"}", gid);
+			connection = send(status, false, null, false);
+			String statusTag = connection.getHeaderField("ETag");
+			assertEquals("no-cache", connection.getHeaderField("Cache-Control"));
+			assertTrue(read(connection).contains("Louie"));
+			connection = send(status, false, statusTag, false);
+			assertEquals(304, connection.getResponseCode());
+			assertEquals(statusTag, connection.getHeaderField("ETag"));
+
+			send(String.format("{\"messageType\":\"joinGame\", \"gid\":\"%s\", \"pid\":\"Huey\", \"color\":\"green\"}", gid), true, null, false);
+			connection = send(status, false, statusTag, true);
+			assertEquals(200, connection.getResponseCode());
+			assertNotEquals(statusTag, connection.getHeaderField("ETag"));
+			assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+			String changedTag = connection.getHeaderField("ETag");
+			assertTrue(read(connection).contains("Huey"));
+			assertEquals(304, send(status, false, changedTag, true).getResponseCode());
+
+			// Small responses aren't worth compressing
+			connection = send("{\"messageType\":\"listGeographies\"}", false, null, true);
+			assertNull(connection.getHeaderField("Content-Encoding"));
+			assertTrue(read(connection).contains("africa"));
+
+			// Everything above shows up in the metrics
+			connection = (HttpURLConnection) new URL(serverURL + "metrics").openConnection();
+			connection.setRequestProperty("Connection", "close");
+			assertEquals(200, connection.getResponseCode());
+			assertTrue(connection.getHeaderField("Content-Type").startsWith("text/plain; version=0.0.4"));
+			String metrics = read(connection);
+			assertTrue(metrics.contains("trainserver_message_phase_seconds_count{type=\"status\",phase=\"serialize\"}"));
+			assertTrue(metrics.contains("trainserver_message_phase_seconds_count{type=\"resumeGame\",phase=\"write\"}"));
+			assertTrue(metrics.contains("trainserver_dispatcher_queued{dispatcher=\"games\"}"));
+			assertTrue(metrics.contains("trainserver_games{state=\"joinable\"}"));
+		} finally {
+			HttpTrainServer.stopServer();
+			serverThread.join();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import train.DataCatalog;
+import train.GameException;
+
+public class DataCatalogTest {
+	private File root;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("catalog").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		// Deepest first, so each folder is empty by the time it's deleted
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(root.toPath())) {
+			paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+		for (Path path: paths)
+			Files.delete(path);
+	}
+
+	private static File makeGeography(File root, String name) throws IOException {
+		File dir = new File(root, name);
+		assertTrue(dir.mkdir());
+		assertTrue(new File(dir, "map.csv").createNewFile());
+		return dir;
+	}
+
+	@Test
+	public void testCatalog() throws IOException, GameException {
+		try {
+			new DataCatalog(root);
+			fail("Empty folder is not a data folder");
+		} catch (GameException e) {
+			// expected case
+		}
+
+		makeGeography(root, "russia");
+		File africa = makeGeography(root, "africa");
+		assertTrue(new File(root, "icons").mkdir());
+		DataCatalog catalog = new DataCatalog(root);
+		assertEquals(Arrays.asList("africa", "russia"), catalog.getGeographies());
+		assertEquals(new File(africa, "map.csv"), catalog.getFile("africa", "map.csv"));
+		try {
+			catalog.getFile("africa", "cards.csv");
+			fail("Expected GameNotFound");
+		} catch (GameException e) {
+			assertEquals(GameException.GAME_NOT_FOUND, e.getMessage());
+		}
+
+		// New files only show up once the folder is scanned again
+		assertTrue(new File(africa, "cards.csv").createNewFile());
+		makeGeography(root, "china");
+		assertEquals(2, catalog.getGeographies().size());
+		catalog.rescan();
+		assertEquals(Arrays.asList("africa", "china", "russia"), catalog.getGeographies());
+		assertEquals(new File(africa, "cards.csv"), catalog.getFile("africa", "cards.csv"));
+	}
+
+	@Test
+	public void testServerCatalog() throws GameException {
+		DataCatalog catalog = DataCatalog.get();
+		assertSame(catalog, DataCatalog.get());
+		assertTrue(catalog.getGeographies().contains("africa"));
+		assertFalse(catalog.getGeographies().contains("artwork"));
+	}
+}
@@ -0,0 +1,115 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import train.GameDispatcher;
+
+public class DispatcherTest {
+
+	@Test
+	public void testMessagesForOneGameStayInOrder() throws InterruptedException {
+		GameDispatcher dispatcher = new GameDispatcher(4, 3);
+		int messageCount = 1000;
+		String[] gids = { "game0001", "game0002", "game0003" };
+		List<List<Integer>> received = new ArrayList<List<Integer>>();
+		for (int g = 0; g < gids.length; ++g)
+			received.add(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(messageCount * gids.length);
+
+		for (int i = 0; i < messageCount; ++i) {
+			for (int g = 0; g < gids.length; ++g) {
+				final int message = i;
+				final List<Integer> log = received.get(g);
+				dispatcher.dispatch(gids[g], () -> {
+					log.add(message);	// not thread safe: relies on the mailbox running one at a time
+					done.countDown();
+				});
+			}
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (List<Integer> log: received) {
+			assertEquals(messageCount, log.size());
+			for (int i = 0; i < messageCount; ++i)
+				assertEquals(i, log.get(i).intValue());
+		}
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testGamesRunInParallel() throws InterruptedException {
+		GameDispatcher dispatcher = new GameDispatcher(2, 16);
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		CountDownLatch done = new CountDownLatch(2);
+		Runnable waitForOther = () -> {
+			bothStarted.countDown();
+			try {
+				// Only finishes if the other game's message is running at the same time
+				if (bothStarted.await(5, TimeUnit.SECONDS))
+					done.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		dispatcher.dispatch("gameAAAA", waitForOther);
+		dispatcher.dispatch("gameBBBB", waitForOther);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testTryDispatchRefusesOverLimits() throws InterruptedException {
+		GameDispatcher dispatcher = new GameDispatcher(1, 16, 5, 2);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(5);
+		Runnable block = () -> {
+			running.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		};
+		// The limit per game is on messages waiting, so wait for the first to be taken off
+		assertTrue(dispatcher.tryDispatch("gameAAAA", block));
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+		assertTrue(dispatcher.tryDispatch("gameAAAA", block));
+		assertTrue(dispatcher.tryDispatch("gameAAAA", block));
+		assertFalse("game's mailbox is full", dispatcher.tryDispatch("gameAAAA", block));
+		assertTrue(dispatcher.tryDispatch("gameBBBB", block));
+		assertTrue(dispatcher.tryDispatch("gameCCCC", block));
+		assertFalse("dispatcher is full", dispatcher.tryDispatch("gameDDDD", block));
+		assertTrue(dispatcher.isBusy());
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testWhenDrainedRunsOnceQueueEmpties() throws InterruptedException {
+		GameDispatcher dispatcher = new GameDispatcher(1, 16, 8, 8);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch drained = new CountDownLatch(1);
+		for (int i = 0; i < 6; ++i)
+			assertTrue(dispatcher.tryDispatch("gameAAAA", () -> {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}));
+		dispatcher.whenDrained(drained::countDown);
+		assertEquals(1, drained.getCount());
+		release.countDown();
+		assertTrue(drained.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+}
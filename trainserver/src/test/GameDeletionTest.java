@@ -2,6 +2,8 @@ package test;
 
 import static org.junit.Assert.*;
 
+import java.util.Map;
+
 import org.junit.Test;
 
 import train.GameException;
@@ -14,6 +16,7 @@ public class GameDeletionTest extends GameTest{
 	public void testGameDeletion() {
 		long expiration = 500;
 		TrainServer.resetExpirations(expiration, expiration, expiration);
+		Map<String, Long> expiredBefore = TrainServer.expiredGames();
 
 		// Test deletion of games created and not started
 		try {
@@ -53,6 +56,11 @@ public class GameDeletionTest extends GameTest{
 			
 		}
 		TrainServer.resetExpirations();
+		
+		// One of each
+		Map<String, Long> expired = TrainServer.expiredGames();
+		for (String reason: new String[] { "notStarted", "ended", "abandoned" })
+			assertEquals(reason, expiredBefore.get(reason) + 1, (long) expired.get(reason));
 }
 
 }
@@ -0,0 +1,34 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import train.Game;
+import train.GameRegistry;
+
+public class GameRegistryTest {
+
+	@Test
+	public void testRegistry() {
+		GameRegistry registry = new GameRegistry(4);
+		Game first = new Game();
+		Game second = new Game();
+		assertTrue(registry.add("aaaaaaaa", first));
+		assertTrue(registry.add("bbbbbbbb", second));
+		assertFalse(registry.add("aaaaaaaa", second));	// gid already taken
+		assertEquals(2, registry.size());
+		assertSame(first, registry.get("aaaaaaaa"));
+		assertEquals("bbbbbbbb", registry.getGameId(second));
+		assertEquals(null, registry.get("cccccccc"));
+
+		List<String> removed = registry.removeIf(game -> game == second);
+		assertEquals(1, removed.size());
+		assertEquals("bbbbbbbb", removed.get(0));
+		assertEquals(null, registry.getGameId(second));
+		assertSame(first, registry.remove("aaaaaaaa"));
+		assertEquals(0, registry.size());
+	}
+}
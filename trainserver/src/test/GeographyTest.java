@@ -0,0 +1,43 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import train.Game;
+import train.GameException;
+import train.Geography;
+import train.TrainServer;
+
+public class GeographyTest extends GameTest {
+
+	@Test
+	public void testSharedGeography() throws GameException {
+		Game first = TrainServer.getGame(newGame("Louie", "blue", "africa"));
+		Game second = TrainServer.getGame(newGame("Huey", "green", "africa"));
+		int references = Geography.references("africa");
+		assertTrue(references >= 2);
+
+		// Games share the map and cities, but each has its own deck
+		assertSame(first.gameData.getMap(), second.gameData.getMap());
+		assertSame(first.gameData.getCities(), second.gameData.getCities());
+		assertNotSame(first.gameData.getDeck(), second.gameData.getDeck());
+		assertEquals(first.gameData.getDeck().size(), second.gameData.getDeck().size());
+		try {
+			first.gameData.getCities().clear();
+			fail("Shared cities should not be changeable");
+		} catch (UnsupportedOperationException e) {
+			// expected case
+		}
+
+		// Deleting a game gives up its use of the geography, only once
+		TrainServer.removeOldGames(game -> game == first);
+		assertEquals(references - 1, Geography.references("africa"));
+		first.gameData.release();
+		assertEquals(references - 1, Geography.references("africa"));
+
+		// Still in use, so the geography stays loaded
+		Geography.evictUnused();
+		assertSame(second.gameData.getMap(), TrainServer.getGame(newGame("Dewey", "red", "africa")).gameData.getMap());
+	}
+}
@@ -0,0 +1,175 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import map.MilepostId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import player.Player;
+import train.Game;
+import train.GameDispatcher;
+import train.GameException;
+import train.Hibernator;
+import train.Journal;
+import train.TrainServer;
+
+public class HibernatorTest extends GameTest {
+	private Path dir;
+	private Hibernator hibernator;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("hibernated");
+		hibernator = new Hibernator(dir, 60000);
+		TrainServer.setHibernator(hibernator);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TrainServer.setHibernator(null);
+		for (Path file: Files.newDirectoryStream(dir))
+			Files.delete(file);
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testHibernateAndWake() throws GameException, InterruptedException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Huey", "green");
+		startGame(game);
+		String active = game.getActivePid();
+		game.buildTrack(active, new MilepostId[]{ new MilepostId(34, 58), new MilepostId(33, 58), new MilepostId(32, 58) });
+		game.endTurn(active);
+		Player before = game.getPlayer(active);
+		int transaction = game.transaction();
+
+		// Only games that have gone unused for long enough go to sleep
+		assertFalse(TrainServer.hibernate(gid, 60000));
+		assertFalse(TrainServer.idleGames(60000).contains(gid));
+		Thread.sleep(5);
+		assertTrue(TrainServer.idleGames(1).contains(gid));
+		assertTrue(TrainServer.hibernate(gid, 1));
+		assertEquals(1, hibernator.size());
+		assertTrue(Files.exists(dir.resolve(gid + ".hibernated")));
+
+		// Still listed, without being woken
+		assertTrue(TrainServer.list("{\"listType\":\"resumeable\"}").contains(gid));
+		assertFalse(TrainServer.list("{\"listType\":\"joinable\"}").contains(gid));
+		assertEquals(1, hibernator.size());
+
+		// Asking for its status wakes it
+		String status = TrainServer.status(String.format("{\"gid\":\"%s\"}", gid));
+		assertTrue(status.contains("\"transaction\":" + transaction));
+		assertEquals(0, hibernator.size());
+		assertFalse(Files.exists(dir.resolve(gid + ".hibernated")));
+		Game woken = TrainServer.getGame(gid);
+		assertNotSame(game, woken);
+		assertEquals(transaction, woken.transaction());
+		assertEquals(game.getActivePid(), woken.getActivePid());
+		Player after = woken.getPlayer(active);
+		assertEquals(before.getMoney(), after.getMoney());
+		assertEquals(before.getCards()[0].trips[0].dest, after.getCards()[0].trips[0].dest);
+		assertEquals(game.getGlobalRail().getRail(active).getRail(), woken.getGlobalRail().getRail(active).getRail());
+		assertEquals(game.gameData.cardsDealt(), woken.gameData.cardsDealt());
+
+		// And it can be played on
+		woken.endTurn(woken.getActivePid());
+		assertEquals(transaction + 1, woken.transaction());
+	}
+
+	@Test
+	public void testHibernatedGamesExpire() throws GameException, InterruptedException {
+		String gid = newGame("Louie", "blue", "africa");
+		Thread.sleep(5);
+		assertTrue(TrainServer.hibernate(gid, 1));
+		assertEquals(1, hibernator.size());
+
+		TrainServer.resetExpirations(1, 1, 1);
+		Thread.sleep(5);
+		TrainServer.removeOldGames();
+		TrainServer.resetExpirations();
+		assertEquals(0, hibernator.size());
+		assertFalse(Files.exists(dir.resolve(gid + ".hibernated")));
+		assertNull(TrainServer.getGame(gid));
+	}
+
+	/** After a restart, the journal brings back every game, hibernated or not; the idle ones
+	 * go straight back to sleep, with the state from the journal
+	 */
+	@Test
+	public void testRestartRehibernatesIdleGames() throws Exception {
+		Path journalDir = Files.createTempDirectory("journal");
+		GameDispatcher dispatcher = new GameDispatcher();
+		try {
+			TrainServer.recover(new Journal(journalDir, 1000));
+			String gid = newGame("Louie", "blue", "africa");
+			TrainServer.joinGame(String.format("{\"messageType\":\"joinGame\", \"gid\":\"%s\", \"pid\":\"Huey\", \"color\":\"green\"}", gid));
+			Thread.sleep(5);
+			assertTrue(TrainServer.hibernate(gid, 1));
+			assertTrue(Files.exists(dir.resolve(gid + ".hibernated")));
+
+			// Restart: the journal restores the game into memory, and the hibernator drops its file
+			TrainServer.closeJournal();
+			TrainServer.setHibernator(null);
+			assertEquals(1, TrainServer.recover(new Journal(journalDir, 1000)));
+			assertNotNull(TrainServer.getGame(gid));
+			hibernator = new Hibernator(dir, 1);
+			TrainServer.setHibernator(hibernator);
+			assertFalse(Files.exists(dir.resolve(gid + ".hibernated")));
+			Thread.sleep(5);
+			assertTrue(TrainServer.idleGames(0).contains(gid));
+
+			// Sooner than the hibernator's first regular check, a second from now
+			hibernator.start(dispatcher);
+			long wait = System.currentTimeMillis() + 500;
+			while (TrainServer.idleGames(0).contains(gid) && System.currentTimeMillis() < wait)
+				Thread.sleep(20);
+			hibernator.stop();
+			assertFalse(TrainServer.idleGames(0).contains(gid));
+			assertTrue(Files.exists(dir.resolve(gid + ".hibernated")));
+			assertEquals(2, TrainServer.getGame(gid).getPlayers().size());
+		} finally {
+			hibernator.stop();
+			dispatcher.shutdown();
+			TrainServer.closeJournal();
+			for (Path file: Files.newDirectoryStream(journalDir))
+				Files.delete(file);
+			Files.delete(journalDir);
+		}
+	}
+
+	/** A hibernated game's expiry going off deletes that game, when it's due, and no other */
+	@Test
+	public void testHibernatedGameExpiresOnItsOwn() throws GameException, InterruptedException {
+		TrainServer.resetExpirations(60000, 1000, 60000);
+		try {
+			String playing = newGame("Dewey", "red", "africa");
+			startGame(TrainServer.getGame(playing));
+			String due = newGame("Louie", "blue", "africa");
+			Thread.sleep(500);
+			TrainServer.getGame(due).joinGame("Huey", "green");	// puts its time back, after its timer was set
+			Thread.sleep(5);
+			assertTrue(TrainServer.hibernate(due, 1));
+			assertTrue(TrainServer.hibernate(playing, 1));
+
+			// The first time its timer goes off, it isn't due yet, and is put back for its own time
+			long wait = System.currentTimeMillis() + 5000;
+			while (TrainServer.gameCounts().get("hibernated") > 1 && System.currentTimeMillis() < wait)
+				Thread.sleep(20);
+			assertEquals(1, hibernator.size());
+			assertFalse(Files.exists(dir.resolve(due + ".hibernated")));
+			assertTrue(Files.exists(dir.resolve(playing + ".hibernated")));
+			assertNotNull(TrainServer.getGame(playing));
+		} finally {
+			TrainServer.resetExpirations();
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import map.MilepostId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import player.Player;
+import player.Train;
+import reference.Card;
+import reference.Trip;
+import train.Game;
+import train.GameException;
+import train.Journal;
+import train.TrainServer;
+
+public class JournalTest extends GameTest {
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("journal");
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		TrainServer.closeJournal();
+		for (Path file: Files.newDirectoryStream(dir))
+			Files.delete(file);
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testRecoverFromJournal() throws Exception {
+		TrainServer.recover(new Journal(dir, 1000));
+		String gid = playSomeTurns();
+		Game game = TrainServer.getGame(gid);
+		String before = describe(game);
+
+		Game recovered = restart(gid, 1000);
+		assertNotSame(game, recovered);
+		assertEquals(before, describe(recovered));
+		assertEquals(game.transaction(), recovered.transaction());
+
+		// The recovered game goes on being played, and journaled
+		String active = recovered.getActivePid();
+		TrainServer.endTurn(message("endTurn", gid, active));
+		assertNotEquals(active, recovered.getActivePid());
+		String after = describe(recovered);
+		assertEquals(after, describe(restart(gid, 1000)));
+	}
+
+	@Test
+	public void testSnapshotAndTornEntry() throws Exception {
+		TrainServer.recover(new Journal(dir, 2));
+		String gid = playSomeTurns();
+		String before = describe(TrainServer.getGame(gid));
+		TrainServer.closeJournal();
+		assertTrue(Files.exists(dir.resolve(gid + ".snapshot")));
+
+		// A crash in the middle of writing an entry leaves it without its newline
+		Path journal = dir.resolve(gid + ".journal");
+		long size = Files.exists(journal) ? Files.size(journal) : 0;
+		Files.write(journal, "99\t0\tendTurn\t{\"gid\":\"".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+		assertEquals(before, describe(restart(gid, 2)));
+		assertEquals("torn entry is dropped from the file", size, Files.size(journal));
+	}
+
+	@Test
+	public void testRemovedGameLeavesNoFiles() throws Exception {
+		TrainServer.recover(new Journal(dir, 2));
+		String gid = playSomeTurns();
+		Game game = TrainServer.getGame(gid);
+		TrainServer.removeOldGames(g -> g == game);
+		TrainServer.closeJournal();
+		assertFalse(Files.exists(dir.resolve(gid + ".journal")));
+		assertFalse(Files.exists(dir.resolve(gid + ".snapshot")));
+	}
+
+	@Test
+	public void testFailedWriteIsNotDurable() throws Exception {
+		FailingJournal journal = new FailingJournal(dir);
+		TrainServer.recover(journal);
+		String gid = playSomeTurns();
+		Game game = TrainServer.getGame(gid);
+		assertEquals("durable", outcome(journal, gid));
+
+		// The disk goes bad: the change is made, but mustn't be reported as saved. (A build,
+		// so the game isn't at rest, and no snapshot can cover it.)
+		journal.failing = true;
+		String active = game.getActivePid();
+		TrainServer.buildTrack(String.format("{\"messageType\":\"buildTrack\", \"gid\":\"%s\", \"pid\":\"%s\", "
+				+ "\"mileposts\":[{\"x\":2,\"y\":20},{\"x\":3,\"y\":20}]}", gid, active));
+		assertEquals("failed", outcome(journal, gid));
+
+		// The disk comes back, but the journal now has a gap, so the next entry isn't written;
+		// instead the game is snapshotted as soon as it's at rest
+		journal.failing = false;
+		TrainServer.endTurn(message("endTurn", gid, active));
+		assertEquals("durable", outcome(journal, gid));
+		assertTrue(Files.exists(dir.resolve(gid + ".snapshot")));
+
+		String before = describe(game);
+		assertEquals(before, describe(restart(gid, 1000)));
+	}
+
+	@Test
+	public void testOpenFilesAreBounded() throws Exception {
+		FailingJournal journal;
+		System.setProperty("journalMaxOpen", "2");
+		try {
+			journal = new FailingJournal(dir);
+		} finally {
+			System.clearProperty("journalMaxOpen");
+		}
+		TrainServer.recover(journal);
+		Map<String, String> before = new TreeMap<String, String>();
+		Set<Game> played = new HashSet<Game>();
+		for (int i = 0; i < 4; ++i) {
+			String gid = playSomeTurns();
+			before.put(gid, describe(TrainServer.getGame(gid)));
+			played.add(TrainServer.getGame(gid));
+			assertEquals("durable", outcome(journal, gid));
+			assertTrue(journal.open.get() <= 2);
+		}
+		assertTrue(journal.opened.get() > 2);		// files were closed and opened again
+		TrainServer.closeJournal();
+		TrainServer.removeOldGames(played::contains);
+		assertEquals(4, TrainServer.recover(new Journal(dir, 1000)));
+		for (Map.Entry<String, String> game: before.entrySet())
+			assertEquals(game.getValue(), describe(TrainServer.getGame(game.getKey())));
+	}
+
+	@Test
+	public void testRejectedDeliveryDealsNoCard() throws Exception {
+		TrainServer.recover(new Journal(dir, 1000));
+		String gid = playSomeTurns();
+		Game game = TrainServer.getGame(gid);
+		while (game.getTurns() < 3)
+			TrainServer.endTurn(message("endTurn", gid, game.getActivePid()));
+		String active = game.getActivePid();
+		TrainServer.placeTrain(String.format("{\"messageType\":\"placeTrain\", \"gid\":\"%s\", \"pid\":\"%s\", "
+				+ "\"train\":0, \"where\":{\"x\":34,\"y\":58}}", gid, active));
+
+		// Nothing on the train to deliver: turned away, and not journaled, so it mustn't deal
+		int dealt = game.gameData.cardsDealt();
+		try {
+			TrainServer.deliverLoad(String.format("{\"messageType\":\"deliverLoad\", \"gid\":\"%s\", \"pid\":\"%s\", "
+					+ "\"train\":0, \"load\":\"Diamonds\", \"card\":0}", gid, active));
+			fail("Delivered a load the train doesn't have");
+		} catch (GameException e) {
+			assertEquals("InvalidDelivery", e.getMessage());
+		}
+		assertEquals(dealt, game.gameData.cardsDealt());
+
+		String before = describe(game);
+		assertEquals(before, describe(restart(gid, 1000)));
+	}
+
+	/** Which callback whenDurable calls for everything journaled for the game so far */
+	private static String outcome(Journal journal, String gid) throws Exception {
+		CompletableFuture<String> result = new CompletableFuture<String>();
+		journal.whenDurable(gid, () -> result.complete("durable"), () -> result.complete("failed"));
+		return result.get(5, TimeUnit.SECONDS);
+	}
+
+	/** A journal whose files fail to write or sync while it's told to, and that counts them */
+	private static class FailingJournal extends Journal {
+		volatile boolean failing;
+		final AtomicInteger open = new AtomicInteger();
+		final AtomicInteger opened = new AtomicInteger();
+
+		FailingJournal(Path dir) throws IOException {
+			super(dir, 1000);
+		}
+
+		@Override
+		protected FileChannel open(Path journal) throws IOException {
+			FileChannel file = super.open(journal);
+			open.incrementAndGet();
+			opened.incrementAndGet();
+			return new FailingChannel(file);
+		}
+
+		private class FailingChannel extends FileChannel {
+			private final FileChannel file;
+
+			FailingChannel(FileChannel file) {
+				this.file = file;
+			}
+
+			private void check() throws IOException {
+				if (failing)
+					throw new IOException("disk failed");
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				check();
+				return file.write(src);
+			}
+
+			@Override
+			public void force(boolean metaData) throws IOException {
+				check();
+				file.force(metaData);
+			}
+
+			@Override
+			public FileChannel truncate(long size) throws IOException {
+				check();
+				file.truncate(size);
+				return this;
+			}
+
+			@Override public int read(ByteBuffer dst) throws IOException { return file.read(dst); }
+			@Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return file.read(dsts, offset, length); }
+			@Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { check(); return file.write(srcs, offset, length); }
+			@Override public long position() throws IOException { return file.position(); }
+			@Override public FileChannel position(long newPosition) throws IOException { file.position(newPosition); return this; }
+			@Override public long size() throws IOException { return file.size(); }
+			@Override public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return file.transferTo(position, count, target); }
+			@Override public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { check(); return file.transferFrom(src, position, count); }
+			@Override public int read(ByteBuffer dst, long position) throws IOException { return file.read(dst, position); }
+			@Override public int write(ByteBuffer src, long position) throws IOException { check(); return file.write(src, position); }
+			@Override public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return file.map(mode, position, size); }
+			@Override public FileLock lock(long position, long size, boolean shared) throws IOException { return file.lock(position, size, shared); }
+			@Override public FileLock tryLock(long position, long size, boolean shared) throws IOException { return file.tryLock(position, size, shared); }
+			@Override protected void implCloseChannel() throws IOException { open.decrementAndGet(); file.close(); }
+		}
+	}
+
+	/** Two players through a few turns, with building and an undo, all through the journaled calls */
+	private String playSomeTurns() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		TrainServer.joinGame(String.format("{\"messageType\":\"joinGame\", \"gid\":\"%s\", \"pid\":\"Huey\", \"color\":\"green\"}", gid));
+		for (String pid: new String[] { "Louie", "Huey" })
+			TrainServer.startGame(String.format("{\"messageType\":\"startGame\", \"gid\":\"%s\", \"pid\":\"%s\", \"ready\":true}", gid, pid));
+		Game game = TrainServer.getGame(gid);
+		String first = game.getActivePid();
+		TrainServer.buildTrack(String.format("{\"messageType\":\"buildTrack\", \"gid\":\"%s\", \"pid\":\"%s\", "
+				+ "\"mileposts\":[{\"x\":34,\"y\":58},{\"x\":33,\"y\":58},{\"x\":32,\"y\":58}]}", gid, first));
+		TrainServer.endTurn(message("endTurn", gid, first));
+		String second = game.getActivePid();
+		TrainServer.buildTrack(String.format("{\"messageType\":\"buildTrack\", \"gid\":\"%s\", \"pid\":\"%s\", "
+				+ "\"mileposts\":[{\"x\":2,\"y\":20},{\"x\":3,\"y\":20}]}", gid, second));
+		undo(gid, second);
+		TrainServer.endTurn(message("endTurn", gid, second));
+		return gid;
+	}
+
+	private static String message(String messageType, String gid, String pid) {
+		return String.format("{\"messageType\":\"%s\", \"gid\":\"%s\", \"pid\":\"%s\"}", messageType, gid, pid);
+	}
+
+	/** Drops the game from memory, as a crash would, and reads it back from the journal */
+	private Game restart(String gid, int snapshotEvery) throws Exception {
+		TrainServer.closeJournal();
+		Game game = TrainServer.getGame(gid);
+		if (game != null)
+			TrainServer.removeOldGames(g -> g == game);
+		assertNull(TrainServer.getGame(gid));
+		assertEquals(1, TrainServer.recover(new Journal(dir, snapshotEvery)));
+		Game recovered = TrainServer.getGame(gid);
+		assertNotNull(recovered);
+		return recovered;
+	}
+
+	/** Everything about the game a player could see, in an order that doesn't depend on hashing */
+	private static String describe(Game game) throws GameException {
+		StringBuilder s = new StringBuilder();
+		s.append("turns=").append(game.getTurns()).append(" active=").append(game.getActivePid())
+			.append(" transaction=").append(game.transaction()).append(" dealt=").append(game.gameData.cardsDealt());
+		for (String pid: new TreeSet<String>(game.getPids())) {
+			Player p = game.getPlayer(pid);
+			s.append("\n").append(pid).append(" ").append(p.color).append(" $").append(p.getMoney());
+			for (Card card: p.getCards())
+				for (Trip trip: card.trips)
+					s.append(" ").append(trip.load).append(">").append(trip.dest);
+			for (Train train: p.getTrains())
+				s.append(" train@").append(train.getLocation() == null ? null : train.getLocation().getMilepostId());
+			Map<MilepostId, Set<MilepostId>> rail = new TreeMap<MilepostId, Set<MilepostId>>();
+			for (Map.Entry<MilepostId, Set<MilepostId>> track: game.getGlobalRail().getRail(pid).getRail().entrySet())
+				rail.put(track.getKey(), new TreeSet<MilepostId>(track.getValue()));
+			s.append(" rail=").append(rail);
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,101 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import train.Game;
+import train.HttpTrainServer;
+import train.TrainServer;
+
+public class LongPollTest {
+
+	static final String serverURL = "http://127.0.0.1:8080/";
+	private static Logger log = LoggerFactory.getLogger(LongPollTest.class);
+
+	private static Thread startServer() {
+		Thread t = new Thread(() -> {
+			try {
+				HttpTrainServer.startServer();
+			} catch (Exception e) {
+				log.error("Server failed", e);
+			}
+		});
+		t.start();
+		return t;
+	}
+
+	private static String send(String message, boolean isPost) throws IOException, InterruptedException {
+		String url = serverURL;
+		if (!isPost)
+			url += "?" + message.replace("\"", "%22");
+		// Wait for the server to come up
+		for (int tryCount = 50; ; --tryCount) {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setReadTimeout(60 * 1000);
+			connection.setRequestProperty("Connection", "close");	// don't leave connections to this server cached for other tests
+			try {
+				if (isPost) {
+					connection.setDoOutput(true);
+					connection.getOutputStream().write(message.getBytes("UTF-8"));
+				}
+				BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+				StringBuilder response = new StringBuilder();
+				String line;
+				while ((line = reader.readLine()) != null)
+					response.append(line);
+				return response.toString();
+			} catch (java.net.ConnectException e) {
+				if (tryCount <= 0)
+					throw e;
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	@Test
+	public void testStatusWaitsForChange() throws Exception {
+		Thread serverThread = startServer();
+		try {
+			String response = send("{\"messageType\":\"newGame\", \"pid\":\"Louie\", \"color\":\"blue\", \"gameType\":\"africa\", \"name\":\"LongPoll\"}", true);
+			String gid = response.substring(8, 16);
+			Game game = TrainServer.getGame(gid);
+			int transaction = game.transaction();
+
+			// Nothing has changed, so this should wait until the join comes in
+			long joinDelay = 1000;
+			Thread joiner = new Thread(() -> {
+				try {
+					Thread.sleep(joinDelay);
+					send(String.format("{\"messageType\":\"joinGame\", \"gid\":\"%s\", \"pid\":\"Huey\", \"color\":\"green\"}", gid), true);
+				} catch (Exception e) {
+					log.error("Join failed", e);
+				}
+			});
+			joiner.start();
+			long start = System.currentTimeMillis();
+			String status = send(String.format("{\"messageType\":\"status\",\"gid\":\"%s\",\"sinceTransaction\":%d}", gid, transaction), false);
+			long elapsed = System.currentTimeMillis() - start;
+			joiner.join();
+			log.info("Long poll returned after {}ms: {}", elapsed, status);
+			assertTrue(elapsed >= joinDelay / 2);
+			assertTrue(status.contains("Huey"));
+			assertTrue(status.contains("\"transaction\":" + game.transaction()));
+
+			// Client is behind, so this should come back right away
+			status = send(String.format("{\"messageType\":\"status\",\"gid\":\"%s\",\"sinceTransaction\":%d}", gid, transaction), false);
+			assertTrue(status.contains("Huey"));
+		} finally {
+			HttpTrainServer.stopServer();
+			serverThread.join();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import map.Edge;
+import map.Ferry;
+import map.MapFile;
+import map.Milepost;
+import map.TrainMap;
+
+import org.junit.Test;
+
+import reference.City;
+import train.Game;
+import train.GameException;
+import train.MapCompiler;
+import train.TrainServer;
+
+public class MapFileTest extends GameTest {
+
+	@Test
+	public void testCompiledMap() throws GameException, IOException {
+		Game game = TrainServer.getGame(newGame("Louie", "blue", "africa"));
+		TrainMap map = game.gameData.getMap();
+		Map<String, City> cities = game.gameData.getCities();
+		List<String> problems = MapCompiler.validate(map, cities, game.gameData.getLoads(), game.gameData.getDeck());
+		assertEquals(problems.toString(), 0, problems.size());
+
+		File file = File.createTempFile("africa", ".bin");
+		file.deleteOnExit();
+		long start = System.nanoTime();
+		MapCompiler.compile("africa", file);
+		log.info("Compiled africa in {} ms, {} bytes", (System.nanoTime() - start) / 1000000, file.length());
+		start = System.nanoTime();
+		TrainMap compiled = MapFile.read(file, cities);
+		log.info("Loaded compiled africa in {} ms", (System.nanoTime() - start) / 1000000);
+
+		// Same mileposts, cities and edges as the map read from the csv files
+		assertEquals(map.getWidth(), compiled.getWidth());
+		assertEquals(map.getHeight(), compiled.getHeight());
+		assertEquals(map.getSerializeData().orderedMileposts.size(), compiled.getSerializeData().orderedMileposts.size());
+		assertEquals(map.getSerializeData().mpWidth, compiled.getSerializeData().mpWidth);
+		assertEquals(map.getSerializeData().leftOffset, compiled.getSerializeData().leftOffset);
+		assertEquals(map.getMajorCities().size(), compiled.getMajorCities().size());
+		int ferries = 0;
+		for (Milepost mp: map.getSerializeData().orderedMileposts) {
+			Milepost other = compiled.getMilepost(mp.id);
+			assertEquals(mp.type, other.type);
+			assertSame(mp.city, other.city);
+			for (int i = 0; i < 6; ++i) {
+				Edge edge = mp.edges[i];
+				Edge otherEdge = other.edges[i];
+				if (edge == null) {
+					assertNull(otherEdge);
+					continue;
+				}
+				assertEquals(edge.destination.id, otherEdge.destination.id);
+				assertEquals(edge.cost, otherEdge.cost);
+				assertEquals(edge instanceof Ferry, otherEdge instanceof Ferry);
+				if (edge instanceof Ferry)
+					++ferries;
+			}
+		}
+		assertTrue(ferries > 0);
+	}
+
+	@Test
+	public void testRejectsBadData() throws GameException {
+		Game game = TrainServer.getGame(newGame("Louie", "blue", "africa"));
+		Map<String, City> cities = new HashMap<String, City>(game.gameData.getCities());
+		cities.remove(cities.keySet().iterator().next());
+		Map<String, Set<City>> loads = game.gameData.getLoads();
+		List<String> problems = MapCompiler.validate(game.gameData.getMap(), cities, loads, game.gameData.getDeck());
+		assertFalse(problems.isEmpty());
+
+		assertBadMapData(new byte[] { 'T', 'M', 'A', 'P', 0, 0, 0, 1, 0, 0 }, cities);
+	}
+
+	@Test
+	public void testRejectsSizesThatDontMatchTheMileposts() throws GameException, IOException {
+		Game game = TrainServer.getGame(newGame("Louie", "blue", "africa"));
+		Map<String, City> cities = game.gameData.getCities();
+		File file = File.createTempFile("africa", ".bin");
+		try {
+			MapCompiler.compile("africa", file);
+			byte[] compiled = Files.readAllBytes(file.toPath());
+			ByteBuffer good = ByteBuffer.wrap(compiled);
+			int width = good.getInt(8);
+			int height = good.getInt(12);
+			assertEquals(width, MapFile.read(ByteBuffer.wrap(compiled), cities).getWidth());
+
+			// A row longer than the map is wide
+			ByteBuffer bad = ByteBuffer.wrap(compiled.clone());
+			bad.putShort(32, (short) (width + 1));
+			assertBadMapData(bad.array(), cities);
+
+			// Wider than any of its rows, or too wide to make
+			bad = ByteBuffer.wrap(compiled.clone());
+			bad.putInt(8, width + 1);
+			assertBadMapData(bad.array(), cities);
+			bad.putInt(8, Integer.MAX_VALUE);
+			assertBadMapData(bad.array(), cities);
+
+			// More or fewer rows than there are mileposts for
+			bad = ByteBuffer.wrap(compiled.clone());
+			bad.putInt(12, height - 1);
+			assertBadMapData(bad.array(), cities);
+			bad.putInt(12, Integer.MAX_VALUE);
+			assertBadMapData(bad.array(), cities);
+
+			// A row shorter than the mileposts written for it
+			bad = ByteBuffer.wrap(compiled.clone());
+			bad.putShort(32, (short) (good.getShort(32) - 1));
+			assertBadMapData(bad.array(), cities);
+		} finally {
+			Files.delete(file.toPath());
+		}
+	}
+
+	private static void assertBadMapData(byte[] data, Map<String, City> cities) {
+		try {
+			MapFile.read(ByteBuffer.wrap(data), cities);
+			fail("Expected BadMapData");
+		} catch (GameException e) {
+			assertEquals(GameException.BAD_MAP_DATA, e.getMessage());
+		}
+	}
+}
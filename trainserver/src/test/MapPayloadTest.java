@@ -0,0 +1,64 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import train.Game;
+import train.GameException;
+import train.MapPayload;
+import train.TrainServer;
+
+public class MapPayloadTest extends GameTest {
+
+	private static String gunzip(ByteBuf buf) throws IOException {
+		byte[] bytes = new byte[buf.readableBytes()];
+		buf.getBytes(buf.readerIndex(), bytes);
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));	// checks the crc and length
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int n;
+		while ((n = in.read(chunk)) > 0)
+			out.write(chunk, 0, n);
+		return new String(out.toByteArray(), CharsetUtil.UTF_8);
+	}
+
+	@Test
+	public void testPayload() throws GameException, IOException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		MapPayload payload = game.gameData.getPayload();
+		String response = resumeGame(gid, "Louie");
+		assertEquals(response, payload.toJson(gid));
+		assertTrue(response.startsWith("{\"gid\":\"" + gid + "\",\"geography\":\"africa\",\"mapData\":{"));
+
+		// Shared by every game on the geography
+		String other = newGame("Huey", "green", "africa");
+		assertSame(payload, TrainServer.getGame(other).gameData.getPayload());
+
+		ByteBuf plain = payload.encode(gid);
+		assertEquals(response, plain.toString(CharsetUtil.UTF_8));
+		plain.release();
+
+		ByteBuf gzip = payload.encodeGzip(gid);
+		assertTrue(gzip.readableBytes() < plain.readableBytes() / 4);
+		assertEquals(response, gunzip(gzip));
+		gzip.release();
+
+		// Releasing a response doesn't touch the shared copy
+		assertEquals(payload.toJson(other), gunzip(payload.encodeGzip(other)));
+		log.info("Map payload is {} bytes, {} compressed", payload.size(), payload.compressedSize());
+	}
+
+	private static String resumeGame(String gid, String pid) throws GameException {
+		return TrainServer.resumeGame(String.format("{\"messageType\":\"resumeGame\", \"gid\":\"%s\", \"pid\":\"%s\"}", gid, pid));
+	}
+}
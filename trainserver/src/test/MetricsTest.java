@@ -0,0 +1,100 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import org.junit.Test;
+
+import train.Metrics;
+import train.ResponseCounter;
+import train.ThresholdContentCompressor;
+
+public class MetricsTest {
+
+	@Test
+	public void testPercentiles() {
+		Metrics.Histogram histogram = new Metrics.Histogram();
+		assertEquals(0, histogram.percentile(0.5));
+		for (int micros = 1; micros <= 1000; ++micros)
+			histogram.record(micros * 1000L);
+		assertEquals(1000, histogram.count());
+		// Bucket bounds are within a quarter of the value
+		assertWithin(500000, histogram.percentile(0.5));
+		assertWithin(990000, histogram.percentile(0.99));
+		assertWithin(1000000, histogram.percentile(1));
+
+		histogram.record(Long.MAX_VALUE);		// longer than the buckets go
+		histogram.record(-1);
+		assertEquals(1002, histogram.count());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " ~ " + actual, actual >= expected && actual <= expected * 1.25);
+	}
+
+	@Test
+	public void testScrape() {
+		Metrics.record("testMoveTrain", Metrics.Phase.LOGIC, 3000000);
+		Metrics.record("testMoveTrain", Metrics.Phase.LOGIC, 5000);
+		Metrics.recordResponse();
+		Metrics.recordResponseBytes(100);
+		String scraped = Metrics.scrape(null);
+		String labels = "{type=\"testMoveTrain\",phase=\"logic\"";
+		assertTrue(scraped.contains("trainserver_message_phase_seconds_count" + labels + "} 2\n"));
+		assertTrue(scraped.contains("trainserver_message_phase_seconds_bucket" + labels + ",le=\"8.0E-6\"} 1\n"));
+		assertTrue(scraped.contains("trainserver_message_phase_seconds_bucket" + labels + ",le=\"+Inf\"} 2\n"));
+		assertFalse("phases with nothing recorded are left out", scraped.contains("{type=\"testMoveTrain\",phase=\"write\""));
+		assertTrue(scraped.contains("# TYPE trainserver_response_bytes_total counter\n"));
+		assertTrue(scraped.contains("trainserver_games{state=\"playing\"}"));
+		assertTrue(scraped.contains("trainserver_status_cache_hits_total "));
+	}
+
+	@Test
+	public void testResponseBytesAreCountedCompressed() {
+		EmbeddedChannel channel = new EmbeddedChannel(ResponseCounter.INSTANCE, new ThresholdContentCompressor(1024));
+		FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+		request.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, HttpHeaders.Values.GZIP);
+		channel.writeInbound(request);
+
+		long bytes = responseBytes();
+		byte[] content = new byte[16 * 1024];		// zeroes, which compress to next to nothing
+		channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+				Unpooled.wrappedBuffer(content)));
+		long sent = 0;
+		for (Object msg; (msg = channel.readOutbound()) != null; ReferenceCountUtil.release(msg))
+			if (msg instanceof HttpContent)
+				sent += ((HttpContent) msg).content().readableBytes();
+		channel.finish();
+		assertTrue(sent > 0 && sent < content.length / 10);
+		assertEquals(sent, responseBytes() - bytes);
+	}
+
+	private static long responseBytes() {
+		for (String line: Metrics.scrape(null).split("\n"))
+			if (line.startsWith("trainserver_response_bytes_total "))
+				return Long.parseLong(line.substring(line.indexOf(' ') + 1));
+		throw new AssertionError("no trainserver_response_bytes_total");
+	}
+
+	@Test
+	public void testUnknownTypesShareALabel() {
+		long unknown = Metrics.latency("unknown", Metrics.Phase.DECODE).count();
+		for (int i = 0; i < 100; ++i)
+			Metrics.record("madeUp" + i, Metrics.Phase.DECODE, 1000);
+		Metrics.record(null, Metrics.Phase.DECODE, 1000);
+		assertEquals(unknown + 101, Metrics.latency("unknown", Metrics.Phase.DECODE).count());
+		assertNull(Metrics.latency("madeUp0", Metrics.Phase.DECODE));
+		assertFalse(Metrics.scrape(null).contains("madeUp"));
+	}
+}
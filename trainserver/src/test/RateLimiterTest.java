@@ -0,0 +1,29 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import train.RateLimiter;
+
+public class RateLimiterTest {
+
+	@Test
+	public void testBurstThenWait() {
+		RateLimiter limiter = new RateLimiter(1, 3);
+		for (int i = 0; i < 3; ++i)
+			assertEquals(0, limiter.acquire("10.0.0.1"));
+		assertTrue(limiter.acquire("10.0.0.1") >= 1);
+		// Other clients have buckets of their own
+		assertEquals(0, limiter.acquire("10.0.0.2"));
+		assertEquals(2, limiter.clients());
+	}
+
+	@Test
+	public void testZeroRateIsUnlimited() {
+		RateLimiter limiter = new RateLimiter(0, 1);
+		for (int i = 0; i < 1000; ++i)
+			assertEquals(0, limiter.acquire("10.0.0.1"));
+		assertEquals(0, limiter.clients());
+	}
+}
@@ -0,0 +1,98 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+import train.GameException;
+import train.RequestDecoder;
+
+public class RequestDecoderTest {
+
+	private static RequestDecoder.Request decode(String body) throws GameException {
+		ByteBuf content = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+		try {
+			RequestDecoder.Request request = RequestDecoder.decode(content);
+			assertEquals(0, content.readerIndex());		// left for anyone else reading it
+			return request;
+		} finally {
+			content.release();
+		}
+	}
+
+	private static void assertRejected(String body, String reason) {
+		try {
+			decode(body);
+			fail("Decoded " + body);
+		} catch (GameException e) {
+			assertEquals(reason, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDecodesTypeGidAndData() throws GameException {
+		RequestDecoder.Request request = decode("{\"messageType\":\"buildTrack\",\"pid\":\"Louie\",\"gid\":\"abcdefgh\","
+				+ "\"mileposts\":[{\"x\":34,\"y\":58},{\"x\":33,\"y\":58}]}");
+		assertEquals("buildTrack", request.messageType);
+		assertEquals("abcdefgh", request.gid);
+		assertNotNull(request.data);
+		assertEquals("BuildTrackData", request.data.getClass().getSimpleName());
+
+		// Fields in any order, and messages that aren't for a game
+		request = decode("{\"gameType\":\"africa\",\"pid\":\"Z\u00fcrich \ud83d\ude82\",\"color\":\"blue\",\"messageType\":\"newGame\"}");
+		assertEquals("newGame", request.messageType);
+		assertNull(request.gid);
+		assertNotNull(request.data);
+
+		request = decode("{\"messageType\":\"listGeographies\"}");
+		assertNull(request.data);
+	}
+
+	@Test
+	public void testDecodesQuery() throws GameException {
+		RequestDecoder.Request request = RequestDecoder.decodeQuery(
+				"/?%7B%22messageType%22:%22status%22,%22gid%22:%22abc%20def%22,%22sinceTransaction%22:3%7D");
+		assertEquals("status", request.messageType);
+		assertEquals("abc def", request.gid);
+		assertNotNull(request.data);
+
+		request = RequestDecoder.decodeQuery("/?{%22messageType%22:%22status%22,%22gid%22:%22a&b=c%22}");
+		assertEquals("a&b=c", request.gid);
+	}
+
+	@Test
+	public void testRejectsBadMessages() {
+		assertRejected("not json", GameException.BAD_MESSAGE);
+		assertRejected("[1, 2]", GameException.BAD_MESSAGE);
+		assertRejected("{\"messageType\":\"moveTrain\",\"gid\":\"abcdefgh\",\"train\":\"fast\"}", GameException.BAD_MESSAGE);
+		assertRejected("{\"gid\":\"abcdefgh\"}", GameException.INVALID_MESSAGE_TYPE);
+		assertRejected("{\"messageType\":\"madeUp\",\"gid\":\"abcdefgh\"}", GameException.INVALID_MESSAGE_TYPE);
+		assertRejected("{\"messageType\":7,\"gid\":\"abcdefgh\"}", GameException.INVALID_MESSAGE_TYPE);
+
+		// Missing something the type can't do without
+		assertRejected("{\"messageType\":\"buildTrack\",\"gid\":\"abcdefgh\",\"pid\":\"Louie\"}", GameException.BAD_MESSAGE);
+		assertRejected("{\"messageType\":\"buildTrack\",\"gid\":\"abcdefgh\",\"pid\":\"Louie\",\"mileposts\":[null]}",
+				GameException.BAD_MESSAGE);
+		assertRejected("{\"messageType\":\"list\"}", GameException.BAD_MESSAGE);
+		assertRejected("{\"messageType\":\"undo\",\"gid\":\"abcdefgh\"}", GameException.BAD_MESSAGE);
+		assertRejected("{\"messageType\":\"redo\",\"gid\":\"abcdefgh\",\"pid\":null}", GameException.BAD_MESSAGE);
+		assertRejected("{\"messageType\":\"endTurn\",\"pid\":\"Louie\"}", GameException.BAD_MESSAGE);
+		try {
+			RequestDecoder.decodeQuery("/?{%22messageType%22:%22madeUp%22}");
+			fail("Decoded an unknown message type");
+		} catch (GameException e) {
+			assertEquals(GameException.INVALID_MESSAGE_TYPE, e.getMessage());
+		}
+		try {
+			RequestDecoder.decodeQuery("/?{%22messageType%2");
+			fail("Decoded a malformed escape");
+		} catch (GameException e) {
+			assertEquals(GameException.BAD_MESSAGE, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import map.Milepost;
+import map.MilepostId;
+import map.RoutePlanner;
+import map.TrainMap;
+
+import org.junit.Test;
+
+import train.Game;
+import train.GameException;
+import train.TrainServer;
+
+public class RoutePlannerTest extends GameTest {
+
+	private static final MilepostId[] buildMileposts = new MilepostId[] {
+		new MilepostId(2,18), new MilepostId(2,17), new MilepostId(3,16), new MilepostId(3,15),
+		new MilepostId(4,14), new MilepostId(4,13), new MilepostId(5,12), new MilepostId(5,11),
+		new MilepostId(6,10), new MilepostId(6,9), new MilepostId(6,8), new MilepostId(5,7),
+	};
+
+	private static Milepost[] convert(TrainMap map, List<MilepostId> ids) {
+		Milepost[] mps = new Milepost[ids.size()];
+		for (int i = 0; i < mps.length; ++i)
+			mps[i] = map.getMilepost(ids.get(i));
+		return mps;
+	}
+
+	@Test
+	public void testHexDistance() {
+		MilepostId even = new MilepostId(4, 6);
+		MilepostId odd = new MilepostId(4, 7);
+		assertEquals(0, RoutePlanner.hexDistance(even, even));
+		assertEquals(1, RoutePlanner.hexDistance(even, new MilepostId(4, 5)));	// NE from an even row
+		assertEquals(1, RoutePlanner.hexDistance(even, new MilepostId(3, 5)));	// NW from an even row
+		assertEquals(1, RoutePlanner.hexDistance(odd, new MilepostId(5, 6)));	// NE from an odd row
+		assertEquals(1, RoutePlanner.hexDistance(odd, new MilepostId(4, 6)));	// NW from an odd row
+		assertEquals(3, RoutePlanner.hexDistance(even, new MilepostId(7, 6)));
+		assertEquals(4, RoutePlanner.hexDistance(even, new MilepostId(2, 10)));
+	}
+
+	@Test
+	public void testPlanBuildAndMove() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Xavier", "black");
+		startGame(game);
+		skipPastBuildingTurns(game);
+		String pid = game.getActivePid();
+		TrainMap map = game.gameData.getMap();
+		int manualCost = game.getGlobalRail().checkBuild(pid, convert(map, Arrays.asList(buildMileposts)));
+		assertTrue(manualCost > 0);
+
+		// Cheapest build is a legal build, and no more expensive than the one we'd pick by hand
+		MilepostId start = buildMileposts[0];
+		MilepostId end = buildMileposts[buildMileposts.length - 1];
+		RoutePlanner.Route route = game.planBuild(pid, start, new MilepostId[] { end });
+		assertEquals(start, route.mileposts.get(0));
+		assertEquals(end, route.mileposts.get(route.mileposts.size() - 1));
+		assertEquals(route.cost, game.getGlobalRail().checkBuild(pid, convert(map, route.mileposts)));
+		assertTrue(route.cost <= manualCost);
+
+		// Several targets: goes to the nearest one
+		RoutePlanner.Route nearer = game.planBuild(pid, start, new MilepostId[] { end, buildMileposts[3] });
+		assertEquals(buildMileposts[3], nearer.mileposts.get(nearer.mileposts.size() - 1));
+
+		// Planning through the message, from anywhere the player can build
+		String response = TrainServer.planRoute(String.format(
+			"{\"messageType\":\"planRoute\", \"gid\":\"%s\", \"pid\":\"%s\", \"route\":\"build\", \"to\":[{\"x\":5,\"y\":7}]}",
+			gid, pid));
+		assertTrue(response.contains("\"cost\":"));
+
+		// Moves stay on built track
+		try {
+			game.planMove(pid, 0, new MilepostId[] { end });
+			fail("Train hasn't been placed yet");
+		} catch (GameException e) {
+			// expected case
+		}
+		game.buildTrack(pid, buildMileposts);
+		game.placeTrain(pid, 0, start);
+		RoutePlanner.Route move = game.planMove(pid, 0, new MilepostId[] { end });
+		assertEquals(buildMileposts.length - 1, move.cost);
+		assertEquals(Arrays.asList(buildMileposts), move.mileposts);
+		try {
+			game.planMove(pid, 0, new MilepostId[] { new MilepostId(30, 30) });
+			fail("Expected NoRoute");
+		} catch (GameException e) {
+			assertEquals(GameException.NO_ROUTE, e.getMessage());
+		}
+
+		// Rough check on speed, for previewing routes as the mouse moves
+		long begin = System.nanoTime();
+		int plans = 0;
+		for (Milepost target: map.getMajorCities()) {
+			try {
+				game.planBuild(pid, null, new MilepostId[] { target.id });
+			} catch (GameException e) {
+				// some cities can't be reached by track
+			}
+			++plans;
+		}
+		log.info("Planned {} builds in {} us each", plans, (System.nanoTime() - begin) / 1000 / plans);
+	}
+}
@@ -0,0 +1,51 @@
+package test;
+
+import static org.junit.Assert.*;
+import map.MilepostId;
+
+import org.junit.Test;
+
+import player.Rail;
+import train.Game;
+import train.GameException;
+import train.TrainServer;
+
+public class SnapshotTest extends GameTest {
+
+	@Test
+	public void testRailSnapshots() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Huey", "green");
+		startGame(game);
+		String pid = game.getActivePid();
+		Rail rail = game.getGlobalRail().getRail(pid);
+		Rail.Snapshot empty = rail.snapshot();
+
+		MilepostId[] track = new MilepostId[]{ new MilepostId(34, 58), new MilepostId(33, 58), new MilepostId(32, 58) };
+		game.buildTrack(pid, track);
+		Rail.Snapshot built = rail.snapshot();
+		assertTrue(empty.getRail().isEmpty());
+		assertEquals(rail.getRail(), built.getRail());
+		assertEquals(3, built.getRail().size());
+
+		// Undoing takes the track out of the rail, but not out of snapshots already taken
+		undo(gid, pid);
+		assertTrue(rail.getRail().isEmpty());
+		assertTrue(rail.snapshot().getRail().isEmpty());
+		assertEquals(3, built.getRail().size());
+		assertTrue(built.getRail().get(track[1]).contains(track[2]));
+
+		// Enough track that the edge list has to grow
+		redo(gid, pid);
+		game.endTurn(pid);
+		String other = game.getActivePid();
+		Rail otherRail = game.getGlobalRail().getRail(other);
+		game.buildTrack(other, new MilepostId[] { new MilepostId(2,18), new MilepostId(2,17), new MilepostId(3,16),
+			new MilepostId(3,15), new MilepostId(4,14), new MilepostId(4,13), new MilepostId(5,12),
+			new MilepostId(5,11), new MilepostId(6,10), new MilepostId(6,9), new MilepostId(6,8) });
+		assertEquals(otherRail.getRail(), otherRail.snapshot().getRail());
+		assertEquals(rail.getRail(), rail.snapshot().getRail());
+		assertEquals(3, built.getRail().size());
+	}
+}
@@ -0,0 +1,139 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import map.MilepostId;
+
+import org.junit.Test;
+
+import train.Game;
+import train.GameException;
+import train.StatusCache;
+import train.TrainServer;
+
+public class StatusCacheTest extends GameTest {
+
+	@Test
+	public void testCacheHitsAndMisses() {
+		StatusCache cache = new StatusCache(1024);
+		assertEquals(null, cache.get("aaaaaaaa", 1));
+		cache.put("aaaaaaaa", 1, "{\"transaction\":1}");
+		cache.put("bbbbbbbb", 7, "{\"transaction\":7}");
+		assertEquals("{\"transaction\":1}", cache.get("aaaaaaaa", 1));
+		assertEquals("{\"transaction\":7}", cache.get("bbbbbbbb", 7));
+		assertEquals(null, cache.get("aaaaaaaa", 2));	// game has moved on
+		assertEquals(2, cache.hits());
+		assertEquals(2, cache.misses());
+		cache.remove("aaaaaaaa");
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCacheStaysInBudget() {
+		StatusCache cache = new StatusCache(1000);
+		String status = new String(new char[100]);	// 200 bytes
+		for (int i = 0; i < 20; ++i) {
+			cache.put("game" + i, 1, status);
+			cache.get("game0", 1);		// keep one game hot
+		}
+		assertTrue(cache.bytes() <= 1000);
+		assertTrue(cache.evictions() > 0);
+		assertEquals(status, cache.get("game0", 1));
+	}
+
+	@Test
+	public void testEncodedStatusIsReleased() {
+		StatusCache cache = new StatusCache(1024);
+		ByteBuf status = Unpooled.copiedBuffer("{\"transaction\":1}", StandardCharsets.UTF_8);
+		cache.putEncoded("aaaaaaaa", 1, status);
+		status.release();		// the cache keeps its own reference
+		assertEquals(1, status.refCnt());
+
+		ByteBuf hit = cache.getEncoded("aaaaaaaa", 1);
+		assertEquals("{\"transaction\":1}", hit.toString(StandardCharsets.UTF_8));
+		assertEquals(0, hit.readerIndex());
+		hit.skipBytes(hit.readableBytes());		// as sending it would
+		hit.release();
+		assertEquals("{\"transaction\":1}", cache.get("aaaaaaaa", 1));
+		assertEquals(null, cache.getEncoded("aaaaaaaa", 2));
+
+		cache.put("aaaaaaaa", 2, "{\"transaction\":2}");
+		assertEquals(0, status.refCnt());
+		assertEquals(null, cache.getEncoded("aaaaaaaa", 2));	// only the string was cached
+	}
+
+	/** Readers take cached buffers while a writer keeps replacing and evicting them. The
+	 * buffers come from the pool, so one released too early is soon filled with another
+	 * game's status, and a reader would see the wrong bytes.
+	 */
+	@Test
+	public void testGetWhileEvicting() throws Exception {
+		StatusCache cache = new StatusCache(4096);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] readers = new Thread[4];
+		for (int r = 0; r < readers.length; ++r) {
+			readers[r] = new Thread(() -> {
+				while (!done.get())
+					for (int g = 0; g < 32; ++g)
+						for (int t = 0; t < 4; ++t) {
+							ByteBuf hit = cache.getEncoded("game" + g, t);
+							if (hit == null)
+								continue;
+							String status = hit.toString(StandardCharsets.UTF_8);
+							hit.release();
+							if (!status.equals(status("game" + g, t)))
+								failure.compareAndSet(null, "game" + g + " at " + t + " got " + status);
+						}
+			});
+			readers[r].start();
+		}
+		try {
+			for (int i = 0; i < 50000 && failure.get() == null; ++i) {
+				String gid = "game" + (i % 32);
+				int transaction = (i / 32) % 4;
+				ByteBuf status = PooledByteBufAllocator.DEFAULT.buffer();
+				status.writeBytes(status(gid, transaction).getBytes(StandardCharsets.UTF_8));
+				cache.putEncoded(gid, transaction, status);
+				status.release();
+			}
+		} finally {
+			done.set(true);
+			for (Thread reader: readers)
+				reader.join();
+		}
+		assertEquals(null, failure.get());
+		assertTrue(cache.evictions() > 0);
+		assertTrue(cache.bytes() <= 4096);
+	}
+
+	private static String status(String gid, int transaction) {
+		return "{\"gid\":\"" + gid + "\",\"transaction\":" + transaction + ",\"padding\":\"" + new String(new char[100]).replace('\0', 'x') + "\"}";
+	}
+
+	@Test
+	public void testStatusFollowsTransactions() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		String request = "{\"gid\":\"" + gid + "\"}";
+		Game game = TrainServer.getGame(gid);
+		long hits = TrainServer.getStatusCache().hits();
+		String first = TrainServer.status(request);
+		assertSame(first, TrainServer.status(request));
+		assertEquals(hits + 1, TrainServer.getStatusCache().hits());
+
+		game.joinGame("Huey", "green");
+		startGame(game);
+		String activePlayer = game.getActivePlayer().name;
+		game.buildTrack(activePlayer, new MilepostId[]{ new MilepostId(34, 58), new MilepostId(33, 58) });
+		String second = TrainServer.status(request);
+		assertNotEquals(first, second);
+		assertTrue(second.contains("\"transaction\":" + game.transaction()));
+	}
+}
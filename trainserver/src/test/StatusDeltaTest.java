@@ -0,0 +1,80 @@
+package test;
+
+import static org.junit.Assert.*;
+import map.MilepostId;
+
+import org.junit.Test;
+
+import train.Game;
+import train.GameException;
+import train.TrainServer;
+
+public class StatusDeltaTest extends GameTest {
+
+	private static String deltaRequest(String gid, int since) {
+		return String.format("{\"gid\":\"%s\", \"sinceTransaction\":%d, \"delta\":true}", gid, since);
+	}
+
+	@Test
+	public void testDeltas() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Huey", "green");
+		startGame(game);
+		String active = game.getActivePlayer().name;
+		game.buildTrack(active, new MilepostId[]{ new MilepostId(34, 58), new MilepostId(33, 58) });
+		int since = game.transaction();
+
+		// Building sends only the new track, no players
+		game.buildTrack(active, new MilepostId[]{ new MilepostId(33, 58), new MilepostId(32, 58) });
+		String delta = TrainServer.status(deltaRequest(gid, since));
+		log.info("Delta after build: {}", delta);
+		assertTrue(delta.contains("\"delta\":true"));
+		assertTrue(delta.contains("\"since\":" + since));
+		assertTrue(delta.contains("\"players\":[]"));
+		assertTrue(delta.contains("\"track\":{\"" + active + "\":[{\"x\":33,\"y\":58},{\"x\":32,\"y\":58}]}"));
+		assertTrue(delta.contains("\"transaction\":" + game.transaction()));
+		assertFalse(delta.contains("\"rail\":{"));
+
+		// Ending the turn changes the player who was active, but nobody else
+		game.endTurn(active);
+		delta = TrainServer.status(deltaRequest(gid, since));
+		assertTrue(delta.contains("\"players\":[{\"pid\":\"" + active + "\""));
+		assertEquals(2, delta.split("\"color\"").length);	// only one player
+
+		// Caught up -- nothing changed
+		delta = TrainServer.status(deltaRequest(gid, game.transaction()));
+		assertTrue(delta.contains("\"players\":[]"));
+		assertTrue(delta.contains("\"track\":{}"));
+
+		// Without asking for a delta you get the full status
+		String full = TrainServer.status(String.format("{\"gid\":\"%s\", \"sinceTransaction\":%d}", gid, since));
+		assertFalse(full.contains("\"delta\""));
+		assertTrue(full.contains("\"rail\":{"));
+	}
+
+	@Test
+	public void testFallsBackToFullStatus() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Huey", "green");
+		startGame(game);
+		String active = game.getActivePlayer().name;
+		int since = game.transaction();
+		game.buildTrack(active, new MilepostId[]{ new MilepostId(34, 58), new MilepostId(33, 58) });
+
+		// Undo can take track away, which can't be sent as a delta
+		game = undo(gid, active);
+		String status = TrainServer.status(deltaRequest(gid, since));
+		assertFalse(status.contains("\"delta\""));
+		assertTrue(status.contains("\"transaction\":" + game.transaction()));
+
+		// Too far behind -- the game no longer has the history
+		for (int i = 0; i < 100; ++i)
+			game.endGame(active, i % 2 == 0);
+		status = TrainServer.status(deltaRequest(gid, game.transaction() - 99));
+		assertFalse(status.contains("\"delta\""));
+		status = TrainServer.status(deltaRequest(gid, game.transaction() - 2));
+		assertTrue(status.contains("\"delta\":true"));
+	}
+}
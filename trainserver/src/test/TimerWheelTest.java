@@ -0,0 +1,89 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import train.TimerWheel;
+
+public class TimerWheelTest {
+
+	/** Each timeout runs once, no sooner than its deadline and no later than the tick after it */
+	@Test
+	public void testTimeoutsRunOnTime() {
+		long tick = 10;
+		TimerWheel wheel = new TimerWheel(tick, 4, 3);		// small levels, so lots of cascading
+		long start = System.currentTimeMillis();
+		Random random = new Random(7);
+		long[] deadlines = new long[2000];
+		long[] ran = new long[deadlines.length];
+		for (int i = 0; i < deadlines.length; ++i) {
+			deadlines[i] = start + random.nextInt(100000);
+			int index = i;
+			wheel.schedule(deadlines[i], () -> ++ran[index]);
+		}
+		assertEquals(deadlines.length, wheel.size());
+
+		long[] when = new long[deadlines.length];
+		for (long now = start; now <= start + 100000 + 2 * tick; now += tick) {
+			wheel.advanceTo(now);
+			for (int i = 0; i < deadlines.length; ++i)
+				if (ran[i] != 0 && when[i] == 0)
+					when[i] = now;
+		}
+		assertEquals(0, wheel.size());
+		for (int i = 0; i < deadlines.length; ++i) {
+			assertEquals(1, ran[i]);
+			assertTrue("not early", when[i] >= deadlines[i]);
+			assertTrue("not late", when[i] < deadlines[i] + 2 * tick);
+		}
+	}
+
+	/** Deadlines beyond the top level go round again until they're due */
+	@Test
+	public void testDeadlineBeyondWheel() {
+		TimerWheel wheel = new TimerWheel(1, 2, 2);		// 16 ticks in all
+		long start = System.currentTimeMillis();
+		AtomicInteger ran = new AtomicInteger();
+		wheel.schedule(start + 100, ran::incrementAndGet);
+		wheel.advanceTo(start + 99);
+		assertEquals(0, ran.get());
+		wheel.advanceTo(start + 101);
+		assertEquals(1, ran.get());
+	}
+
+	@Test
+	public void testCancel() {
+		TimerWheel wheel = new TimerWheel(1, 4, 2);
+		long start = System.currentTimeMillis();
+		List<Integer> ran = new ArrayList<Integer>();
+		TimerWheel.Timeout first = wheel.schedule(start + 5, () -> ran.add(1));
+		wheel.schedule(start + 5, () -> ran.add(2));
+		TimerWheel.Timeout third = wheel.schedule(start + 50, () -> ran.add(3));
+		assertTrue(first.cancel());
+		assertFalse(first.cancel());
+		assertTrue(third.cancel());
+		assertEquals(1, wheel.size());
+		wheel.advanceTo(start + 100);
+		assertEquals(1, ran.size());
+		assertEquals(2, (int) ran.get(0));
+		assertEquals(0, wheel.size());
+	}
+
+	/** A deadline already past runs on the next tick; a failing task doesn't stop the others */
+	@Test
+	public void testPastDeadlineAndFailingTask() {
+		TimerWheel wheel = new TimerWheel(1, 4, 2);
+		long start = System.currentTimeMillis();
+		AtomicInteger ran = new AtomicInteger();
+		wheel.schedule(start - 1000, () -> { throw new IllegalStateException("expected"); });
+		wheel.schedule(start - 1000, ran::incrementAndGet);
+		wheel.advanceTo(start + 2);
+		assertEquals(1, ran.get());
+	}
+}
@@ -0,0 +1,61 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import map.MilepostId;
+
+import org.junit.Test;
+
+import player.TrackOwners;
+
+public class TrackOwnersTest {
+
+	@Test
+	public void testEitherOrder() {
+		TrackOwners owners = new TrackOwners();
+		MilepostId a = new MilepostId(34, 58);
+		MilepostId b = new MilepostId(33, 58);
+		assertEquals(null, owners.get(a, b));
+		owners.put(a, b, "Louie");
+		assertEquals("Louie", owners.get(a, b));
+		assertEquals("Louie", owners.get(b, a));
+		assertEquals(null, owners.get(a, new MilepostId(33, 59)));
+		owners.remove(b, a);
+		assertEquals(null, owners.get(a, b));
+		assertEquals(0, owners.size());
+	}
+
+	@Test
+	public void testMatchesHashMap() {
+		TrackOwners owners = new TrackOwners();
+		Map<Long, String> expected = new HashMap<Long, String>();
+		Random random = new Random(14);
+		String[] pids = { "Louie", "Huey", "Dewey" };
+		for (int i = 0; i < 20000; ++i) {
+			MilepostId one = new MilepostId(random.nextInt(40), random.nextInt(40));
+			MilepostId two = new MilepostId(one.x + random.nextInt(2), one.y + 1);
+			long key = TrackOwners.key(one, two);
+			if (random.nextInt(3) == 0) {
+				owners.remove(one, two);
+				expected.remove(key);
+			} else {
+				String pid = pids[random.nextInt(pids.length)];
+				owners.put(one, two, pid);
+				expected.put(key, pid);
+			}
+			assertEquals(expected.get(key), owners.get(two, one));
+		}
+		assertEquals(expected.size(), owners.size());
+		for (int x = 0; x < 41; ++x)
+			for (int y = 0; y < 40; ++y)
+				for (int dx = 0; dx < 2; ++dx) {
+					MilepostId one = new MilepostId(x, y);
+					MilepostId two = new MilepostId(x + dx, y + 1);
+					assertEquals(expected.get(TrackOwners.key(one, two)), owners.get(one, two));
+				}
+	}
+}
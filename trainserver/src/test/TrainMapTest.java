@@ -0,0 +1,47 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import map.Milepost;
+import map.MilepostId;
+import map.TrainMap;
+
+import org.junit.Test;
+
+import train.GameException;
+import train.TrainServer;
+
+public class TrainMapTest extends GameTest {
+
+	@Test
+	public void testDenseLookup() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		TrainMap map = TrainServer.getGame(gid).gameData.getMap();
+		int found = 0;
+		for (Milepost mp: map.getSerializeData().orderedMileposts) {
+			int index = map.index(mp.id);
+			assertSame(mp, map.getMilepost(mp.id));
+			assertSame(mp, map.getMilepost(mp.id.x, mp.id.y));
+			assertSame(mp, map.getMilepost(index));
+			assertSame(mp, map.getMilepost(new MilepostId(mp.id.x, mp.id.y)));
+			++found;
+		}
+		assertTrue(found > 0);
+		assertEquals(null, map.getMilepost(new MilepostId(-1, 0)));
+		assertEquals(null, map.getMilepost(new MilepostId(map.getWidth(), 0)));
+		assertEquals(null, map.getMilepost(new MilepostId(0, map.getHeight())));
+		assertEquals(-1, map.index(new MilepostId(map.getWidth(), 0)));
+	}
+
+	@Test
+	public void testHashCodes() {
+		// x * y used to put every milepost on row 0 and column 0 in the same bucket
+		Set<Integer> hashes = new HashSet<Integer>();
+		for (int x = 0; x < 100; ++x)
+			for (int y = 0; y < 100; ++y)
+				assertTrue(hashes.add(new MilepostId(x, y).hashCode()));
+	}
+}
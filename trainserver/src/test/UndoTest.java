@@ -117,4 +117,63 @@ public class UndoTest extends GameTest{
 		}
 	}
 
+	@Test
+	public void testUndoRestoresState() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Xavier", "black");
+		startGame(game);
+		skipPastBuildingTurns(game);
+		String pid = game.getActivePid();
+		MilepostId[] track = new MilepostId[] { new MilepostId(2,18), new MilepostId(2,17), new MilepostId(3,16) };
+		game.buildTrack(pid, track);
+		int spent = game.getTurnData().getSpending();
+		assertTrue(spent > 0);
+		assertTrue(game.getGlobalRail().connects(pid, track[0], track[1]));
+
+		game.placeTrain(pid, 0, new MilepostId(2,18));
+		game.moveTrain(pid, 0, new MilepostId[] { new MilepostId(2,17), new MilepostId(3,16) });
+		assertEquals(2, game.getTurnData().getMovesMade(0));
+		undo(gid, pid);
+		assertEquals(0, game.getTurnData().getMovesMade(0));
+		assertEquals(new MilepostId(2,18), game.getActivePlayer().getTrain(0).getLocation().getMilepostId());
+		undo(gid, pid);
+		assertEquals(null, game.getActivePlayer().getTrain(0).getLocation());
+		undo(gid, pid);
+		assertEquals(0, game.getTurnData().getSpending());
+		assertFalse(game.getGlobalRail().connects(pid, track[0], track[1]));
+		assertTrue(game.getGlobalRail().getRail(pid).getRail().isEmpty());
+
+		redo(gid, pid);
+		assertEquals(spent, game.getTurnData().getSpending());
+		assertTrue(game.getGlobalRail().connects(pid, track[1], track[2]));
+		redo(gid, pid);
+		assertEquals(new MilepostId(2,18), game.getActivePlayer().getTrain(0).getLocation().getMilepostId());
+	}
+
+	@Test
+	public void testNoRedoAfterEndTurn() throws GameException {
+		String gid = newGame("Louie", "blue", "africa");
+		Game game = TrainServer.getGame(gid);
+		game.joinGame("Xavier", "black");
+		startGame(game);
+		skipPastBuildingTurns(game);
+		String pid = game.getActivePid();
+		MilepostId[] track = new MilepostId[] { new MilepostId(2,18), new MilepostId(2,17), new MilepostId(3,16) };
+		game.buildTrack(pid, track);
+		undo(gid, pid);
+		game.endTurn(pid);
+		String next = game.getActivePid();
+		assertNotEquals(pid, next);
+
+		// What was undone last turn is gone, not replayed over the next player's turn
+		try {
+			redo(gid, next);
+			fail("redo after the turn ended");
+		} catch (GameException e) {
+			assertEquals(GameException.NOTHING_TO_REDO, e.getMessage());
+		}
+		assertEquals(next, game.getActivePid());
+		assertTrue(game.getGlobalRail().getRail(pid).getRail().isEmpty());
+	}
 }
@@ -162,12 +162,12 @@ interface AbstractGame {
 	/** Undo previous action 
 	 *
 	 */
-	Game undo() throws GameException;
+	void undo() throws GameException;
 
 	/** Redo previous undone action 
 	 *
 	 */
-	Game redo() throws GameException;
+	void redo() throws GameException;
 	
 	/** Player declares their turn is over.
 	 * @param pid		Player whose train is being moved
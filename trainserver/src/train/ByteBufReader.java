@@ -0,0 +1,69 @@
+package train;
+
+import java.io.Reader;
+
+import io.netty.buffer.ByteBuf;
+
+/** Reads the UTF-8 text in a ByteBuf as characters, so a request can be parsed straight out
+ * of the buffer it arrived in. The buffer's reader index isn't moved, so the same bytes can
+ * be read again by another reader.
+ */
+public class ByteBufReader extends Reader {
+	private final ByteBuf buf;
+	private int index;
+	private final int end;
+	private char lowSurrogate;		/** second half of a pair, returned on the next read */
+
+	public ByteBufReader(ByteBuf buf) {
+		this.buf = buf;
+		this.index = buf.readerIndex();
+		this.end = buf.writerIndex();
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) {
+		if (len == 0)
+			return 0;
+		int count = 0;
+		while (count < len) {
+			if (lowSurrogate != 0) {
+				cbuf[off + count++] = lowSurrogate;
+				lowSurrogate = 0;
+			}
+			else if (index < end)
+				cbuf[off + count++] = readChar();
+			else
+				break;
+		}
+		return count > 0 ? count : -1;
+	}
+
+	/** Decodes the next character, or the first half of a surrogate pair. Malformed bytes
+	 * become replacement characters.
+	 */
+	private char readChar() {
+		int b = buf.getByte(index++) & 0xff;
+		if (b < 0x80)
+			return (char) b;
+		int extra = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : 0;
+		if (extra == 0 || b >= 0xf8)
+			return '\ufffd';
+		int codePoint = b & (0x3f >> extra);
+		for (int i = 0; i < extra; ++i) {
+			if (index >= end || (buf.getByte(index) & 0xc0) != 0x80)
+				return '\ufffd';
+			codePoint = (codePoint << 6) | (buf.getByte(index++) & 0x3f);
+		}
+		if (codePoint < (extra == 1 ? 0x80 : extra == 2 ? 0x800 : 0x10000) || codePoint > Character.MAX_CODE_POINT
+				|| (codePoint >= 0xd800 && codePoint <= 0xdfff))
+			return '\ufffd';	// overlong, out of range, or an encoded surrogate
+		if (codePoint < 0x10000)
+			return (char) codePoint;
+		lowSurrogate = Character.lowSurrogate(codePoint);
+		return Character.highSurrogate(codePoint);
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,118 @@
+package train;
+
+import java.io.Writer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import com.google.gson.Gson;
+
+/** Writes characters into a ByteBuf as UTF-8, so Gson can serialize a response straight into
+ * the buffer that gets sent, without building a String and copying it out again.
+ */
+public class ByteBufWriter extends Writer {
+	private final ByteBuf buf;
+	private char highSurrogate;		/** first half of a pair, waiting for the second */
+
+	public ByteBufWriter(ByteBuf buf) {
+		this.buf = buf;
+	}
+
+	/** Serializes the object as JSON into a new buffer from the allocator
+	 * @param sizeHint	expected size in bytes, or 0 if unknown
+	 */
+	public static ByteBuf toJson(ByteBufAllocator alloc, Gson gson, Object src, int sizeHint) {
+		ByteBuf buf = sizeHint > 0 ? alloc.directBuffer(sizeHint) : alloc.directBuffer();
+		try {
+			ByteBufWriter writer = new ByteBufWriter(buf);
+			gson.toJson(src, writer);
+			writer.close();
+			return buf;
+		} catch (RuntimeException e) {
+			buf.release();
+			throw e;
+		}
+	}
+
+	/** Encodes the text into a new buffer from the allocator */
+	public static ByteBuf encode(ByteBufAllocator alloc, CharSequence text) {
+		ByteBuf buf = alloc.directBuffer(text.length());
+		ByteBufWriter writer = new ByteBufWriter(buf);
+		writer.append(text);
+		writer.close();
+		return buf;
+	}
+
+	@Override
+	public void write(int c) {
+		writeChar((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		for (int i = off; i < off + len; ++i)
+			writeChar(cbuf[i]);
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		for (int i = off; i < off + len; ++i)
+			writeChar(str.charAt(i));
+	}
+
+	@Override
+	public Writer append(CharSequence csq) {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Writer append(CharSequence csq, int start, int end) {
+		for (int i = start; i < end; ++i)
+			writeChar(csq.charAt(i));
+		return this;
+	}
+
+	private void writeChar(char c) {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				buf.writeByte(0xf0 | (codePoint >> 18));
+				buf.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+				buf.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+				buf.writeByte(0x80 | (codePoint & 0x3f));
+				return;
+			}
+			buf.writeByte('?');		// unpaired surrogate
+		}
+		if (c < 0x80)
+			buf.writeByte(c);
+		else if (c < 0x800) {
+			buf.writeByte(0xc0 | (c >> 6));
+			buf.writeByte(0x80 | (c & 0x3f));
+		}
+		else if (Character.isHighSurrogate(c))
+			highSurrogate = c;
+		else if (Character.isLowSurrogate(c))
+			buf.writeByte('?');
+		else {
+			buf.writeByte(0xe0 | (c >> 12));
+			buf.writeByte(0x80 | ((c >> 6) & 0x3f));
+			buf.writeByte(0x80 | (c & 0x3f));
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	/** A pair left unfinished at the end becomes a replacement character, as String.getBytes does */
+	@Override
+	public void close() {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			buf.writeByte('?');
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package train;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Index of the geographies in the data directory, and the files each one has. The data
+ * directory is found once, when the catalog is created, and the geographies are listed from
+ * memory after that.
+ *
+ * The directory is taken from the "dataDir" system property if it is set and holds at least
+ * one geography. Otherwise the catalog looks for a "data" directory in the current working
+ * directory or one of its parents, or a child of one of those.
+ */
+public class DataCatalog {
+
+	/** Subfolders of data that are not game types */
+	private static final Set<String> excluded = new HashSet<String>(Arrays.asList("artwork", "icons", "mileposts"));
+
+	private static DataCatalog catalog;
+
+	private final File root;
+	private volatile Map<String, Set<String>> files;	/** Key=geography, Value=names of the files in its folder */
+	private volatile List<String> geographies;			/** Sorted names of the geographies */
+	private WatchService watcher;
+
+	private static Logger log = LoggerFactory.getLogger(DataCatalog.class);
+
+	/** Builds the catalog for a data directory
+	 * @throws GameException if the directory has no geographies in it
+	 */
+	public DataCatalog(File root) throws GameException {
+		this.root = root;
+		rescan();
+		if (geographies.isEmpty()) {
+			log.error("No geographies found in data folder {}", root);
+			throw new GameException(GameException.BAD_MAP_DATA);
+		}
+	}
+
+	/** Returns the catalog for the server's data directory, finding it the first time */
+	static public synchronized DataCatalog get() throws GameException {
+		if (catalog == null) {
+			long start = System.nanoTime();
+			catalog = new DataCatalog(findRoot());
+			log.info("Found {} geographies in {} in {} ms", catalog.geographies.size(), catalog.root,
+				(System.nanoTime() - start) / 1000000);
+		}
+		return catalog;
+	}
+
+	public File getRoot() { return root; }
+
+	/** Returns the names of the supported geographies, in alphabetical order */
+	public List<String> getGeographies() { return geographies; }
+
+	/** True if the geography has a file with this name */
+	public boolean hasFile(String gameType, String fileName) {
+		Set<String> names = files.get(gameType);
+		return names != null && names.contains(fileName);
+	}
+
+	/** Return the requested data file for a geography
+	 * @throws GameException if the geography doesn't exist, or doesn't have the file
+	 */
+	public File getFile(String gameType, String fileName) throws GameException {
+		if (!hasFile(gameType, fileName))
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		return new File(new File(root, gameType), fileName);
+	}
+
+	/** Lists the data directory again, picking up geographies and files that were added or removed */
+	public synchronized void rescan() {
+		Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+		File[] children = root.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				if (!child.isDirectory() || excluded.contains(child.getName()))
+					continue;
+				Set<String> names = new HashSet<String>();
+				File[] dataFiles = child.listFiles();
+				if (dataFiles != null)
+					for (File dataFile: dataFiles)
+						if (dataFile.isFile())
+							names.add(dataFile.getName());
+				index.put(child.getName(), Collections.unmodifiableSet(names));
+			}
+		}
+		List<String> names = new ArrayList<String>(index.keySet());
+		Collections.sort(names);
+		files = index;
+		geographies = Collections.unmodifiableList(names);
+	}
+
+	/** Rescans the catalog whenever something changes in the data directory, or directly
+	 * inside one of the geographies, until stopWatching is called.
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (watcher != null)
+			return;
+		final WatchService service = FileSystems.getDefault().newWatchService();
+		register(service);
+		watcher = service;
+		Thread thread = new Thread(() -> {
+			try {
+				while (true) {
+					WatchKey key = service.take();
+					key.pollEvents();
+					key.reset();
+					rescan();
+					register(service);
+					log.info("Data folder changed, geographies are now {}", geographies);
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// stopped watching
+			} catch (IOException e) {
+				log.error("Stopped watching data folder {}", e);
+			}
+		}, "data-catalog-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stopWatching() {
+		if (watcher == null)
+			return;
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			log.error("IOException closing data folder watcher");
+		}
+		watcher = null;
+	}
+
+	/** Registering a directory that is already watched just returns its key, so this can be
+	 * called again after each rescan to pick up new geographies.
+	 */
+	private void register(WatchService service) throws IOException {
+		register(root.toPath(), service);
+		for (String geography: geographies)
+			register(new File(root, geography).toPath(), service);
+	}
+
+	static private void register(Path dir, WatchService service) throws IOException {
+		dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/** Finds the data directory: the configured one if it is usable, otherwise the nearest
+	 * "data" directory at or above the working directory.
+	 */
+	static private File findRoot() throws GameException {
+		String configured = System.getProperty("dataDir");
+		if (configured != null) {
+			File dir = new File(configured);
+			if (isDataFolder(dir))
+				return dir.getAbsoluteFile();
+			log.warn("dataDir {} has no geographies, looking for the data folder instead", configured);
+		}
+		for (Path dir = Paths.get(System.getProperty("user.dir")).toAbsolutePath(); dir != null; dir = dir.getParent()) {
+			File candidate = new File(dir.toFile(), "data");
+			if (isDataFolder(candidate))
+				return candidate;
+			File[] children = dir.toFile().listFiles();
+			if (children == null)
+				continue;
+			Arrays.sort(children);
+			for (File child: children) {
+				candidate = new File(child, "data");
+				if (child.isDirectory() && isDataFolder(candidate))
+					return candidate;
+			}
+		}
+		log.error("Cannot find data folder");
+		throw new GameException(GameException.BAD_MAP_DATA);
+	}
+
+	/** A data folder has at least one geography, which is a folder with a map in it */
+	static private boolean isDataFolder(File dir) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return false;
+		for (File child: children)
+			if (child.isDirectory() && !excluded.contains(child.getName()) && new File(child, "map.csv").isFile())
+				return true;
+		return false;
+	}
+}
@@ -2,6 +2,7 @@ package train;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -12,6 +13,7 @@ import map.Milepost;
 import map.MilepostId;
 import map.MilepostIdShortFormTypeAdapter;
 import map.MilepostShortFormTypeAdapter;
+import map.RoutePlanner;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,16 +50,57 @@ public class Game implements AbstractGame {
 	//useful for undo and deletion
 	private transient int transaction;
 	private transient Date lastChange;
+	private transient volatile long lastAccess;	// last time a request looked the game up
 	private String name;
-	private transient UndoRedoStack undoStack;
-	private transient UndoRedoStack redoStack;
+	private transient UndoRedoStack<Edit> undoStack;
+	private transient UndoRedoStack<Edit> redoStack;
+	private transient StatusChanges changes;	// for sending status deltas
+	private transient GameSnapshot snapshot;	// as of the last time one was asked for
+	private transient Batch batch;				// while a batch is running
 		
 	private static Logger log = LoggerFactory.getLogger(Game.class);
 	
+	/** An action that can be undone: the player and turn it changed, as they were before
+	 * and after, plus any track it built. Undo and redo only touch what the action touched.
+	 */
+	private static class Edit {
+		final Player playerBefore;
+		final TurnData turnBefore;
+		Player playerAfter;
+		TurnData turnAfter;
+		final List<Milepost[]> track = new ArrayList<Milepost[]>();	// built by this action, in order
+		
+		Edit(Player player, TurnData turnData) {
+			playerBefore = new Player(player);
+			turnBefore = new TurnData(turnData);
+		}
+	}
+	
+	/** Actions run as a batch: they're collected into one edit, and become one transaction
+	 * when the batch is done
+	 */
+	private static class Batch {
+		final Edit edit;
+		final int cardsDealt;		// from the deck before the batch, to put back any it dealt
+		boolean registered;		// some action registered a transaction
+		boolean undoable = true;	// no action cleared the undo stack (e.g., by ending the turn)
+		
+		Batch(Edit edit, int cardsDealt) {
+			this.edit = edit;
+			this.cardsDealt = cardsDealt;
+		}
+	}
+	
+	/** One action in a batch */
+	public interface Action {
+		void apply() throws GameException;
+	}
+	
 	/** Default constructor for gson */
 	public Game() {
-		undoStack = new UndoRedoStack(GameException.NOTHING_TO_UNDO);
-		redoStack = new UndoRedoStack(GameException.NOTHING_TO_REDO);
+		undoStack = new UndoRedoStack<Edit>(GameException.NOTHING_TO_UNDO);
+		redoStack = new UndoRedoStack<Edit>(GameException.NOTHING_TO_REDO);
+		changes = new StatusChanges();
 	}
 	
 	/** Constructor. 
@@ -78,8 +121,9 @@ public class Game implements AbstractGame {
 		ended = false;
 		transaction = 1;
 		lastChange = new Date();
-		undoStack = new UndoRedoStack(GameException.NOTHING_TO_UNDO);
-		redoStack = new UndoRedoStack(GameException.NOTHING_TO_REDO);
+		undoStack = new UndoRedoStack<Edit>(GameException.NOTHING_TO_UNDO);
+		redoStack = new UndoRedoStack<Edit>(GameException.NOTHING_TO_REDO);
+		changes = new StatusChanges();
 	}
 	
 	@Override
@@ -103,6 +147,7 @@ public class Game implements AbstractGame {
 		Player p = new Player(ruleSet, pid, color, cards);
 		players.put(pid, p);
 		globalRail.join(pid);
+		changes.player(pid);
 		registerTransaction();
 	}
 
@@ -137,6 +182,7 @@ public class Game implements AbstractGame {
 			}
 			pids = newPids;
 			turnData = new TurnData(name, ruleSet, startid);
+			changes.full();
 			registerTransaction();
 		}
 		return start;
@@ -167,13 +213,15 @@ public class Game implements AbstractGame {
 		if(!testBuildTrack(pid, mileposts)){
 			throw new GameException("Invalid Track");
 		}
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
 		Milepost[] mps = convert(mileposts);
 		int cost = globalRail.checkBuild(pid, mps);
 		turnData.spend(cost);
 		globalRail.build(pid, mps);
-		registerTransaction(originalGameState);
+		edit.track.add(mps);
+		changes.track(pid, mps);
+		registerTransaction(edit);
 	}
 
 	@Override
@@ -181,13 +229,13 @@ public class Game implements AbstractGame {
 			throws GameException {
 		log.info("upgradeTrain(pid={}, train={}, upgradeType={})", pid, upgrade, train);
 		checkActive(pid);
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
 		if(!turnData.checkSpending(20)) throw new GameException("ExceededAllowance");
 		if(!getActivePlayer().testUpgradeTrain(train, upgrade)) throw new GameException("InvalidUpgrade");
 
 		turnData.upgrade(train, upgrade);
-		registerTransaction(originalGameState);
+		registerTransaction(edit);
 		turnData.startTurn();
 	}
 
@@ -197,10 +245,11 @@ public class Game implements AbstractGame {
 		log.info("placeTrain(pid={}, train={}, where={})", pid, train, where);
 		checkActive(pid);
 		checkBuilding();
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
 		getPlayer(pid).placeTrain(gameData.getMap().getMilepost(where), train);
-		registerTransaction(originalGameState);
+		changes.player(pid);
+		registerTransaction(edit);
 	}
 
 	public void testMoveTrain(String pid, int train, MilepostId[] mileposts) throws GameException{
@@ -264,7 +313,7 @@ public class Game implements AbstractGame {
 		int maxMoves = getPlayer(pid).getMaxSpeed(train);
 		testMoveTrain(pid, train, mileposts);
 		
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
 		
 		Player activePlayer = getPlayer(pid);
@@ -284,7 +333,8 @@ public class Game implements AbstractGame {
 			turnData.ferry();
 
 		turnData.move(train, mileposts.length, maxMoves);
-		registerTransaction(originalGameState);
+		changes.player(pid);
+		registerTransaction(edit);
 	}
 
 	@Override
@@ -293,10 +343,11 @@ public class Game implements AbstractGame {
 		log.info("pickupLoad(pid={}, train={}, load={})", pid, train, load);
 		checkActive(pid);
 		checkBuilding();
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
 		getActivePlayer().pickupLoad(train, load);
-		registerTransaction(originalGameState);
+		changes.player(pid);
+		registerTransaction(edit);
 	}
 
 	@Override
@@ -305,11 +356,12 @@ public class Game implements AbstractGame {
 		log.info("deliverLoad(pid={}, train={}, load={})", pid, train, load);
 		checkActive(pid);
 		checkBuilding();
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
-		int deposit = getActivePlayer().deliverLoad(card, train, dealCard());
+		int deposit = getActivePlayer().deliverLoad(card, train, this::dealCard);
 		turnData.deliver(deposit);
-		registerTransaction(originalGameState);
+		changes.player(pid);
+		registerTransaction(edit);
 	}
 
 	@Override
@@ -317,10 +369,11 @@ public class Game implements AbstractGame {
 			throws GameException {
 		log.info("dumpLoad(pid={}, train={}, load={})", pid, train, load);
 		checkActive(pid);
-		String originalGameState = toString();
+		Edit edit = beginEdit();
 		turnData.startTurn();
 		getActivePlayer().dropLoad(train, load);
-		registerTransaction(originalGameState);
+		changes.player(pid);
+		registerTransaction(edit);
 		
 	}
 
@@ -331,48 +384,94 @@ public class Game implements AbstractGame {
 		if(turnData.turnInProgress()) 
 			throw new GameException("TurnAlreadyStarted");
 		
-		String origState = toString();
-
 		Card[] cards = new Card[ruleSet.handSize];
 		for(int i = 0; i < cards.length; i++){
 			cards[i] = dealCard();
 		}
 		getActivePlayer().turnInCards(cards);
-		endTurn(pid);
-		registerTransaction(origState);
+		changes.player(pid);
+		endTurn(pid);	// can't be undone, since the new cards have been seen
+		registerTransaction();
 	}
 	
-	/** To undo, clients should first save off the original game state, 
-	 * then do whatever action they're doing, then call saveForUndo. That
-	 * way if the action throws an exception, it won't go on the undo stack.
-	 * @param gameState
+	/** Puts the player, turn and track back the way they were before the edit */
+	private void revert(Edit edit) throws GameException {
+		for (int i = edit.track.size() - 1; i >= 0; --i)
+			globalRail.erase(edit.playerBefore.name, edit.track.get(i));
+		players.get(edit.playerBefore.name).restore(edit.playerBefore);
+		turnData.restore(edit.turnBefore);
+	}
+	
+	/** Runs the player's actions in order, as though they were one: if they all succeed,
+	 * the game moves on by a single transaction, and they are undone together. If any of
+	 * them fails, what the earlier ones did is reverted, the same way undo would, and the
+	 * exception is passed on. Only the active player's actions can be batched, and ending
+	 * the turn can only be the last of them.
+	 * @throws GameException from the action that failed
+	 */
+	public void batch(String pid, List<Action> actions) throws GameException {
+		log.info("batch(pid={}, actions={})", pid, actions.size());
+		checkActive(pid);
+		if (batch != null)
+			throw new GameException(GameException.INVALID_MESSAGE_TYPE);	// batches don't nest
+		Batch running = new Batch(beginEdit(), gameData.cardsDealt());
+		batch = running;
+		try {
+			for (Action action: actions)
+				action.apply();
+		} catch (GameException | RuntimeException e) {
+			batch = null;
+			revert(running.edit);
+			gameData.skipDealt(running.cardsDealt);	// a failed batch isn't journaled, so mustn't move the deck on
+			changes.full();		// what was noted about the reverted actions no longer holds
+			throw e;
+		}
+		batch = null;
+		if (running.registered && running.undoable)
+			registerTransaction(running.edit);
+		else if (running.registered)
+			registerTransaction();
+	}
+	
+	/** Forgets the undo history, and with it anything undone: an edit left on the redo stack
+	 * would put back the player and turn from before the history was cleared.
 	 */
-	private void saveForUndo(String gameState) {
+	private void clearUndo() {
+		undoStack.clear();
 		redoStack.clear();
-		undoStack.push(gameState);
+		if (batch != null)
+			batch.undoable = false;
+	}
+	
+	/** To undo, actions should first call beginEdit to save off the active player
+	 * and turn, then do whatever they're doing, then call registerTransaction(edit). That
+	 * way if the action throws an exception, it won't go on the undo stack.
+	 */
+	private Edit beginEdit() {
+		return new Edit(getActivePlayer(), turnData);
 	}
 	
 	@Override
-	public Game undo() throws GameException {
+	public void undo() throws GameException {
 		log.info("undo");
-		String originalGameState = toString();
-		String gameState = undoStack.pop();
-		log.debug("Serialized game: {}", gameState);
-		Game newGame = Game.fromString(gameState, this);
-		newGame.registerTransaction();
-		newGame.redoStack.push(originalGameState);
-		return newGame;
+		Edit edit = undoStack.pop();
+		revert(edit);
+		redoStack.push(edit);
+		changes.full();
+		registerTransaction();
 	}
 	
 	@Override
-	public Game redo() throws GameException {
+	public void redo() throws GameException {
 		log.info("redo");
-		String originalGameState = toString();
-		String gameString = redoStack.pop();
-		Game newGame = Game.fromString(gameString, this);
-		newGame.registerTransaction();
-		newGame.undoStack.push(originalGameState);
-		return newGame;
+		Edit edit = redoStack.pop();
+		for (Milepost[] mps: edit.track)
+			globalRail.build(edit.playerAfter.name, mps);
+		players.get(edit.playerAfter.name).restore(edit.playerAfter);
+		turnData.restore(edit.turnAfter);
+		undoStack.push(edit);
+		changes.full();
+		registerTransaction();
 	}
 
 	@Override
@@ -409,10 +508,15 @@ public class Game implements AbstractGame {
 			}
 		}
 		
+		// Ending the turn settles up with the player and anyone they rented track from
+		changes.player(turnData.getPid());
+		for (String oid: pids)
+			if (turnData.rentedFrom(oid))
+				changes.player(oid);
 		turnData.endTurn(next, players);
 			
 		registerTransaction();
-		undoStack.clear();
+		clearUndo();
 		
 		// If the player has resigned, skip their turn.
 //		if (active != null && active.hasResigned())
@@ -426,7 +530,8 @@ public class Game implements AbstractGame {
 		if(pids.indexOf(pid) < activeIndex) activeIndex--;
 		getPlayer(pid).resign();
 		pids.remove(pid);
-		undoStack.clear();
+		changes.full();
+		clearUndo();
 		redoStack.clear();
 	}
 	
@@ -475,6 +580,7 @@ public class Game implements AbstractGame {
 		newGame.lastChange = refGame.lastChange;
 		newGame.undoStack = refGame.undoStack;
 		newGame.redoStack = refGame.redoStack;
+		newGame.changes = refGame.changes;
 //		newGame.globalRail = new HashMap<Milepost, Set<Rail.Track>>();
 //		for (Player p: newGame.players) 
 //			p.fixup(newGame, newGame.globalRail);
@@ -483,6 +589,76 @@ public class Game implements AbstractGame {
 		return newGame;
 	}
 
+	/** Plans the cheapest track the player could build to reach the nearest of the targets. 
+	 * Doesn't build anything, or check it against what they can spend this turn.
+	 * @param from	where to start building, or null to start anywhere the player 
+	 * can already build from (their own track, or a major city)
+	 * @throws GameException if none of the targets can be reached
+	 */
+	public RoutePlanner.Route planBuild(String pid, MilepostId from, MilepostId[] targets) 
+			throws GameException {
+		log.info("planBuild(pid={}, from={}, targets={})", pid, from, targets.length);
+		getPlayer(pid);
+		List<Milepost> sources = new ArrayList<Milepost>();
+		if (from != null)
+			sources.add(getMilepostOrThrow(from, GameException.INVALID_TRACK));
+		else {
+			for (MilepostId m: globalRail.getRail(pid).getRail().keySet())
+				sources.add(gameData.getMap().getMilepost(m));
+			sources.addAll(gameData.getMap().getMajorCities());
+		}
+		RoutePlanner planner = gameData.getMap().getPlanner();
+		RoutePlanner.Route route = planner.findRoute(sources, convertTargets(targets, GameException.INVALID_TRACK), 
+			(mp, edge) -> {
+				if (mp.isSameCity(edge.destination) || globalRail.anyConnects(mp.id, edge.destination.id))
+					return -1;
+				return edge.cost;
+			}, planner.minBuildCostPerHex());
+		if (route == null)
+			throw new GameException(GameException.NO_ROUTE);
+		return route;
+	}
+	
+	/** Plans the shortest move for the train to the nearest of the targets, over track 
+	 * anyone has built or through major cities. Doesn't check rental or ferry rules, 
+	 * or how far the train can go this turn.
+	 * @throws GameException if none of the targets can be reached
+	 */
+	public RoutePlanner.Route planMove(String pid, int train, MilepostId[] targets) throws GameException {
+		log.info("planMove(pid={}, train={}, targets={})", pid, train, targets.length);
+		Player p = getPlayer(pid);
+		if (train < 0 || train >= p.getTrains().length || p.getTrain(train).getLocation() == null)
+			throw new GameException(GameException.INVALID_MOVE);
+		RoutePlanner planner = gameData.getMap().getPlanner();
+		RoutePlanner.Route route = planner.findRoute(Collections.singletonList(p.getTrain(train).getLocation()), 
+			convertTargets(targets, GameException.INVALID_MOVE), 
+			(mp, edge) -> {
+				if (globalRail.anyConnects(mp.id, edge.destination.id) ||
+						(mp.isMajorCity() && edge.destination.isMajorCity()))
+					return 1;
+				return -1;
+			}, planner.minStepsPerHex());
+		if (route == null)
+			throw new GameException(GameException.NO_ROUTE);
+		return route;
+	}
+	
+	private List<Milepost> convertTargets(MilepostId[] targets, String error) throws GameException {
+		if (targets == null || targets.length == 0)
+			throw new GameException(error);
+		List<Milepost> mps = new ArrayList<Milepost>();
+		for (MilepostId target: targets)
+			mps.add(getMilepostOrThrow(target, error));
+		return mps;
+	}
+	
+	private Milepost getMilepostOrThrow(MilepostId id, String error) throws GameException {
+		Milepost mp = gameData.getMap().getMilepost(id);
+		if (mp == null || mp.type == Milepost.Type.BLANK)
+			throw new GameException(error);
+		return mp;
+	}
+
 	public Player getPlayer(String pid) throws GameException {
 		if(players.containsKey(pid)) return players.get(pid);
 		throw new GameException(GameException.PLAYER_NOT_FOUND);
@@ -531,15 +707,57 @@ public class Game implements AbstractGame {
 	
 	public Date lastChangeDate() { return lastChange; }
 	
+	/** Notes that a request has looked the game up, which keeps it from being hibernated */
+	void touch() { lastAccess = System.currentTimeMillis(); }
+	
+	/** Last time the game was changed or looked at */
+	long lastUsed() { return Math.max(lastAccess, lastChange.getTime()); }
+	
 	public String name() { return name; }
 	
+	/** Returns the game frozen at its current transaction, for serializing its status */
+	GameSnapshot snapshot() {
+		if (snapshot == null || snapshot.transaction != transaction)
+			snapshot = new GameSnapshot(this);
+		return snapshot;
+	}
+	
+	/** True if there's nothing to undo or redo and no batch running, so the game's serialized
+	 * state is all there is to it. Must be called from the game's mailbox.
+	 */
+	boolean atRest() {
+		return batch == null && undoStack.isEmpty() && redoStack.isEmpty();
+	}
+	
+	/** Puts back the transaction count and change time of a game read back from disk */
+	void restored(int transaction, Date lastChange) {
+		this.transaction = transaction;
+		this.lastChange = lastChange;
+	}
+	
+	/** Returns what changed after the given transaction, or null if the client needs the full status */
+	StatusChanges.Change changesSince(int since) { return changes.since(since, transaction); }
+	
 	private void registerTransaction() {
+		if (batch != null) {
+			batch.registered = true;	// the batch registers one transaction for all of its actions
+			return;
+		}
 		lastChange = new Date();
 		++transaction;
+		changes.commit(transaction);
 	}
 	
-	private void registerTransaction(String originalGameState) {
-		saveForUndo(originalGameState);
+	private void registerTransaction(Edit edit) {
+		if (batch != null) {
+			batch.edit.track.addAll(edit.track);
+			batch.registered = true;
+			return;
+		}
+		edit.playerAfter = new Player(players.get(edit.playerBefore.name));
+		edit.turnAfter = new TurnData(turnData);
+		redoStack.clear();
+		undoStack.push(edit);
 		registerTransaction();
 	}
 	
@@ -0,0 +1,213 @@
+package train;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Runs incoming messages on a fixed pool of threads. Each game has a mailbox, and the
+ * messages in a mailbox are run one at a time in the order they arrived, so a game is
+ * only ever changed by one thread at once. Messages for different games run in parallel.
+ * Messages that don't belong to a game (newGame, list, ...) run directly on the pool.
+ *
+ * New requests are admitted with tryDispatch, which refuses them once too many messages
+ * are waiting, overall or for one game, so an overloaded server turns work away instead of
+ * queueing it without limit. Work that finishes a request already admitted (sending a
+ * response) uses dispatch, which is never refused.
+ */
+public class GameDispatcher {
+	private final ExecutorService pool;
+	private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+	private final int batchSize;	// messages a mailbox runs before giving up its thread to other games
+	private final int maxQueued;		// messages waiting, over all games, before new requests are refused
+	private final int maxQueuedPerGame;	// messages waiting for one game before its new requests are refused
+	private final AtomicInteger queued = new AtomicInteger();	// messages dispatched and not yet finished
+	private final Queue<Runnable> drainListeners = new ConcurrentLinkedQueue<Runnable>();
+
+	private static Logger log = LoggerFactory.getLogger(GameDispatcher.class);
+
+	/** Queue of pending messages for one game. The mailbox is in the mailboxes map exactly
+	 * as long as it has messages to run, and is on the pool exactly once while it is there.
+	 */
+	private class Mailbox implements Runnable {
+		private final String gid;
+		private final Queue<Runnable> messages = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		Mailbox(String gid) {
+			this.gid = gid;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < batchSize; ++i) {
+				Runnable message = messages.poll();
+				if (message == null)
+					break;
+				size.decrementAndGet();
+				runMessage(message);
+			}
+			// Retire the mailbox if it's empty, otherwise go to the back of the line so
+			// a busy game can't starve the others. Runs under the map's lock for this gid,
+			// so a message can't be added between the check and the removal.
+			mailboxes.compute(gid, (key, mailbox) -> {
+				if (messages.isEmpty())
+					return null;
+				pool.execute(this);
+				return this;
+			});
+		}
+	}
+
+	/** Creates a dispatcher with the given number of threads
+	 * @param threads	number of threads that run messages, typically the number of cores
+	 * @param batchSize	number of messages a game may run before other games get a turn
+	 * @param maxQueued	number of messages that may be waiting before new requests are refused
+	 * @param maxQueuedPerGame	number of messages that may be waiting for one game
+	 */
+	public GameDispatcher(int threads, int batchSize, int maxQueued, int maxQueuedPerGame) {
+		this.batchSize = batchSize;
+		this.maxQueued = maxQueued;
+		this.maxQueuedPerGame = maxQueuedPerGame;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "game-dispatch-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		log.info("Dispatching messages on {} threads", threads);
+	}
+
+	public GameDispatcher(int threads, int batchSize) {
+		this(threads, batchSize, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/** Creates a dispatcher sized from the "dispatcherThreads" system property,
+	 * defaulting to one thread per core, and limited by the "maxQueuedMessages" and
+	 * "maxGameMessages" properties.
+	 */
+	public GameDispatcher() {
+		this(Integer.getInteger("dispatcherThreads", Runtime.getRuntime().availableProcessors()), 16,
+				Integer.getInteger("maxQueuedMessages", 10000), Integer.getInteger("maxGameMessages", 256));
+	}
+
+	/** Queue a message to run. Messages with the same gid run in order, one at a time.
+	 * The message is always accepted, however many are waiting.
+	 * @param gid		game the message is for, or null if it isn't for a particular game
+	 * @param message	work to do
+	 */
+	public void dispatch(String gid, Runnable message) {
+		queued.incrementAndGet();
+		enqueue(gid, message, Integer.MAX_VALUE);
+	}
+
+	/** Queue a new request to run, unless the server already has as much waiting as it
+	 * should take on, overall or for this game.
+	 * @return false if the message was refused
+	 */
+	public boolean tryDispatch(String gid, Runnable message) {
+		if (queued.incrementAndGet() > maxQueued) {
+			finished();
+			return false;
+		}
+		if (!enqueue(gid, message, maxQueuedPerGame)) {
+			finished();
+			return false;
+		}
+		return true;
+	}
+
+	private boolean enqueue(String gid, Runnable message, int limit) {
+		if (gid == null) {
+			pool.execute(() -> runMessage(message));
+			return true;
+		}
+		boolean[] accepted = { true };
+		mailboxes.compute(gid, (key, mailbox) -> {
+			if (mailbox == null) {		// game was idle, start up a new mailbox
+				mailbox = new Mailbox(key);
+				mailbox.size.incrementAndGet();
+				mailbox.messages.add(message);
+				pool.execute(mailbox);
+			}
+			else if (mailbox.size.get() >= limit)
+				accepted[0] = false;
+			else {
+				mailbox.size.incrementAndGet();
+				mailbox.messages.add(message);
+			}
+			return mailbox;
+		});
+		return accepted[0];
+	}
+
+	/** Number of messages dispatched that haven't finished running */
+	public int queued() {
+		return queued.get();
+	}
+
+	/** True once half the messages the dispatcher will take are waiting. Callers should
+	 * stop reading new requests until whenDrained tells them the backlog is down again.
+	 */
+	public boolean isBusy() {
+		return queued.get() >= maxQueued / 2;
+	}
+
+	/** Runs the listener, once, when the backlog is down to a quarter of the limit, or
+	 * right away if it already is.
+	 */
+	public void whenDrained(Runnable listener) {
+		drainListeners.add(listener);
+		if (queued.get() <= maxQueued / 4)
+			notifyDrained();
+	}
+
+	private void notifyDrained() {
+		Runnable listener;
+		while ((listener = drainListeners.poll()) != null) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				log.error("Unexpected exception from drain listener", e);
+			}
+		}
+	}
+
+	private void finished() {
+		if (queued.decrementAndGet() <= maxQueued / 4 && !drainListeners.isEmpty())
+			notifyDrained();
+	}
+
+	/** Stop accepting new messages, and wait for the ones in progress to finish */
+	public void shutdown() {
+		pool.shutdown();
+		try {
+			if (!pool.awaitTermination(5, TimeUnit.SECONDS))
+				pool.shutdownNow();
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runMessage(Runnable message) {
+		try {
+			message.run();
+		} catch (RuntimeException e) {
+			// Don't let one bad message take down the rest of the game's mailbox
+			log.error("Unexpected exception handling message", e);
+		} finally {
+			finished();
+		}
+	}
+}
@@ -8,6 +8,7 @@ public class GameException extends Exception {
 	public static String COLOR_NOT_AVAILABLE = "ColorNotAvailable";
 	public static String PLAYER_ALREADY_JOINED = "PlayerAlreadyJoined";
 	public static String GAME_ALREADY_STARTED = "GameAlreadyStarted";
+	public static String GAME_ALREADY_EXISTS = "GameAlreadyExists";	// gid is taken (e.g., restoring a game twice)
 	public static String PLAYER_NOT_ACTIVE = "PlayerNotActive";
 	public static String BUILDING_TURN = "BuildingTurn";
 	public static String INVALID_TRACK = "InvalidTrack";
@@ -17,6 +18,11 @@ public class GameException extends Exception {
 	public static String TRAIN_FULL = "TrainFull";
 	public static String INVALID_DELIVERY = "InvalidDelivery";		// delivering a load with no card
 	public static String INVALID_MESSAGE_TYPE = "InvalidMessageType";// message type not recognised
+	public static String BAD_MESSAGE = "BadMessage";				// message isn't json, or doesn't fit its type
+	public static String SERVER_BUSY = "ServerBusy";				// too many messages waiting, try again later
+	public static String TOO_MANY_REQUESTS = "TooManyRequests";	// client is over its rate limit
+	public static String JOURNAL_FAILED = "JournalFailed";			// change was made, but couldn't be saved
+	public static String INTERNAL_ERROR = "InternalError";			// the server failed handling the message
 	public static String INVALID_MOVE = "InvalidMove";
 	public static String TURN_ALREADY_STARTED = "TurnAlreadyStarted";
 	public static String BAD_MAP_DATA = "BadMapData";
@@ -26,6 +32,7 @@ public class GameException extends Exception {
 	public static String TRAIN_ALREADY_STARTED = "TrainAlreadyStarted";
 	public static String NOTHING_TO_UNDO = "NothingToUndo";
 	public static String NOTHING_TO_REDO = "NothingToRedo";
+	public static String NO_ROUTE = "NoRoute";
 	
 	public static final long serialVersionUID = 1;
 	
@@ -0,0 +1,120 @@
+package train;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/** Thread safe index of the games in progress, by gid and by game.
+ * Games are spread over shards by gid. Lookups don't lock; changes lock only the shard
+ * of the gid they touch, which keeps the game's entries in the gid-to-game and
+ * game-to-gid indexes in step with each other. Game doesn't override equals or hashCode,
+ * so the reverse index is by object identity.
+ */
+public class GameRegistry {
+	private final Shard[] shards;
+	private final int shardMask;
+	private final Map<Game, String> gids = new ConcurrentHashMap<Game, String>();
+
+	private static class Shard {
+		final Map<String, Game> games = new ConcurrentHashMap<String, Game>();
+	}
+
+	/** Creates an empty registry
+	 * @param shardCount	number of shards, rounded up to a power of two
+	 */
+	public GameRegistry(int shardCount) {
+		int count = 1;
+		while (count < shardCount)
+			count <<= 1;
+		shards = new Shard[count];
+		for (int i = 0; i < count; ++i)
+			shards[i] = new Shard();
+		shardMask = count - 1;
+	}
+
+	public GameRegistry() {
+		this(64);
+	}
+
+	private Shard shard(String gid) {
+		int h = gid.hashCode();
+		return shards[(h ^ (h >>> 16)) & shardMask];
+	}
+
+	/** Returns the game with this gid, or null if there isn't one */
+	public Game get(String gid) {
+		if (gid == null)
+			return null;
+		return shard(gid).games.get(gid);
+	}
+
+	/** Returns the gid of the game, or null if the game isn't registered */
+	public String getGameId(Game game) {
+		return gids.get(game);
+	}
+
+	/** Adds a new game.
+	 * @return false if there's already a game with this gid
+	 */
+	public boolean add(String gid, Game game) {
+		Shard shard = shard(gid);
+		synchronized (shard) {
+			if (shard.games.containsKey(gid))
+				return false;
+			shard.games.put(gid, game);
+			gids.put(game, gid);
+			return true;
+		}
+	}
+
+	/** Removes the game with this gid, returning it, or null if there was none */
+	public Game remove(String gid) {
+		Shard shard = shard(gid);
+		synchronized (shard) {
+			Game game = shard.games.remove(gid);
+			if (game != null)
+				gids.remove(game);
+			return game;
+		}
+	}
+
+	/** Removes all the games that pass the test.
+	 * @return gids of the games that were removed
+	 */
+	public List<String> removeIf(Predicate<Game> tester) {
+		List<String> removed = new ArrayList<String>();
+		for (Shard shard: shards) {
+			synchronized (shard) {
+				for (Iterator<Map.Entry<String, Game>> it = shard.games.entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry<String, Game> entry = it.next();
+					if (tester.test(entry.getValue())) {
+						it.remove();
+						gids.remove(entry.getValue());
+						removed.add(entry.getKey());
+					}
+				}
+			}
+		}
+		return removed;
+	}
+
+	/** Calls action on each registered game. Games added or removed while this is
+	 * running may or may not be seen.
+	 */
+	public void forEach(BiConsumer<String, Game> action) {
+		for (Shard shard: shards)
+			shard.games.forEach(action);
+	}
+
+	/** Number of games registered */
+	public int size() {
+		int size = 0;
+		for (Shard shard: shards)
+			size += shard.games.size();
+		return size;
+	}
+}
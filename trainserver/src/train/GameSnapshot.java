@@ -0,0 +1,41 @@
+package train;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import player.Player;
+import player.Rail;
+import player.TurnData;
+
+/** The parts of a game that go into its status, frozen as of one transaction. Taking one
+ * copies the players and the turn, but shares the track with the game's rails. Once taken,
+ * it can be serialized on any thread while the game goes on changing.
+ */
+class GameSnapshot {
+	final int transaction;
+	final String geography;
+	final TurnData turnData;
+	final boolean ended;
+	final int turns;
+	final String lastid;
+	final List<Player> players;
+	final Map<String, Rail.Snapshot> rails;
+
+	/** Must be called from the game's mailbox */
+	GameSnapshot(Game game) {
+		transaction = game.transaction();
+		geography = game.gameData.getGeography();
+		turnData = game.getTurnData() != null ? new TurnData(game.getTurnData()) : null;
+		ended = game.isOver();
+		turns = game.getTurns();
+		lastid = game.getLastPid();
+		players = new ArrayList<Player>();
+		rails = new HashMap<String, Rail.Snapshot>();
+		for (Player player: game.getPlayers()) {
+			players.add(new Player(player));
+			rails.put(player.name, game.getGlobalRail().getRail(player.name).snapshot());
+		}
+	}
+}
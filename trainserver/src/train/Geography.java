@@ -0,0 +1,296 @@
+package train;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import map.MapFile;
+import map.TrainMap;
+import reference.Card;
+import reference.City;
+import reference.Trip;
+
+/** Everything about a geography that is the same in every game played on it -- the map,
+ * the cities, where the loads are, and the cards. It is read from the data files the first
+ * time a game needs it, and then shared by all the games on that geography, so none of it
+ * may be changed once loaded.
+ *
+ * Games acquire a geography when they are created and release it when they are deleted.
+ * Geographies no game is using are dropped the next time evictUnused is called.
+ */
+public final class Geography {
+
+	private final String name;				/** which game is played (africa, russia, china, etc.) */
+	private final TrainMap map;				/** Mileposts, cities, building costs */
+	private final Map<String, City> cities;	/** Cities indexed by city name, contains loads found in each city */
+	private final Map<String, Set<City>> loads; /** Key=load, Value= cities where loads can be obtained */
+	private final List<Card> cards;			/** Cards holding delivery possibilities, in file order */
+	private int references;					/** Number of games using this geography */
+	private MapPayload payload;				/** Encoded newGame response, made when first asked for */
+
+	/** Loaded geographies, indexed by name */
+	static private final Map<String, Geography> loaded = new HashMap<String, Geography>();
+
+	private static Logger log = LoggerFactory.getLogger(Geography.class);
+
+	private Geography(String gameType) throws GameException {
+		Map<String, Set<City>> loads = new HashMap<String, Set<City>>();
+		Map<String, City> cities = getCityData(gameType, loads);
+		List<Card> cards = getCardData(gameType, cities, loads);
+		map = getMapData(gameType, cities);
+		name = gameType;
+		for (Map.Entry<String, Set<City>> entry: loads.entrySet())
+			entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+		this.cities = Collections.unmodifiableMap(cities);
+		this.loads = Collections.unmodifiableMap(loads);
+		this.cards = Collections.unmodifiableList(cards);
+	}
+
+	public String getName() { return name; }
+	public TrainMap getMap() { return map; }
+	public Map<String, City> getCities() { return cities; }
+	public Map<String, Set<City>> getLoads() { return loads; }
+	public List<Card> getCards() { return cards; }
+
+	synchronized MapPayload getPayload() {
+		if (payload == null)
+			payload = TrainServer.buildMapPayload(this);
+		return payload;
+	}
+
+	/** Reads the geography from its files into a copy of its own, which isn't shared or
+	 * counted, for timing and checking the load
+	 */
+	static public Geography readUnshared(String gameType) throws GameException {
+		return new Geography(gameType);
+	}
+
+	/** Returns the shared geography, loading it if no game has it yet. Each call must be
+	 * matched by a call to release once the game is done with it.
+	 * @throws GameException if there is no such geography, or its data can't be read
+	 */
+	static public Geography acquire(String gameType) throws GameException {
+		synchronized (loaded) {
+			Geography geography = loaded.get(gameType);
+			if (geography == null) {
+				long start = System.nanoTime();
+				geography = new Geography(gameType);
+				loaded.put(gameType, geography);
+				log.info("Loaded geography {} in {} ms", gameType, (System.nanoTime() - start) / 1000000);
+			}
+			++geography.references;
+			return geography;
+		}
+	}
+
+	/** The game no longer needs the geography */
+	public void release() {
+		synchronized (loaded) {
+			if (references <= 0)
+				log.error("Geography {} released more often than acquired", name);
+			else
+				--references;
+		}
+	}
+
+	/** Drops the geographies no game is using, so they can be garbage collected.
+	 * @return number of geographies dropped
+	 */
+	static public int evictUnused() {
+		int evicted = 0;
+		synchronized (loaded) {
+			for (Iterator<Geography> it = loaded.values().iterator(); it.hasNext(); ) {
+				Geography geography = it.next();
+				if (geography.references == 0) {
+					log.info("Evicting unused geography {}", geography.name);
+					it.remove();
+					++evicted;
+				}
+			}
+		}
+		return evicted;
+	}
+
+	/** Returns the number of games using the geography, or 0 if it isn't loaded */
+	static public int references(String gameType) {
+		synchronized (loaded) {
+			Geography geography = loaded.get(gameType);
+			return geography != null ? geography.references : 0;
+		}
+	}
+
+	/** Read in the data for the deck of cards used for the game.
+	 * @throws IOException */
+	static List<Card> getCardData(String gameType, Map<String, City> cities, Map<String, Set<City>> loads)
+			throws GameException {
+		List<Card> deck = new ArrayList<Card>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(DataCatalog.get().getFile(gameType, "cards.csv")));
+			String line = reader.readLine();	// skip header row
+			while ((line = reader.readLine()) != null) {
+				Trip[] cardData = new Trip[3];
+				String[] fields = line.split(",");
+				if (fields.length != 9) {
+					log.error("Expected 9 fields in card, found only {}", fields.length);
+					reader.close();
+					throw new GameException(GameException.BAD_CARD_DATA);
+				}
+
+				// Check that the cities on the card all exist in the city list
+				// Check that each load is available in some city
+				if (!cities.containsKey(fields[0]))
+					log.info("Card delivers to {}, which is not in the city list", fields[0]);
+				if (!loads.containsKey(fields[1]))
+					log.info("Card uses load {}, which is not available in any city from the city list", fields[1]);
+				cardData[0] = new Trip(fields[0], fields[1], Integer.parseInt(fields[2]));
+				if (!cities.containsKey(fields[3]))
+					log.info("Card delivers to {}, which is not in the city list", fields[3]);
+				if (!loads.containsKey(fields[4]))
+					log.info("Card uses load {}, which is not available in any city from the city list", fields[4]);
+				cardData[1] = new Trip(fields[3], fields[4], Integer.parseInt(fields[5]));
+				if (!cities.containsKey(fields[6]))
+					log.info("Card delivers to {}, which is not in the city list", fields[6]);
+				if (!loads.containsKey(fields[7]))
+					log.info("Card uses load {}, which is not available in any city from the city list", fields[7]);
+				cardData[2] = new Trip(fields[6], fields[7], Integer.parseInt(fields[8]));
+				log.debug("Card for delivering {} to {} for {}, {} to {} for {}, or {} to {} for {}",
+						cardData[0].load, cardData[0].dest, cardData[0].cost,
+						cardData[1].load, cardData[1].dest, cardData[1].cost,
+						cardData[2].load, cardData[2].dest, cardData[2].cost);
+				deck.add(new Card(cardData));
+			}
+		} catch (FileNotFoundException e) {
+			log.error("FileNotFoundException reading game map {}", e);
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		} catch (IOException e) {
+			log.error("IOException reading game map {}", e);
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+			} catch(IOException e) {
+				log.error("IOException closing reader");
+			}
+		}
+		return deck;
+	}
+
+	/** Read in the data for the map, which includes the basic milepost information,
+	 * in the map.csv file, the river crossings list, sea inlets and lakes
+	 * crossing list, and ferry crossings list.
+	 *
+	 * Cost for building from each milepost to its connecting mileposts
+	 * are calculated using the milespost types in the map file, and adding in the
+	 * extra cost if the track crosses either a river or sea inlet/lake.
+	 *
+	 * @param gameType
+	 * @return
+	 * @throws GameException
+	 */
+	static private TrainMap getMapData(String gameType, Map<String, City> cities)
+			throws GameException {
+		DataCatalog catalog = DataCatalog.get();
+		if (catalog.hasFile(gameType, MapFile.FILE_NAME)) {
+			File compiled = catalog.getFile(gameType, MapFile.FILE_NAME);
+			if (isCurrent(compiled, gameType, mapSourceFiles)) {
+				try {
+					return MapFile.read(compiled, cities);
+				} catch (IOException e) {
+					log.error("IOException reading compiled map {}", e);
+				} catch (GameException e) {
+					log.error("Compiled map for {} is not usable", gameType);
+				}
+			}
+			else
+				log.warn("Compiled map for {} is older than its csv files, run MapCompiler again", gameType);
+		}
+		return readMapData(gameType, cities);
+	}
+
+	/** Read the map from the csv files, ignoring any compiled map */
+	static TrainMap readMapData(String gameType, Map<String, City> cities) throws GameException {
+		TrainMap map = null;
+		try {
+			BufferedReader mapDataReader = new BufferedReader(new FileReader(DataCatalog.get().getFile(gameType, "map.csv")));
+			BufferedReader riverDataReader = new BufferedReader(new FileReader(DataCatalog.get().getFile(gameType, "rivers.csv")));
+			BufferedReader seaDataReader = new BufferedReader(new FileReader(DataCatalog.get().getFile(gameType, "seas.csv")));
+			BufferedReader ferryDataReader = new BufferedReader(new FileReader(DataCatalog.get().getFile(gameType, "ferries.csv")));
+			map = new TrainMap(mapDataReader, riverDataReader, seaDataReader, ferryDataReader, cities);
+			mapDataReader.close();
+			riverDataReader.close();
+			seaDataReader.close();
+			ferryDataReader.close();
+		} catch (FileNotFoundException e) {
+			log.error("FileNotFoundException reading game map {}", e);
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		} catch (IOException e) {
+			log.error("IOException reading game map {}", e);
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		}
+		return map;
+	}
+
+	/** Files the compiled map is made from */
+	static final String[] mapSourceFiles = { "map.csv", "rivers.csv", "seas.csv", "ferries.csv" };
+
+	/** True if the compiled file was written after all of the files it was made from */
+	static private boolean isCurrent(File compiled, String gameType, String[] sources) throws GameException {
+		for (String source: sources)
+			if (DataCatalog.get().getFile(gameType, source).lastModified() > compiled.lastModified())
+				return false;
+		return true;
+	}
+
+	static Map<String, City> getCityData(String gameType, Map<String, Set<City>> loads) throws GameException {
+		Map<String, City> cities = new HashMap<String, City>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(DataCatalog.get().getFile(gameType, "city.csv")));
+			String line = reader.readLine();	// skip header row
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",");
+				String cityName = fields[0];
+				boolean majorCity = cityName.startsWith("m");
+				if (majorCity)
+					cityName = cityName.substring(1);
+				List<String> cityloads = new ArrayList<String>();
+				for (int i = 1; i < fields.length && fields[i].length() > 0; ++i)
+					cityloads.add(fields[i]);
+				log.debug("{} city {}", majorCity ? "Major" : "Minor", cityName);
+				City city = new City(cityName, Collections.unmodifiableList(cityloads), majorCity);
+				for (String load: cityloads) {
+					// Add it to the loads index
+					Set<City> loadLocations = loads.get(load);
+					if (loadLocations == null)
+						loadLocations = new HashSet<City>();
+					loadLocations.add(city);
+					loads.put(load, loadLocations);
+					log.debug("{}", load);
+				}
+				cities.put(cityName, city);
+			}
+			reader.close();
+		} catch (FileNotFoundException e) {
+			log.error("FileNotFoundException reading city data {}", e);
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		} catch (IOException e) {
+			log.error("IOException reading city data {}", e);
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		}
+		return cities;
+	}
+}
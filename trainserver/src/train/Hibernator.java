@@ -0,0 +1,214 @@
+package train;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/** Moves games nobody has touched for a while out of memory and into files, and brings them
+ * back the next time they're asked for. A hibernated game keeps only a few fields in memory,
+ * enough to list it and to expire it, so the heap holds the games being played rather than
+ * every game from the last two weeks.
+ *
+ * Each game is a gzipped file, gid.hibernated, of two lines: the fields kept in memory, then
+ * the game as a SavedGame. Undo history isn't saved, so a player can't undo a move made
+ * before their game went to sleep.
+ */
+public class Hibernator {
+	private static Logger log = LoggerFactory.getLogger(Hibernator.class);
+	private static final Gson gson = new Gson();
+	private static final String SUFFIX = ".hibernated";
+
+	private final Path dir;
+	private final long idleMillis;		/** untouched for this long, a game is hibernated */
+	private final Map<String, Sleeper> sleeping = new ConcurrentHashMap<String, Sleeper>();
+	private Timer timer;
+
+	/** What's kept in memory about a hibernated game */
+	static class Sleeper {
+		String name;
+		boolean joinable;
+		boolean ended;
+		long lastChange;
+
+		Sleeper() {}
+
+		Sleeper(Game game) {
+			name = game.name();
+			joinable = game.isJoinable();
+			ended = game.isOver();
+			lastChange = game.lastChangeDate().getTime();
+		}
+	}
+
+	/** Opens the directory, and picks up the games already hibernated in it. Games that are
+	 * also in memory (restored from the journal) have newer state, so their files are dropped;
+	 * the ones still idle are hibernated again as soon as the hibernator starts.
+	 * @param idleMillis	how long a game may go untouched before it's hibernated
+	 */
+	public Hibernator(Path dir, long idleMillis) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.idleMillis = idleMillis;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path file: files) {
+				String name = file.getFileName().toString();
+				String gid = name.substring(0, name.length() - SUFFIX.length());
+				if (TrainServer.games.get(gid) != null) {
+					Files.delete(file);
+					continue;
+				}
+				try (BufferedReader in = open(file)) {
+					Sleeper sleeper = gson.fromJson(in.readLine(), Sleeper.class);
+					if (sleeper != null)
+						sleeping.put(gid, sleeper);
+				} catch (IOException | JsonParseException e) {
+					log.error("Can't read hibernated game {}: {}", gid, e.getMessage());
+				}
+			}
+		}
+		log.info("{} games hibernated in {}", sleeping.size(), dir);
+	}
+
+	/** Checks for idle games every so often, and hibernates each one from its own mailbox,
+	 * so nothing else is touching it at the time. The first check is straight away, so the
+	 * idle games the journal brought back into memory at startup don't stay there.
+	 */
+	public void start(GameDispatcher dispatcher) {
+		long interval = Math.max(1000, Math.min(idleMillis / 4, 60000));
+		timer = new Timer("hibernator", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				for (String gid: TrainServer.idleGames(idleMillis))
+					dispatcher.dispatch(gid, () -> TrainServer.hibernate(gid, idleMillis));
+			}
+		}, 0, interval);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel();
+	}
+
+	/** True if the game is hibernated */
+	boolean has(String gid) {
+		return sleeping.containsKey(gid);
+	}
+
+	/** What's kept about the game, or null if it isn't hibernated */
+	Sleeper get(String gid) {
+		return sleeping.get(gid);
+	}
+
+	/** Number of games hibernated */
+	public int size() {
+		return sleeping.size();
+	}
+
+	/** Writes the game out. Must be called from the game's mailbox; the caller drops the game
+	 * from memory once it's written.
+	 */
+	void save(String gid, Game game) throws IOException {
+		Sleeper sleeper = new Sleeper(game);
+		Path temp = dir.resolve(gid + SUFFIX + ".tmp");
+		try (Writer out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(temp)), StandardCharsets.UTF_8)) {
+			out.write(gson.toJson(sleeper));
+			out.write('\n');
+			gson.toJson(new SavedGame(gid, game, 0), out);
+		}
+		Files.move(temp, file(gid), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		sleeping.put(gid, sleeper);
+	}
+
+	/** Brings the game back into the registry, if it's hibernated
+	 * @return the game, or null if there's no such game, or it can't be read back
+	 */
+	Game wake(String gid, GameRegistry games) {
+		Sleeper sleeper = sleeping.get(gid);
+		if (sleeper == null)
+			return games.get(gid);
+		synchronized (sleeper) {
+			if (sleeping.get(gid) != sleeper)
+				return games.get(gid);		// woken while we waited
+			try (BufferedReader in = open(file(gid))) {
+				in.readLine();
+				Game game = gson.fromJson(in, SavedGame.class).restore();
+				if (!games.add(gid, game))
+					game = games.get(gid);
+				sleeping.remove(gid);
+				Files.deleteIfExists(file(gid));
+				log.info("Woke game {}", gid);
+				return game;
+			} catch (IOException | GameException | RuntimeException e) {
+				log.error("Can't wake game " + gid, e);
+				return null;
+			}
+		}
+	}
+
+	/** Calls action on each hibernated game */
+	void forEach(BiConsumer<String, Sleeper> action) {
+		sleeping.forEach(action);
+	}
+
+	/** Deletes the hibernated games that pass the test
+	 * @return gids of the games deleted
+	 */
+	List<String> removeIf(Predicate<Sleeper> tester) {
+		List<String> removed = new ArrayList<String>();
+		for (Map.Entry<String, Sleeper> entry: sleeping.entrySet()) {
+			if (tester.test(entry.getValue()) && remove(entry.getKey()))
+				removed.add(entry.getKey());
+		}
+		return removed;
+	}
+
+	/** Deletes the game's file, if it has one
+	 * @return true if the game was hibernated
+	 */
+	boolean remove(String gid) {
+		Sleeper sleeper = sleeping.get(gid);
+		if (sleeper == null)
+			return false;
+		synchronized (sleeper) {
+			if (sleeping.remove(gid) == null)
+				return false;
+			try {
+				Files.deleteIfExists(file(gid));
+			} catch (IOException e) {
+				log.warn("Can't delete hibernated game {}: {}", gid, e.getMessage());
+			}
+			return true;
+		}
+	}
+
+	private Path file(String gid) {
+		return dir.resolve(gid + SUFFIX);
+	}
+
+	private static BufferedReader open(Path file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8));
+	}
+}
@@ -1,7 +1,12 @@
 package train;
   
+  import java.io.IOException;
+  import java.nio.file.Paths;
+
   import io.netty.bootstrap.ServerBootstrap;
+  import io.netty.buffer.PooledByteBufAllocator;
   import io.netty.channel.Channel;
+  import io.netty.channel.ChannelOption;
   import io.netty.channel.EventLoopGroup;
   import io.netty.channel.nio.NioEventLoopGroup;
   import io.netty.channel.socket.nio.NioServerSocketChannel;
@@ -23,6 +28,7 @@ package train;
   
       static private EventLoopGroup bossGroup = new NioEventLoopGroup(1);
       static private EventLoopGroup workerGroup = new NioEventLoopGroup();
+      static private GameDispatcher dispatcher;
 
       public static void main(String[] args) throws Exception {
 
@@ -30,6 +36,12 @@ package train;
     	  Logger logger = LoggerFactory.getLogger(HttpTrainServer.class);
     	  logger.info("Hello World");
 
+    	  // Find the game data up front, rather than on the first request
+    	  DataCatalog catalog = DataCatalog.get();
+    	  if (System.getProperty("watchData") != null)
+    		  catalog.startWatching();
+    	  openJournal();
+
     	    // Configure SSL.
           final SslContext sslCtx;
           if (SSL) {
@@ -42,12 +54,16 @@ package train;
           // Configure the server.
           EventLoopGroup bossGroup = new NioEventLoopGroup(1);
           EventLoopGroup workerGroup = new NioEventLoopGroup();
+          GameDispatcher dispatcher = new GameDispatcher();
+          TrainServer.setDispatcher(dispatcher);
+          startHibernator(dispatcher);
           try {
               ServerBootstrap b = new ServerBootstrap();
               b.group(bossGroup, workerGroup)
                .channel(NioServerSocketChannel.class)
+               .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)	// responses are serialized into pooled buffers
                .handler(new LoggingHandler(LogLevel.INFO))
-               .childHandler(new HttpTrainServerInitializer(sslCtx));
+               .childHandler(new HttpTrainServerInitializer(sslCtx, dispatcher));
   
               Channel ch = b.bind(PORT).sync().channel();
   
@@ -55,6 +71,8 @@ package train;
           } finally {
               bossGroup.shutdownGracefully();
               workerGroup.shutdownGracefully();
+              TrainServer.setDispatcher(null);
+              dispatcher.shutdown();
           }
       }
       
@@ -68,15 +86,21 @@ package train;
               sslCtx = null;
           }
   
+          openJournal();
+
           // Configure the server.
           bossGroup = new NioEventLoopGroup(1);
           workerGroup = new NioEventLoopGroup();
+          dispatcher = new GameDispatcher();
+          TrainServer.setDispatcher(dispatcher);
+          startHibernator(dispatcher);
           try {
               ServerBootstrap b = new ServerBootstrap();
               b.group(bossGroup, workerGroup)
                .channel(NioServerSocketChannel.class)
+               .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)	// responses are serialized into pooled buffers
                .handler(new LoggingHandler(LogLevel.INFO))
-               .childHandler(new HttpTrainServerInitializer(sslCtx));
+               .childHandler(new HttpTrainServerInitializer(sslCtx, dispatcher));
   
               Channel ch = b.bind(PORT).sync().channel();
   
@@ -87,9 +111,34 @@ package train;
           } finally {
               bossGroup.shutdownGracefully();
               workerGroup.shutdownGracefully();
+              TrainServer.setDispatcher(null);
+              dispatcher.shutdown();
           }
       }
       
+      /** Brings back the games saved in the journal directory, if there is one ("journalDir"),
+       * and journals games from here on
+       */
+      static void openJournal() throws IOException {
+          String dir = System.getProperty("journalDir");
+          if (dir != null)
+              TrainServer.recover(new Journal(Paths.get(dir)));
+      }
+      
+      /** Hibernates games left untouched for "hibernateAfter" minutes (default 30, 0 for never),
+       * into "hibernateDir"
+       */
+      static void startHibernator(GameDispatcher dispatcher) throws IOException {
+          long minutes = Long.getLong("hibernateAfter", 30);
+          if (minutes <= 0)
+              return;
+          String dir = System.getProperty("hibernateDir", 
+                  Paths.get(System.getProperty("java.io.tmpdir"), "trainserver-hibernated").toString());
+          Hibernator hibernator = new Hibernator(Paths.get(dir), minutes * 60000);
+          TrainServer.setHibernator(hibernator);
+          hibernator.start(dispatcher);
+      }
+      
       static public void stopServer() {
           bossGroup.shutdownGracefully();
           workerGroup.shutdownGracefully();
@@ -1,10 +1,12 @@
 package train;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -13,9 +15,8 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.util.CharsetUtil;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.ReferenceCountUtil;
 
 import org.slf4j.Logger;
@@ -28,62 +29,88 @@ import static io.netty.handler.codec.http.HttpVersion.*;
 
 import com.google.gson.Gson;
 
-/** Translates incoming http GET and PUT into calls on TrainGame interface */
-public class HttpTrainServerHandler extends SimpleChannelInboundHandler<Object> implements Runnable {
+/** Translates incoming http GET and PUT into calls on TrainGame interface.
+ * Messages are handed off to the dispatcher, which runs them on the game's mailbox,
+ * so the handler itself keeps no per-message state.
+ */
+public class HttpTrainServerHandler extends SimpleChannelInboundHandler<Object> {
 
-	private HttpRequest request;
-	/** Buffer that stores the response content */
-	private final StringBuilder buf = new StringBuilder();
-	private boolean isPost = false;
+	private final GameDispatcher dispatcher;
+	private static final Gson gson = new Gson();
 	
-	private BlockingQueue<TrainMessage> messageQueue = new ArrayBlockingQueue<TrainMessage>(1000);
-	private boolean isStopped = false;		// when true, stop handling new messages
-	private Thread messageHandler;
+	/** Status requests waiting for their game to change */
+	private static final StatusWaiters statusWaiters = new StatusWaiters();
+	/** Requests each client may send, shared by all the connections from one address */
+	private static final RateLimiter rateLimiter = new RateLimiter();
+	/** Seconds a client is asked to wait when the server is too busy to take its request */
+	private static final String busyRetryAfter = System.getProperty("busyRetryAfter", "1");
+	/** Longest time a status request waits for its game to change, in milliseconds */
+	private static final long longPollTimeout = Long.getLong("longPollTimeout", 25000L);
+	/** Identifies this run of the server, so status tags from before a restart never match */
+	private static final String serverRun = Long.toString(System.currentTimeMillis(), 36);
 
-	private final static String NEW_GAME = "newGame";
-	private final static String JOIN_GAME = "joinGame";
-	private final static String RESUME_GAME = "resumeGame";
-	private final static String START_GAME = "startGame";
-	private final static String BUILD_TRACK = "buildTrack";
-	private final static String TEST_BUILD_TRACK = "testBuildTrack";
-	private final static String UPGRADE_TRAIN = "upgradeTrain";
-	private final static String PLACE_TRAIN = "placeTrain";
-	private final static String PICKUP_LOAD = "pickupLoad";
-	private final static String DELIVER_LOAD = "deliverLoad";
-	private final static String DUMP_LOAD = "dumpLoad";
-	private final static String TEST_MOVE_TRAIN = "testMoveTrain";
-	private final static String MOVE_TRAIN = "moveTrain";
-	private final static String TURN_IN_CARDS = "turnInCards";
-	private final static String UNDO = "undo";
-	private final static String REDO = "redo";
-	private final static String END_TURN = "endTurn";
-	private final static String END_GAME = "endGame";
-	private final static String RESIGN_GAME = "resignGame";
+	final static String NEW_GAME = "newGame";
+	final static String JOIN_GAME = "joinGame";
+	final static String RESUME_GAME = "resumeGame";
+	final static String START_GAME = "startGame";
+	final static String BUILD_TRACK = "buildTrack";
+	final static String TEST_BUILD_TRACK = "testBuildTrack";
+	final static String UPGRADE_TRAIN = "upgradeTrain";
+	final static String PLACE_TRAIN = "placeTrain";
+	final static String PICKUP_LOAD = "pickupLoad";
+	final static String DELIVER_LOAD = "deliverLoad";
+	final static String DUMP_LOAD = "dumpLoad";
+	final static String TEST_MOVE_TRAIN = "testMoveTrain";
+	final static String MOVE_TRAIN = "moveTrain";
+	final static String TURN_IN_CARDS = "turnInCards";
+	final static String UNDO = "undo";
+	final static String REDO = "redo";
+	final static String END_TURN = "endTurn";
+	final static String END_GAME = "endGame";
+	final static String RESIGN_GAME = "resignGame";
+	final static String BATCH = "batch";
 	
-	private final static String LIST = "list";
-	private final static String STATUS = "status";
-	private final static String LIST_COLORS = "listColors";
-	private final static String LIST_GEOGRAPHIES = "listGeographies";
+	final static String LIST = "list";
+	final static String STATUS = "status";
+	final static String LIST_COLORS = "listColors";
+	final static String LIST_GEOGRAPHIES = "listGeographies";
+	final static String PLAN_ROUTE = "planRoute";
 	
 	private static Logger log = LoggerFactory.getLogger(HttpTrainServerHandler.class);
 	
-	private static class TrainMessage {
+	/** Path of the metrics, in Prometheus text format */
+	final static String METRICS_PATH = "/metrics";
+	
+	private static class TrainMessage implements ChannelFutureListener {
 		ChannelHandlerContext ctx;
-		HttpObject httpMessage;
-		String jsonMessage;
+		HttpRequest httpMessage;
+		RequestDecoder.Request request;
+		long mark;		// System.nanoTime() when the phase under way started
 		
-		public TrainMessage(ChannelHandlerContext ctx, Object httpMessage, String jsonMessage) {
+		public TrainMessage(ChannelHandlerContext ctx, Object httpMessage, RequestDecoder.Request request, long mark) {
 			this.ctx = ctx;
 			ReferenceCountUtil.retain(httpMessage);
-			this.httpMessage = (HttpObject)httpMessage;
-			this.jsonMessage = jsonMessage;
+			this.httpMessage = (HttpRequest)httpMessage;
+			this.request = request;
+			this.mark = mark;
+		}
+		
+		/** Records the time since the mark against the phase, and starts the next phase */
+		void lap(Metrics.Phase phase) {
+			long now = System.nanoTime();
+			Metrics.record(request.messageType, phase, now - mark);
+			mark = now;
+		}
+		
+		/** The response has been written to the connection */
+		@Override
+		public void operationComplete(ChannelFuture future) {
+			lap(Metrics.Phase.WRITE);
 		}
 	}
 
-	public HttpTrainServerHandler() {
-		// start the message loop
-		messageHandler = new Thread(this);
-		messageHandler.start();
+	public HttpTrainServerHandler(GameDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
 	}
 	
 	@Override
@@ -93,218 +120,483 @@ public class HttpTrainServerHandler extends SimpleChannelInboundHandler<Object>
 
 	@Override
 	protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
-		String requestText = null;
+		ByteBuf content = null;
 		if (msg instanceof HttpContent) {
 			HttpContent httpContent = (HttpContent) msg;
-			ByteBuf content = httpContent.content();
-			if (content.isReadable()) 
-				requestText = content.toString(CharsetUtil.UTF_8);
+			if (httpContent.content().isReadable()) 
+				content = httpContent.content();
 		}
-		buf.setLength(0);
-		if (msg instanceof HttpRequest) {
-			HttpRequest request = this.request = (HttpRequest) msg;
+		if (!(msg instanceof HttpRequest))
+			return;
+		HttpRequest request = (HttpRequest) msg;
 
-			if (is100ContinueExpected(request))
-				send100Continue(ctx);
+		if (is100ContinueExpected(request))
+			send100Continue(ctx);
+		
+		if (request.getMethod() == HttpMethod.GET && isMetrics(request.getUri())) {
+			sendMetrics(request, ctx);
+			return;
+		}
+
+		// Everything that can turn a request away is checked here, on the event loop,
+		// so requests that won't be handled never take up room in a mailbox
+		long wait = rateLimiter.acquire(clientAddress(ctx));
+		if (wait > 0) {
+			sendRefusal(request, ctx, TOO_MANY_REQUESTS, Long.toString(wait), GameException.TOO_MANY_REQUESTS);
+			return;
+		}
 
+		// Incoming is either a request for games to join, games to resume, 
+		// or status on a particular game
+		RequestDecoder.Request decoded;
+		long started = System.nanoTime();
+		try {
 			if (request.getMethod() == HttpMethod.GET)
-			{
-				//log.info("Incoming GET: {}", request.getUri());
-				isPost = false;
-				// Incoming is either a request for games to join, games to resume, 
-				// or status on a particular game
-				String query = request.getUri().substring(request.getUri().indexOf("?") + 1);	// get the query part
-				query = query.replaceAll("%22", "\""); // quick and dirty url decode
-				messageQueue.add(new TrainMessage(ctx, msg, query));
+				decoded = RequestDecoder.decodeQuery(request.getUri());
+			else if (request.getMethod() == HttpMethod.POST && content != null)
+				decoded = RequestDecoder.decode(content);
+			else
 				return;
+			if (decoded.gid != null && !TrainServer.hasGame(decoded.gid)) {
+				if (decoded.messageType.equals(STATUS) || decoded.messageType.equals(LIST_COLORS)) {
+					writeResponse(request, ByteBufWriter.encode(ctx.alloc(), "{}"), ctx, null);
+					ctx.flush();
+					return;
+				}
+				throw new GameException(GameException.GAME_NOT_FOUND);
 			}
-			else if (request.getMethod() == HttpMethod.POST) 
-				isPost = true;
-		} 
-		if (isPost && requestText != null) {
-			log.info("requestText: {}", requestText);
-			messageQueue.add(new TrainMessage(ctx, msg, requestText));
+		} catch (GameException e) {
+			log.error("Refusing request: {}", e.getMessage());
+			sendError(request, ctx, e);
+			ctx.flush();
+			return;
 		}
-	}
 
-	public void stop() {
-		isStopped = true;
-		try {
-			messageHandler.join();
-			TrainServer.stop();
-		} catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-		}		
+		long now = System.nanoTime();
+		Metrics.record(decoded.messageType, Metrics.Phase.DECODE, now - started);
+		if (!dispatch(new TrainMessage(ctx, msg, decoded, now))) {
+			log.warn("Too busy for {} ({} messages waiting)", decoded.messageType, dispatcher.queued());
+			sendRefusal(request, ctx, SERVICE_UNAVAILABLE, busyRetryAfter, GameException.SERVER_BUSY);
+		}
+		else if (dispatcher.isBusy())
+			pauseReading(ctx);
 	}
-	
-	public void run() {
-		while (!isStopped) {
+
+	/** Queue the message on its game's mailbox
+	 * @return false if the dispatcher is too busy to take it
+	 */
+	private boolean dispatch(TrainMessage message) {
+		String gid = message.request.gid;
+		log.debug("{} for game {}", message.request.messageType, gid);
+		boolean accepted = dispatcher.tryDispatch(gid, () -> {
+			long now = System.nanoTime();
+			Metrics.recordDispatchWait(now - message.mark);
+			message.mark = now;
 			try {
-				TrainMessage message = (TrainMessage) messageQueue.take();
 				handleMessage(message);
+				if (gid != null)
+					statusWaiters.wake(gid);
+			} finally {
 				ReferenceCountUtil.release(message.httpMessage);
-			} catch (InterruptedException e) {
-	             Thread.currentThread().interrupt();
 			}
-		}
+		});
+		if (!accepted)
+			ReferenceCountUtil.release(message.httpMessage);
+		return accepted;
+	}
+	
+	/** Stop reading from the connection until the dispatcher has worked off its backlog.
+	 * Requests already sent wait in the socket buffers, and eventually the client's.
+	 */
+	private void pauseReading(ChannelHandlerContext ctx) {
+		Channel channel = ctx.channel();
+		if (!channel.config().isAutoRead())
+			return;
+		channel.config().setAutoRead(false);
+		dispatcher.whenDrained(() -> channel.config().setAutoRead(true));
+	}
+	
+	private static boolean isMetrics(String uri) {
+		return uri.equals(METRICS_PATH) || uri.startsWith(METRICS_PATH + "?");
+	}
+	
+	/** Sends the metrics, which are put together on the pool rather than the event loop */
+	private void sendMetrics(HttpRequest request, ChannelHandlerContext ctx) {
+		ReferenceCountUtil.retain(request);	// released once the response is sent
+		dispatcher.dispatch(null, () -> {
+			try {
+				FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK,
+						ByteBufWriter.encode(ctx.alloc(), Metrics.scrape(dispatcher)));
+				response.headers().set(CONTENT_TYPE, "text/plain; version=0.0.4; charset=UTF-8");
+				response.headers().set(CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+				sendHttpResponse(request, ctx, response);
+				ctx.flush();
+			} finally {
+				ReferenceCountUtil.release(request);
+			}
+		});
+	}
+	
+	private static String clientAddress(ChannelHandlerContext ctx) {
+		SocketAddress address = ctx.channel().remoteAddress();
+		if (address instanceof InetSocketAddress)
+			return ((InetSocketAddress) address).getAddress().getHostAddress();
+		return String.valueOf(address);
+	}
+	
+	/** Turns the request away, telling the client when to try again */
+	private void sendRefusal(HttpRequest request, ChannelHandlerContext ctx, HttpResponseStatus status,
+			String retryAfter, String reason) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status,
+				ByteBufWriter.encode(ctx.alloc(), gson.toJson(reason)));
+		response.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		response.headers().set(RETRY_AFTER, retryAfter);
+		sendHttpResponse(request, ctx, response);
+		ctx.flush();
 	}
 	
 	private void handleMessage(TrainMessage message) {
-		String requestType = parseMessageType(message.jsonMessage);
+		/** Buffer that stores the response content */
+		StringBuilder buf = new StringBuilder();
+		Object data = message.request.data;
 		try {
-			switch (requestType) {
+			switch (message.request.messageType) {
 				case NEW_GAME:
-					buf.append(TrainServer.newGame(message.jsonMessage));
-					log.debug("newGame buf {}", buf);
-					break;
+					TrainServer.JoinedGame created = TrainServer.createGame((TrainServer.NewGameData) data);
+					whenDurable(message, created.gid, () -> respondMap(message, created));
+					return;
 				case JOIN_GAME:
-					buf.append(TrainServer.joinGame(message.jsonMessage));
-					log.debug("joinGame buf {}", buf);
-					break;
+					TrainServer.JoinedGame joined = TrainServer.addPlayer((TrainServer.JoinGameData) data);
+					whenDurable(message, joined.gid, () -> respondMap(message, joined));
+					return;
 				case RESUME_GAME:
-					buf.append(TrainServer.resumeGame(message.jsonMessage));
-					log.debug("resumeGame buf {}", buf);
-					break;
+					TrainServer.JoinedGame resumed = TrainServer.findPlayer((TrainServer.JoinGameData) data);
+					if (!notModified(message, resumed.payload.etag(resumed.gid)))
+						respondMap(message, resumed);
+					return;
 				case START_GAME:
-					TrainServer.startGame(message.jsonMessage);
+					TrainServer.startGame((TrainServer.StartGameData) data);
 					break;
 				case TEST_BUILD_TRACK:
-					TrainServer.testBuildTrack(message.jsonMessage);
+					TrainServer.testBuildTrack((TrainServer.BuildTrackData) data);
 					break;
 				case BUILD_TRACK:
-					TrainServer.buildTrack(message.jsonMessage);
+					TrainServer.buildTrack((TrainServer.BuildTrackData) data);
 					break;
 				case UPGRADE_TRAIN:
-					TrainServer.upgradeTrain(message.jsonMessage);
+					TrainServer.upgradeTrain((TrainServer.UpgradeTrainData) data);
 					break;
 				case PLACE_TRAIN:
-					TrainServer.placeTrain(message.jsonMessage);
+					TrainServer.placeTrain((TrainServer.PlaceTrainData) data);
 					break;
 				case TEST_MOVE_TRAIN:
-					TrainServer.testMoveTrain(message.jsonMessage);
+					TrainServer.testMoveTrain((TrainServer.MoveTrainData) data);
 					break;
 				case MOVE_TRAIN:
-					TrainServer.moveTrain(message.jsonMessage);
+					TrainServer.moveTrain((TrainServer.MoveTrainData) data);
 					break;
 				case PICKUP_LOAD:
-					TrainServer.pickupLoad(message.jsonMessage);
+					TrainServer.pickupLoad((TrainServer.PickupLoadData) data);
 					break;
 				case DELIVER_LOAD:
-					TrainServer.deliverLoad(message.jsonMessage);
+					TrainServer.deliverLoad((TrainServer.DeliverLoadData) data);
 					break;
 				case DUMP_LOAD:
-					TrainServer.dumpLoad(message.jsonMessage);
+					TrainServer.dumpLoad((TrainServer.DumpLoadData) data);
 					break;
 				case TURN_IN_CARDS:
-					TrainServer.turnInCards(message.jsonMessage);
+					TrainServer.turnInCards((TrainServer.TurnInCardsData) data);
 					break;
 				case UNDO:
-					TrainServer.undo(message.jsonMessage);
+					TrainServer.undo((TrainServer.UndoData) data);
 					break;
 				case REDO:
-					TrainServer.redo(message.jsonMessage);
+					TrainServer.redo((TrainServer.UndoData) data);
 					break;
 				case END_TURN:
-					TrainServer.endTurn(message.jsonMessage);
+					TrainServer.endTurn((TrainServer.EndTurnData) data);
 					break;
 				case END_GAME:
-					TrainServer.endGame(message.jsonMessage);
+					TrainServer.endGame((TrainServer.EndGame) data);
 					break;
 				case RESIGN_GAME:
-					TrainServer.resignGame(message.jsonMessage);
+					TrainServer.resignGame((TrainServer.ResignData) data);
+					break;
+				case BATCH:
+					TrainServer.BatchResponse batch = TrainServer.batch((TrainServer.BatchData) data);
+					if (!batch.applied) {
+						message.lap(Metrics.Phase.LOGIC);
+						sendBadRequest(message.httpMessage, message.ctx, gson.toJson(batch));
+						message.ctx.flush();
+						return;
+					}
+					buf.append(gson.toJson(batch));
 					break;
 				case LIST:
-					buf.append(TrainServer.list(message.jsonMessage));
+					buf.append(TrainServer.list((TrainServer.ListRequest) data));
 					break;
 				case STATUS:
-					buf.append(TrainServer.status(message.jsonMessage));
-					break;
+					TrainServer.StatusRequest statusRequest = (TrainServer.StatusRequest) data;
+					if (!parkStatus(message, statusRequest)) {
+						String etag = statusTag(statusRequest.gid);
+						if (!notModified(message, etag))
+							respondLater(message, TrainServer.prepareStatus(statusRequest), etag);
+					}
+					return;		// response is sent once the status is serialized
 				case LIST_COLORS:
-					buf.append(TrainServer.listColors(message.jsonMessage));
+					buf.append(TrainServer.listColors((TrainServer.StatusRequest) data));
 					break;
 				case LIST_GEOGRAPHIES:
-					buf.append(TrainServer.listGeographies(message.jsonMessage));
+					buf.append(TrainServer.listGeographies());
+					break;
+				case PLAN_ROUTE:
+					buf.append(TrainServer.planRoute((TrainServer.PlanRouteData) data));
 					break;
 				default:
 					throw new GameException(GameException.INVALID_MESSAGE_TYPE);
 			}
-			if (!writeResponse(message.httpMessage, message.ctx)) {
-				// If keep-alive is off, close the connection once the
-				// content is fully written.
-				message.ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(
-						ChannelFutureListener.CLOSE);
+			if (TrainServer.isJournaled(message.request.messageType)) {
+				whenDurable(message, message.request.gid, () -> {
+					respond(message, buf, null);
+					message.ctx.flush();
+				});
+				return;
 			}
+			respond(message, buf, null);
 		} catch (GameException e) {
-			String errorString = e.getMessage();
-			log.error("Game exception {}", errorString);
-			Gson gson = new Gson();
-			String jsonError = gson.toJson(errorString);
-            FullHttpResponse result = new DefaultFullHttpResponse(HTTP_1_1, 
-            	BAD_REQUEST, Unpooled.copiedBuffer(jsonError, CharsetUtil.UTF_8));
-            result.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8");
-            result.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-            sendHttpResponse(message.ctx, result);
+			log.error("Game exception {}", e.getMessage());
+			message.lap(Metrics.Phase.LOGIC);
+			sendError(message.httpMessage, message.ctx, e);
+		} catch (RuntimeException e) {
+			// Still answer, or a keep-alive client would wait for a response that never comes
+			log.error("Unexpected exception handling " + message.request.messageType, e);
+			message.lap(Metrics.Phase.LOGIC);
+			sendServerError(message.httpMessage, message.ctx, GameException.INTERNAL_ERROR);
 		}
 		message.ctx.flush();
 	}
 	
-	private static int findNthExprInString(String s, String expr, int n)
-	{
-		int index = -1;
-		int findCount = 0;
-		while (findCount < n)
-		{
-			index = s.indexOf(expr, index + 1);
-			if (index == -1)
-				break;	// expr not found
-			++findCount;
+	/** Sends the response to a change once the journal has the change on disk, so a client is
+	 * never told about a move that a crash could still lose. Without a journal, sends it now.
+	 * If the journal couldn't write the change, sends a server error instead: the change has
+	 * been made, but could be lost.
+	 */
+	private void whenDurable(TrainMessage message, String gid, Runnable send) {
+		Journal journal = TrainServer.getJournal();
+		if (journal == null) {
+			send.run();
+			return;
 		}
-		return index;
+		ReferenceCountUtil.retain(message.httpMessage);	// released once the response is sent
+		journal.whenDurable(gid, () -> {
+			try {
+				send.run();
+			} finally {
+				ReferenceCountUtil.release(message.httpMessage);
+			}
+		}, () -> {
+			try {
+				message.lap(Metrics.Phase.LOGIC);
+				sendServerError(message.httpMessage, message.ctx, GameException.JOURNAL_FAILED);
+			} finally {
+				ReferenceCountUtil.release(message.httpMessage);
+			}
+		});
 	}
 	
-	// Custom parsing of the messageType, so we can dispatch
-	private static String parseMessageType(String requestText) {
-		// String extends from the 3rd to the fourth 4th quote
-		int startIndex = findNthExprInString(requestText, "\"", 3);
-		if (startIndex < 0 || startIndex + 1 >= requestText.length())
-			return "badMessage";
-		int endIndex = findNthExprInString(requestText, "\"", 4);
-		if (endIndex < 0 || endIndex >= requestText.length())
-			return "badMessage";
-		return requestText.substring(startIndex + 1, endIndex);
+	/** Sends the exception's type back as the json for the error */
+	private void sendError(HttpRequest request, ChannelHandlerContext ctx, GameException e) {
+		sendBadRequest(request, ctx, gson.toJson(e.getMessage()));
 	}
-
-	private boolean writeResponse(HttpObject currentObj,
-			ChannelHandlerContext ctx) {
-
+	
+	/** Tells the client the server couldn't do what it asked, for reasons of its own */
+	private void sendServerError(HttpRequest request, ChannelHandlerContext ctx, String reason) {
+		FullHttpResponse result = new DefaultFullHttpResponse(HTTP_1_1,
+			INTERNAL_SERVER_ERROR, ByteBufWriter.encode(ctx.alloc(), gson.toJson(reason)));
+		result.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8");
+		result.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		sendHttpResponse(request, ctx, result);
+		ctx.flush();
+	}
+	
+	private void sendBadRequest(HttpRequest request, ChannelHandlerContext ctx, String jsonError) {
+		FullHttpResponse result = new DefaultFullHttpResponse(HTTP_1_1, 
+			BAD_REQUEST, ByteBufWriter.encode(ctx.alloc(), jsonError));
+		result.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8");
+		result.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		sendHttpResponse(request, ctx, result);
+	}
+	
+	private void respond(TrainMessage message, StringBuilder buf, String etag) {
 		// If there's no explicit response, send an OK on success
-		if (currentObj.getDecoderResult().isSuccess() && 
-				buf.toString().length() == 0)
+		if (message.httpMessage.getDecoderResult().isSuccess() && buf.length() == 0)
 			buf.append("{\"status\":\"OK\"}");
+		message.lap(Metrics.Phase.LOGIC);
+		respond(message, ByteBufWriter.encode(message.ctx.alloc(), buf), etag);
+	}
+	
+	/** Sends content already serialized, which finishes the serialize phase */
+	private void respond(TrainMessage message, ByteBuf content, String etag) {
+		message.lap(Metrics.Phase.SERIALIZE);
+		writeResponse(message.httpMessage, content, message.ctx, etag, message);
+	}
+	
+	/** Sends the game's map, from the copy encoded for its geography. Clients that accept
+	 * gzip get the compressed copy.
+	 */
+	private void respondMap(TrainMessage message, TrainServer.JoinedGame joined) {
+		message.lap(Metrics.Phase.LOGIC);
+		boolean gzip = acceptsGzip(message.httpMessage);
+		ByteBuf content = gzip ? joined.payload.encodeGzip(joined.gid) : joined.payload.encode(joined.gid);
+		FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, content);
+		response.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		response.headers().set(VARY, ACCEPT_ENCODING);
+		String etag = joined.payload.etag(joined.gid);
+		if (gzip) {
+			response.headers().set(CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+			etag = ThresholdContentCompressor.codedTag(etag, HttpHeaders.Values.GZIP);
+		}
+		response.headers().set(ETAG, etag);
+		message.lap(Metrics.Phase.SERIALIZE);
+		sendHttpResponse(message.httpMessage, message.ctx, response, message);
+		message.ctx.flush();
+	}
+	
+	private static boolean acceptsGzip(HttpRequest request) {
+		String accept = request.headers().get(ACCEPT_ENCODING);
+		if (accept == null)
+			return false;
+		for (String coding: accept.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase(HttpHeaders.Values.GZIP))
+				return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+		}
+		return false;
+	}
+	
+	/** Tag for the game's status as it is now, which only changes with the game's transaction.
+	 * Must be called from the game's mailbox.
+	 */
+	private static String statusTag(String gid) {
+		Game game = TrainServer.getGame(gid);
+		return game != null ? "\"" + serverRun + "-" + game.transaction() + "\"" : null;
+	}
+	
+	/** Conditional requests: if the client already has the response with this tag, tell it so
+	 * with a 304 instead of sending the response again.
+	 * @return true if the 304 was sent
+	 */
+	private boolean notModified(TrainMessage message, String etag) {
+		String ifNoneMatch = message.httpMessage.headers().get(IF_NONE_MATCH);
+		if (etag == null || ifNoneMatch == null)
+			return false;
+		String matched = null;
+		for (String candidate: ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*"))
+				matched = etag;
+			else if (ThresholdContentCompressor.identityTag(candidate).equals(etag))
+				matched = candidate;	// the client's copy may be compressed
+		}
+		if (matched == null)
+			return false;
+		message.lap(Metrics.Phase.LOGIC);
+		FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
+		response.headers().set(ETAG, matched);
+		response.headers().set(CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+		response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		sendHttpResponse(message.httpMessage, message.ctx, response, message);
+		message.ctx.flush();
+		return true;
+	}
+	
+	/** Serializes the status on the pool rather than the game's mailbox, straight into a
+	 * buffer from the channel's allocator, then sends it
+	 */
+	private void respondLater(TrainMessage message, TrainServer.PreparedStatus status, String etag) {
+		message.lap(Metrics.Phase.LOGIC);
+		ReferenceCountUtil.retain(message.httpMessage);	// released once the response is sent
+		dispatcher.dispatch(null, () -> {
+			try {
+				message.mark = System.nanoTime();		// waiting for the pool isn't serializing
+				respond(message, status.write(message.ctx.alloc()), etag);
+				message.ctx.flush();
+			} finally {
+				ReferenceCountUtil.release(message.httpMessage);
+			}
+		});
+	}
+	
+	/** Long polling: if the client says it already has the game's current transaction, 
+	 * hold on to the request until the game changes instead of answering right away.
+	 * @return true if the request was parked
+	 */
+	private boolean parkStatus(TrainMessage message, TrainServer.StatusRequest request) {
+		if (request.sinceTransaction == null)
+			return false;
+		String gid = request.gid;
+		Game game = TrainServer.getGame(gid);
+		if (game == null || game.transaction() > request.sinceTransaction)
+			return false;
+		
+		ReferenceCountUtil.retain(message.httpMessage);	// released once the response is sent
+		StatusWaiters.Waiter waiter = status -> {
+			message.mark = System.nanoTime();		// the time spent parked isn't the game's
+			String etag = statusTag(gid);
+			if (!notModified(message, etag))
+				respondLater(message, status, etag);
+			ReferenceCountUtil.release(message.httpMessage);
+		};
+		statusWaiters.park(gid, request, waiter);
+		message.ctx.executor().schedule(() -> dispatcher.dispatch(gid, () -> statusWaiters.expire(gid, waiter)),
+				longPollTimeout, TimeUnit.MILLISECONDS);
+		return true;
+	}
+	
+	private boolean writeResponse(HttpRequest currentObj, ByteBuf content,
+			ChannelHandlerContext ctx, String etag) {
+		return writeResponse(currentObj, content, ctx, etag, null);
+	}
+	
+	/** @param written	told when the response has been written, if not null */
+	private boolean writeResponse(HttpRequest currentObj, ByteBuf content,
+			ChannelHandlerContext ctx, String etag, ChannelFutureListener written) {
 
 		// Build the response object.
 		FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1,
-			currentObj.getDecoderResult().isSuccess() ? OK : BAD_REQUEST,
-			Unpooled.copiedBuffer(buf.toString(), CharsetUtil.UTF_8));
+			currentObj.getDecoderResult().isSuccess() ? OK : BAD_REQUEST, content);
 
 		response.headers().set(CONTENT_TYPE, "application/json; charset=UTF-8");
 		response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		if (etag != null) {
+			// Clients may keep the response, but have to check it's still current before using it
+			response.headers().set(ETAG, etag);
+			response.headers().set(CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+		}
 			
 		//log.info("Sending response length {}", response.content().readableBytes());
-		//log.info("Sending response text", buf.toString());
-		return sendHttpResponse(ctx, response);
+		return sendHttpResponse(currentObj, ctx, response, written);
 	}
 
-    private boolean sendHttpResponse(ChannelHandlerContext ctx, 
+    private boolean sendHttpResponse(HttpRequest request, ChannelHandlerContext ctx, 
     		FullHttpResponse response) {
+    	return sendHttpResponse(request, ctx, response, null);
+    }
+
+    private boolean sendHttpResponse(HttpRequest request, ChannelHandlerContext ctx, 
+    		FullHttpResponse response, ChannelFutureListener written) {
         // Generate an error page if response getStatus code is not OK (200).
 
         // Send the response and close the connection if necessary.
 		boolean keepAlive = isKeepAlive(request);
 		if (keepAlive) {
-			// Add 'Content-Length' header only for a keep-alive connection.
-			response.headers().set(CONTENT_LENGTH,
-					response.content().readableBytes());
+			// Add 'Content-Length' header only for a keep-alive connection. A 304 has no
+			// content, and its length would be taken for the length of the cached response.
+			if (response.getStatus().code() != NOT_MODIFIED.code())
+				response.headers().set(CONTENT_LENGTH,
+						response.content().readableBytes());
 			// Add keep alive header as per:
 			// -
 			// http://www.w3.org/Protocols/HTTP/1.1/draft-ietf-http-v11-spec-01.html#Connection
@@ -312,7 +604,13 @@ public class HttpTrainServerHandler extends SimpleChannelInboundHandler<Object>
 		}
 
 		// Write the response.
-		ctx.write(response);
+		ChannelFuture future;
+		if (keepAlive)
+			future = ctx.write(response);
+		else	// close the connection once the content is fully written
+			future = ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		if (written != null)
+			future.addListener(written);
 		return keepAlive;
     }
 
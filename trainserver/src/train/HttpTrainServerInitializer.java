@@ -10,10 +10,15 @@ import io.netty.handler.ssl.SslContext;
   
   public class HttpTrainServerInitializer extends ChannelInitializer<SocketChannel> {
   
+      /** Smallest response that gets compressed, in bytes */
+      private static final int compressionThreshold = Integer.getInteger("compressionThreshold", 1024);
+
       private final SslContext sslCtx;
+      private final GameDispatcher dispatcher;
   
-      public HttpTrainServerInitializer(SslContext sslCtx) {
+      public HttpTrainServerInitializer(SslContext sslCtx, GameDispatcher dispatcher) {
           this.sslCtx = sslCtx;
+          this.dispatcher = dispatcher;
       }
   
       @Override
@@ -26,8 +31,10 @@ import io.netty.handler.ssl.SslContext;
           // Uncomment the following line if you don't want to handle HttpChunks.
           p.addLast(new HttpObjectAggregator(1048576));
           p.addLast(new HttpResponseEncoder());
-          // Remove the following line if you don't want automatic content compression.
-          //p.addLast(new HttpContentCompressor());
-          p.addLast(new HttpTrainServerHandler());
+          // Ahead of the compressor, so it counts the bytes that are actually sent
+          p.addLast(ResponseCounter.INSTANCE);
+          // Compress anything big enough to be worth it, which is mostly status
+          p.addLast(new ThresholdContentCompressor(compressionThreshold));
+          p.addLast(new HttpTrainServerHandler(dispatcher));
       }
   }
@@ -0,0 +1,496 @@
+package train;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/** Write-ahead journal of the changes made to each game, so games survive a restart.
+ *
+ * Every change a game accepts is appended to the game's journal file, as one line holding the
+ * message that made it. A single writer thread takes whatever has been appended since it last
+ * went round, writes it, and syncs each file it touched once for the whole group, so a burst
+ * of moves across many games shares the cost of the syncs. Responses to changes wait for
+ * whenDurable, and so are only sent once the change is on disk.
+ *
+ * If a game's journal can't be written or synced, the changes in it are never reported as
+ * durable: their waiters are told the write failed. The game's journal then has a gap, so
+ * nothing more is appended to it until a snapshot has been written that covers the gap.
+ *
+ * Every so often, when a game has no undo history to lose, its state is written out as a
+ * snapshot and its journal starts over. Recovery loads the snapshot and replays the entries
+ * after it.
+ *
+ * Files are named by gid: gid.journal and gid.snapshot. Only the journals in use are kept
+ * open ("journalMaxOpen", default 256, the least recently used being closed first); a game's
+ * journal is also closed when it's snapshotted or the game hibernates.
+ */
+public class Journal {
+	private static Logger log = LoggerFactory.getLogger(Journal.class);
+	private static final Gson gson = new Gson();
+
+	private static final String JOURNAL = ".journal";
+	private static final String SNAPSHOT = ".snapshot";
+
+	private final Path dir;
+	private final int snapshotEvery;		/** entries a game's journal gets before it's snapshotted */
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+	private final Map<String, GameLog> logs = new ConcurrentHashMap<String, GameLog>();
+	private final Thread writer;
+	private final int maxOpen = Integer.getInteger("journalMaxOpen", 256);	/** journal files kept open */
+	private long appended;					/** writes queued, guarded by this */
+	private volatile long written;			/** writes the writer thread has been through, on disk or not */
+	private volatile long synced;			/** writes on disk, up to the last group that had no failures */
+	private volatile boolean closed;
+
+	// Touched only by the writer thread: the games' open files, most recently used last, and
+	// for the group being written, the files to sync and each game's last write that worked
+	private final Map<String, FileChannel> files = new LinkedHashMap<String, FileChannel>(16, 0.75f, true);
+	private final Map<GameLog, FileChannel> dirty = new HashMap<GameLog, FileChannel>();
+	private final Map<GameLog, Long> done = new HashMap<GameLog, Long>();
+	private boolean groupFailed;
+
+	/** Where a game's journal is up to */
+	private static class GameLog {
+		long entries;			// appended since the game was created
+		int sinceSnapshot;		// appended since the last snapshot
+		long last;				// seq of the game's last write
+		volatile long durable;	// seq of the game's last write known to be on disk
+		volatile boolean broken;	// a write failed, and no snapshot has covered it since
+	}
+
+	private enum Kind { APPEND, SNAPSHOT, CLOSE, REMOVE }
+
+	/** Something for the writer thread to do, in the order it was asked for */
+	private static class Write {
+		final Kind kind;
+		final String gid;
+		final GameLog log;
+		final byte[] bytes;
+		long seq;
+
+		Write(Kind kind, String gid, GameLog log, byte[] bytes) {
+			this.kind = kind;
+			this.gid = gid;
+			this.log = log;
+			this.bytes = bytes;
+		}
+	}
+
+	private static class Waiter {
+		final GameLog log;
+		final long seq;
+		final Runnable then;
+		final Runnable failed;
+
+		Waiter(GameLog log, long seq, Runnable then, Runnable failed) {
+			this.log = log;
+			this.seq = seq;
+			this.then = then;
+			this.failed = failed;
+		}
+	}
+
+	/** One change, as read back from a journal */
+	static class Entry {
+		final long number;		/** the game's entries up to and including this one */
+		final long time;
+		final String messageType;
+		final String data;		/** the message's data, as json */
+
+		Entry(long number, long time, String messageType, String data) {
+			this.number = number;
+			this.time = time;
+			this.messageType = messageType;
+			this.data = data;
+		}
+	}
+
+	/** A game as read back from disk: its latest snapshot, if it has one, and the entries after it */
+	static class Saved {
+		final String gid;
+		final SavedGame snapshot;
+		final List<Entry> entries;
+
+		Saved(String gid, SavedGame snapshot, List<Entry> entries) {
+			this.gid = gid;
+			this.snapshot = snapshot;
+			this.entries = entries;
+		}
+	}
+
+	/** Opens the journal in the directory, creating it if need be. Games already in it are
+	 * read back with gids() and read().
+	 * @param snapshotEvery	entries a game's journal gets before it's snapshotted
+	 */
+	public Journal(Path dir, int snapshotEvery) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.snapshotEvery = snapshotEvery;
+		writer = new Thread(this::writeLoop, "journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** Opens the journal in the directory, snapshotting every "journalSnapshotEvery" entries (default 64) */
+	public Journal(Path dir) throws IOException {
+		this(dir, Integer.getInteger("journalSnapshotEvery", 64));
+	}
+
+	/** Queues a change the game has just made. Must be called from the game's mailbox,
+	 * so each game's entries are in the order they were made.
+	 */
+	void append(String gid, String messageType, String data) {
+		GameLog gameLog = logs.computeIfAbsent(gid, key -> new GameLog());
+		long number = ++gameLog.entries;
+		++gameLog.sinceSnapshot;
+		String line = number + "\t" + System.currentTimeMillis() + "\t" + messageType + "\t" + data + "\n";
+		enqueue(new Write(Kind.APPEND, gid, gameLog, line.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** True if enough has been appended to the game's journal that it should be snapshotted,
+	 * or if its journal failed and only a snapshot can make it whole again
+	 */
+	boolean wantsSnapshot(String gid) {
+		GameLog gameLog = logs.get(gid);
+		return gameLog != null && (gameLog.sinceSnapshot >= snapshotEvery || gameLog.broken);
+	}
+
+	/** Queues a snapshot of the game, which replaces its journal so far. Must be called from
+	 * the game's mailbox, when the game is at rest.
+	 */
+	void snapshot(String gid, Game game) {
+		GameLog gameLog = logs.computeIfAbsent(gid, key -> new GameLog());
+		gameLog.sinceSnapshot = 0;
+		String json = gson.toJson(new SavedGame(gid, game, gameLog.entries));
+		enqueue(new Write(Kind.SNAPSHOT, gid, gameLog, json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** Queues closing the game's journal file, which is opened again if anything more is
+	 * appended. For games that won't be changed for a while, such as hibernated ones, so they
+	 * don't hold a file open.
+	 */
+	void release(String gid) {
+		GameLog gameLog = logs.get(gid);
+		if (gameLog != null)
+			enqueue(new Write(Kind.CLOSE, gid, gameLog, null));
+	}
+
+	/** Queues deleting the game's files, once the game itself has been deleted */
+	void remove(String gid) {
+		GameLog gameLog = logs.remove(gid);
+		enqueue(new Write(Kind.REMOVE, gid, gameLog != null ? gameLog : new GameLog(), null));
+	}
+
+	private void enqueue(Write write) {
+		synchronized (this) {
+			write.seq = ++appended;
+			queue.add(write);
+		}
+		write.log.last = write.seq;
+	}
+
+	/** Runs a callback once everything queued so far for the game has been written: "then" if
+	 * it's on disk, "failed" if it couldn't be written or synced. Either runs right away if the
+	 * writer has already been through it, otherwise on the writer thread once the group it's in
+	 * has been synced. Must be called from the game's mailbox.
+	 */
+	public void whenDurable(String gid, Runnable then, Runnable failed) {
+		GameLog gameLog = gid != null ? logs.get(gid) : null;
+		if (gameLog == null) {		// nothing journaled for the game
+			then.run();
+			return;
+		}
+		Waiter waiter = new Waiter(gameLog, gameLog.last, then, failed);
+		if (written >= waiter.seq) {
+			wake(waiter);
+			return;
+		}
+		waiters.add(waiter);
+		if (written >= waiter.seq && waiters.remove(waiter))	// the writer may have gone past before we got in
+			wake(waiter);
+	}
+
+	/** Number of writes queued but not yet on disk */
+	public long pending() {
+		synchronized (this) {
+			return appended - synced;
+		}
+	}
+
+	/** Writes out everything queued and stops the writer */
+	public void close() throws InterruptedException {
+		closed = true;
+		writer.join();
+	}
+
+	private void writeLoop() {
+		List<Write> group = new ArrayList<Write>();
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				group.add(first);
+				queue.drainTo(group);
+				groupFailed = false;
+				for (Write write: group) {
+					if (write.kind == Kind.APPEND && write.log.broken) {
+						groupFailed = true;		// after a gap, entries are no use until a snapshot
+						continue;
+					}
+					try {
+						write(write);
+						if (write.kind == Kind.SNAPSHOT)
+							write.log.broken = false;
+						if (!write.log.broken)
+							done.put(write.log, write.seq);
+					} catch (IOException e) {
+						log.error("Can't write journal for game {}: {}", write.gid, e.getMessage());
+						write.log.broken = true;
+						groupFailed = true;
+					}
+				}
+				for (Map.Entry<GameLog, FileChannel> file: dirty.entrySet())
+					sync(file.getKey(), file.getValue());
+				for (Map.Entry<GameLog, Long> game: done.entrySet())
+					game.getKey().durable = game.getValue();
+				long last = group.get(group.size() - 1).seq;
+				if (!groupFailed)
+					synced = last;
+				written = last;
+				group.clear();
+				dirty.clear();
+				done.clear();
+				wakeWaiters();
+			}
+		} catch (InterruptedException e) {
+			log.warn("Journal writer interrupted with {} writes pending", queue.size());
+		} finally {
+			for (FileChannel file: files.values())
+				closeQuietly(file);
+			wakeWaiters();
+		}
+	}
+
+	private void write(Write write) throws IOException {
+		Path journal = dir.resolve(write.gid + JOURNAL);
+		switch (write.kind) {
+			case APPEND:
+				FileChannel file = files.get(write.gid);
+				if (file == null) {
+					file = open(journal);
+					files.put(write.gid, file);
+					if (files.size() > maxOpen)
+						closeEldest();
+				}
+				ByteBuffer bytes = ByteBuffer.wrap(write.bytes);
+				while (bytes.hasRemaining())
+					file.write(bytes);
+				dirty.put(write.log, file);
+				break;
+			case SNAPSHOT:
+				// Written whole to the side and moved into place, so there's always one good
+				// snapshot; the journal it replaces is only deleted once it's there. The game's
+				// file is closed until it has something new to append.
+				Path temp = dir.resolve(write.gid + SNAPSHOT + ".tmp");
+				try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer snapshot = ByteBuffer.wrap(write.bytes);
+					while (snapshot.hasRemaining())
+						out.write(snapshot);
+					out.force(false);
+				}
+				Files.move(temp, dir.resolve(write.gid + SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				FileChannel old = files.remove(write.gid);
+				if (old != null) {
+					dirty.remove(write.log);		// what it held is in the snapshot
+					closeQuietly(old);
+				}
+				Files.deleteIfExists(journal);
+				break;
+			case CLOSE:
+				FileChannel closing = files.remove(write.gid);
+				if (closing != null) {
+					FileChannel unsynced = dirty.remove(write.log);
+					if (unsynced != null)
+						sync(write.log, unsynced);
+					closeQuietly(closing);
+				}
+				break;
+			case REMOVE:
+				FileChannel removed = files.remove(write.gid);
+				if (removed != null) {
+					dirty.remove(write.log);
+					closeQuietly(removed);
+				}
+				Files.deleteIfExists(journal);
+				Files.deleteIfExists(dir.resolve(write.gid + SNAPSHOT));
+				break;
+		}
+	}
+
+	/** Closes the file used longest ago, syncing it first if it's been written in this group */
+	private void closeEldest() {
+		Iterator<Map.Entry<String, FileChannel>> eldest = files.entrySet().iterator();
+		FileChannel file = eldest.next().getValue();
+		eldest.remove();
+		for (Iterator<Map.Entry<GameLog, FileChannel>> unsynced = dirty.entrySet().iterator(); unsynced.hasNext(); ) {
+			Map.Entry<GameLog, FileChannel> entry = unsynced.next();
+			if (entry.getValue() == file) {
+				sync(entry.getKey(), file);
+				unsynced.remove();
+			}
+		}
+		closeQuietly(file);
+	}
+
+	/** Syncs a game's journal. If the sync fails, nothing written to it in this group is
+	 * durable, and the game's journal is broken until its next snapshot: what the failed sync
+	 * was meant to flush may or may not be on disk, and syncing again won't say which.
+	 */
+	private void sync(GameLog gameLog, FileChannel file) {
+		try {
+			file.force(false);
+		} catch (IOException e) {
+			log.error("Can't sync journal: {}", e.getMessage());
+			gameLog.broken = true;
+			done.remove(gameLog);
+			groupFailed = true;
+		}
+	}
+
+	/** Opens a game's journal for appending */
+	protected FileChannel open(Path journal) throws IOException {
+		return FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void wakeWaiters() {
+		long done = written;
+		for (Waiter waiter: waiters) {
+			if (waiter.seq <= done && waiters.remove(waiter))
+				wake(waiter);
+		}
+	}
+
+	private static void wake(Waiter waiter) {
+		try {
+			if (waiter.log.durable >= waiter.seq)
+				waiter.then.run();
+			else
+				waiter.failed.run();
+		} catch (RuntimeException e) {
+			log.error("Error sending response after journal sync", e);
+		}
+	}
+
+	private static void closeQuietly(FileChannel file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			log.warn("Can't close journal file: {}", e.getMessage());
+		}
+	}
+
+	/** The gids of the games with anything on disk */
+	List<String> gids() throws IOException {
+		Set<String> gids = new HashSet<String>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file: files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(JOURNAL))
+					gids.add(name.substring(0, name.length() - JOURNAL.length()));
+				else if (name.endsWith(SNAPSHOT))
+					gids.add(name.substring(0, name.length() - SNAPSHOT.length()));
+			}
+		}
+		return new ArrayList<String>(gids);
+	}
+
+	/** Reads back the game's snapshot and the journal entries after it. An entry cut short by
+	 * a crash, and anything after it, is dropped from the file. Must be called before anything
+	 * is appended for the game.
+	 */
+	Saved read(String gid) throws IOException {
+		SavedGame snapshot = null;
+		Path snapshotFile = dir.resolve(gid + SNAPSHOT);
+		if (Files.exists(snapshotFile)) {
+			try {
+				snapshot = gson.fromJson(new String(Files.readAllBytes(snapshotFile), StandardCharsets.UTF_8), SavedGame.class);
+			} catch (JsonParseException e) {
+				log.error("Bad snapshot for game {}: {}", gid, e.getMessage());
+			}
+		}
+		long skip = snapshot != null ? snapshot.entries : 0;
+
+		List<Entry> entries = new ArrayList<Entry>();
+		long good = 0;		// bytes of whole entries
+		Path journal = dir.resolve(gid + JOURNAL);
+		if (Files.exists(journal)) {
+			long size = Files.size(journal);
+			try (BufferedReader in = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					long length = line.getBytes(StandardCharsets.UTF_8).length + 1;
+					Entry entry = parse(line);
+					if (entry == null || good + length > size)		// no newline: the write never finished
+						break;
+					good += length;
+					if (entry.number > skip)	// the journal may not have been emptied after the snapshot
+						entries.add(entry);
+				}
+			}
+			if (good < size) {
+				log.warn("Dropping the end of the journal for game {} after entry {}", gid, skip + entries.size());
+				try (FileChannel file = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+					file.truncate(good);
+				}
+			}
+		}
+
+		GameLog gameLog = new GameLog();
+		gameLog.entries = entries.isEmpty() ? skip : entries.get(entries.size() - 1).number;
+		gameLog.sinceSnapshot = entries.size();
+		logs.put(gid, gameLog);
+		return new Saved(gid, snapshot, entries);
+	}
+
+	/** Returns the entry on the line, or null if it isn't a whole one */
+	private static Entry parse(String line) {
+		String[] fields = line.split("\t", 4);
+		if (fields.length < 4 || fields[3].isEmpty() || !fields[3].endsWith("}"))
+			return null;
+		try {
+			return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
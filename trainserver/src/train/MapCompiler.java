@@ -0,0 +1,106 @@
+package train;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import map.Edge;
+import map.Ferry;
+import map.MapFile;
+import map.Milepost;
+import map.TrainMap;
+import reference.Card;
+import reference.City;
+import reference.Trip;
+
+/** Checks a geography's data files and compiles its map into the binary form the server loads.
+ * Run it whenever the map, river, sea or ferry files change:
+ *
+ * 		java train.MapCompiler [geography ...]
+ *
+ * With no arguments, every geography in the data folder is compiled. Geographies that have
+ * problems are reported and not compiled.
+ */
+public class MapCompiler {
+
+	private static Logger log = LoggerFactory.getLogger(MapCompiler.class);
+
+	public static void main(String[] args) throws GameException {
+		DataCatalog catalog = DataCatalog.get();
+		List<String> geographies = args.length > 0 ? Arrays.asList(args) : catalog.getGeographies();
+		int failed = 0;
+		for (String gameType: geographies) {
+			try {
+				File output = new File(new File(catalog.getRoot(), gameType), MapFile.FILE_NAME);
+				compile(gameType, output);
+				log.info("Compiled {} to {}", gameType, output);
+			} catch (GameException | IOException e) {
+				log.error("Could not compile {}: {}", gameType, e.getMessage());
+				++failed;
+			}
+		}
+		catalog.rescan();
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	/** Reads the geography from its csv files, checks it, and writes the compiled map
+	 * @throws GameException if the data files are missing or have problems
+	 */
+	public static void compile(String gameType, File output) throws GameException, IOException {
+		Map<String, Set<City>> loads = new HashMap<String, Set<City>>();
+		Map<String, City> cities = Geography.getCityData(gameType, loads);
+		List<Card> cards = Geography.getCardData(gameType, cities, loads);
+		TrainMap map = Geography.readMapData(gameType, cities);
+		List<String> problems = validate(map, cities, loads, cards);
+		if (!problems.isEmpty()) {
+			for (String problem: problems)
+				log.error("{}: {}", gameType, problem);
+			throw new GameException(GameException.BAD_MAP_DATA);
+		}
+		MapFile.write(map, output);
+	}
+
+	/** Returns a description of everything wrong with the geography, or an empty list if it's good */
+	public static List<String> validate(TrainMap map, Map<String, City> cities, Map<String, Set<City>> loads,
+			List<Card> cards) {
+		List<String> problems = new ArrayList<String>();
+		for (City city: cities.values())
+			if (map.getCityLocation(city.name) == null)
+				problems.add("City " + city.name + " is not on the map");
+		for (Milepost mp: map.getSerializeData().orderedMileposts) {
+			boolean isCity = mp.type == Milepost.Type.CITY || mp.type == Milepost.Type.MAJORCITY;
+			if (isCity && mp.city == null)
+				problems.add("City milepost at " + mp.id + " is not in the city list");
+			else if (isCity && mp.city.isMajor != mp.isMajorCity())
+				problems.add("City " + mp.city.name + " at " + mp.id + " doesn't match the city list about being a major city");
+			if (mp.edges == null)
+				continue;
+			for (Edge edge: mp.edges) {
+				if (edge == null)
+					continue;
+				if (edge.destination.type == Milepost.Type.BLANK)
+					problems.add("Edge from " + mp.id + " goes to blank milepost " + edge.destination.id);
+				if (edge instanceof Ferry && !edge.destination.isNeighborByFerry(mp.id))
+					problems.add("Ferry from " + mp.id + " to " + edge.destination.id + " only goes one way");
+			}
+		}
+		for (Card card: cards) {
+			for (Trip trip: card.trips) {
+				if (!cities.containsKey(trip.dest))
+					problems.add("Card delivers to " + trip.dest + ", which is not in the city list");
+				if (!loads.containsKey(trip.load))
+					problems.add("Card uses load " + trip.load + ", which is not available in any city");
+			}
+		}
+		return problems;
+	}
+}
@@ -0,0 +1,177 @@
+package train;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+import com.google.gson.Gson;
+
+/** The response to newGame, joinGame and resumeGame, encoded once per geography. Everything
+ * in the response but the gid comes from the geography, so that part is serialized, and
+ * compressed, when the geography is first used. A response is then the few bytes of gid in
+ * front of a shared slice of the encoded map.
+ *
+ * The gzip form is a single gzip member: the gid is deflated on its own and flushed to a byte
+ * boundary, the map's deflate stream follows it, and the two checksums are combined without
+ * going over the map data again.
+ */
+public class MapPayload {
+	private static final Gson gson = new Gson();
+	private static final byte[] gzipHeader = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final String suffix;		/** JSON after the gid, through the closing brace */
+	private final ByteBuf plain;		/** suffix as UTF-8 */
+	private final ByteBuf deflated;		/** suffix as a complete raw deflate stream */
+	private final int suffixCrc;
+	private final int suffixLength;
+	private final int[] crcShift;		/** moves a crc past suffixLength bytes, see combineCrc */
+
+	/** @param json response for the geography, serialized with a null gid first */
+	MapPayload(String json) {
+		String nullGid = "{\"gid\":null";
+		if (!json.startsWith(nullGid))
+			throw new IllegalArgumentException("gid must be the first field in the response");
+		suffix = json.substring(nullGid.length());
+		byte[] bytes = suffix.getBytes(StandardCharsets.UTF_8);
+		plain = Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes));
+		byte[] compressed = deflate(bytes, true);
+		deflated = Unpooled.unreleasableBuffer(Unpooled.directBuffer(compressed.length).writeBytes(compressed));
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		suffixCrc = (int) crc.getValue();
+		suffixLength = bytes.length;
+		crcShift = new int[32];
+		for (int i = 0; i < 32; ++i)
+			crcShift[i] = (int) combine(1L << i, 0, suffixLength);
+	}
+
+	/** Response as a string */
+	public String toJson(String gid) {
+		return header(gid) + suffix;
+	}
+
+	/** Response as UTF-8. The map part is shared, so the buffer must not be written to. */
+	public ByteBuf encode(String gid) {
+		byte[] header = header(gid).getBytes(StandardCharsets.UTF_8);
+		CompositeByteBuf buf = Unpooled.compositeBuffer(2);
+		buf.addComponent(Unpooled.wrappedBuffer(header));
+		buf.addComponent(plain.duplicate());
+		buf.writerIndex(header.length + suffixLength);
+		return buf;
+	}
+
+	/** Response as gzip, for clients that accept it. The map part is shared, as for encode. */
+	public ByteBuf encodeGzip(String gid) {
+		byte[] header = header(gid).getBytes(StandardCharsets.UTF_8);
+		byte[] deflatedHeader = deflate(header, false);
+		CRC32 crc = new CRC32();
+		crc.update(header);
+		int totalCrc = combineCrc((int) crc.getValue());
+		int totalLength = header.length + suffixLength;
+		ByteBuf start = Unpooled.buffer(gzipHeader.length + deflatedHeader.length);
+		start.writeBytes(gzipHeader).writeBytes(deflatedHeader);
+		ByteBuf trailer = Unpooled.buffer(8);
+		trailer.writeInt(Integer.reverseBytes(totalCrc)).writeInt(Integer.reverseBytes(totalLength));
+
+		CompositeByteBuf buf = Unpooled.compositeBuffer(3);
+		buf.addComponent(start);
+		buf.addComponent(deflated.duplicate());
+		buf.addComponent(trailer);
+		buf.writerIndex(start.readableBytes() + deflated.readableBytes() + trailer.readableBytes());
+		return buf;
+	}
+
+	/** Strong tag for the response. The map part is identified by its checksum and size,
+	 * so the tag changes whenever the geography's data does.
+	 */
+	public String etag(String gid) {
+		return "\"" + Integer.toHexString(suffixCrc) + Integer.toHexString(suffixLength) + "-" + gid + "\"";
+	}
+
+	/** Size of the map part, uncompressed and compressed */
+	public int size() { return suffixLength; }
+	public int compressedSize() { return deflated.readableBytes(); }
+
+	private static String header(String gid) {
+		return "{\"gid\":" + gson.toJson(gid);
+	}
+
+	/** Raw deflate, either finished or flushed to a byte boundary so more can follow it */
+	private static byte[] deflate(byte[] input, boolean finish) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try {
+			deflater.setInput(input);
+			if (finish)
+				deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+			byte[] chunk = new byte[8192];
+			while (true) {
+				int n = deflater.deflate(chunk, 0, chunk.length, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				out.write(chunk, 0, n);
+				if (finish ? deflater.finished() : n < chunk.length)
+					break;
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/** Crc of the header followed by the suffix, given the crc of the header. Crcs are linear,
+	 * so moving one past the suffix is a fixed 32x32 bit matrix, worked out in the constructor.
+	 */
+	private int combineCrc(int headerCrc) {
+		int shifted = 0;
+		for (int i = 0; headerCrc != 0; ++i, headerCrc >>>= 1)
+			if ((headerCrc & 1) != 0)
+				shifted ^= crcShift[i];
+		return shifted ^ suffixCrc;
+	}
+
+	/** zlib's crc32_combine: crc of A followed by B, from the crcs of each and the length of B */
+	static long combine(long crc1, long crc2, long len2) {
+		if (len2 <= 0)
+			return crc1;
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = 0xedb88320L;		// the crc polynomial, as the operator for one zero bit
+		long row = 1;
+		for (int n = 1; n < 32; ++n) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);		// two zero bits
+		square(odd, even);		// four zero bits
+		do {
+			square(even, odd);
+			if ((len2 & 1) != 0)
+				crc1 = times(even, crc1);
+			len2 >>= 1;
+			if (len2 == 0)
+				break;
+			square(odd, even);
+			if ((len2 & 1) != 0)
+				crc1 = times(odd, crc1);
+			len2 >>= 1;
+		} while (len2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; ++i, vector >>>= 1)
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; ++n)
+			square[n] = times(matrix, matrix[n]);
+	}
+}
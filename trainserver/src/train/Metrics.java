@@ -0,0 +1,268 @@
+package train;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and latency histograms for the server, written out in the Prometheus text
+ * format for the /metrics endpoint.
+ *
+ * Recording is a few atomic adds on arrays made up front, with no locks and no allocation,
+ * so it stays on in production. The work -- adding up buckets, counting games, reading the
+ * JVM's counters -- is done when the metrics are scraped.
+ */
+public class Metrics {
+
+	/** Where the time for a message goes */
+	public enum Phase {
+		DECODE("decode"),			// parsing the request, on the event loop
+		LOGIC("logic"),				// running it against the game on its mailbox, and waiting for the journal
+		SERIALIZE("serialize"),		// encoding the response
+		WRITE("write");				// from handing the response to netty to its being written
+
+		final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+	}
+
+	/** Latency histogram with log-linear buckets, as in HdrHistogram: four buckets to each
+	 * power of two of microseconds, so any value is within 25% of its bucket's bounds, from a
+	 * microsecond up to about a minute.
+	 */
+	public static final class Histogram {
+		private static final int SUB_BITS = 2;
+		private static final int MAX_EXPONENT = 26;		// 2^26 microseconds, a little over a minute
+		static final int BUCKETS = (MAX_EXPONENT << SUB_BITS) + 1;	// the last one is for everything longer
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder sum = new LongAdder();		// in nanoseconds
+
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			counts.incrementAndGet(bucket(nanos / 1000));
+			sum.add(nanos);
+		}
+
+		static int bucket(long micros) {
+			if (micros < 1 << SUB_BITS)
+				return (int) micros;
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			if (exponent > MAX_EXPONENT)
+				return BUCKETS - 1;
+			int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+			return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+		}
+
+		/** Upper bound of the bucket, in microseconds (exclusive) */
+		static long upperBound(int bucket) {
+			if (bucket < 1 << SUB_BITS)
+				return bucket + 1;
+			int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+			int sub = bucket & ((1 << SUB_BITS) - 1);
+			return ((long) (1 << SUB_BITS) + sub + 1) << (exponent - SUB_BITS);
+		}
+
+		public long count() {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; ++i)
+				count += counts.get(i);
+			return count;
+		}
+
+		/** Value that the given fraction of recorded values are no more than, in nanoseconds,
+		 * to the resolution of the buckets
+		 */
+		public long percentile(double fraction) {
+			long[] snapshot = snapshot();
+			long total = 0;
+			for (long c: snapshot)
+				total += c;
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(fraction * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += snapshot[i];
+				if (seen >= Math.max(1, rank))
+					return upperBound(i) * 1000;
+			}
+			return upperBound(BUCKETS - 1) * 1000;
+		}
+
+		private long[] snapshot() {
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; ++i)
+				snapshot[i] = counts.get(i);
+			return snapshot;
+		}
+
+		/** Writes the histogram with a bucket at each power of two of microseconds (the fine
+		 * buckets are too many to send on every scrape), and its sum and count
+		 */
+		void write(StringBuilder out, String name, String labels) {
+			long[] snapshot = snapshot();
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS - 1; ++i) {
+				cumulative += snapshot[i];
+				long bound = upperBound(i);
+				if (Long.bitCount(bound) == 1 && bound >= 8)
+					out.append(name).append("_bucket{").append(labels).append(",le=\"")
+						.append(bound / 1e6).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += snapshot[BUCKETS - 1];
+			out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+			out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum() / 1e9).append('\n');
+			out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+		}
+	}
+
+	/** Label for message types that aren't ones the server knows */
+	static final String UNKNOWN = "unknown";
+
+	/** Histograms by message type, then by phase. The types are fixed up front, so what
+	 * clients send can't add labels, or memory.
+	 */
+	private static final Map<String, Histogram[]> latencies = new HashMap<String, Histogram[]>();
+	/** Time messages wait in the dispatcher before they run */
+	private static final Histogram dispatchWait = new Histogram();
+	private static final LongAdder responseBytes = new LongAdder();
+	private static final LongAdder responses = new LongAdder();
+
+	/** Allocation, added up from the live threads at each scrape */
+	private static final Map<Long, Long> threadAllocated = new HashMap<Long, Long>();
+	private static long allocated;
+
+	static {
+		for (String messageType: RequestDecoder.messageTypes())
+			latencies.put(messageType, newPhases());
+		latencies.put(UNKNOWN, newPhases());
+	}
+
+	/** Records time taken in one phase of a message; types the server doesn't know are
+	 * recorded as unknown
+	 */
+	public static void record(String messageType, Phase phase, long nanos) {
+		Histogram[] phases = messageType != null ? latencies.get(messageType) : null;
+		if (phases == null)
+			phases = latencies.get(UNKNOWN);
+		phases[phase.ordinal()].record(nanos);
+	}
+
+	private static Histogram[] newPhases() {
+		Histogram[] phases = new Histogram[Phase.values().length];
+		for (int i = 0; i < phases.length; ++i)
+			phases[i] = new Histogram();
+		return phases;
+	}
+
+	/** Histogram for one phase of a message type, or null if none has been recorded */
+	public static Histogram latency(String messageType, Phase phase) {
+		Histogram[] phases = latencies.get(messageType);
+		return phases == null ? null : phases[phase.ordinal()];
+	}
+
+	/** Records how long a message waited for its mailbox to run it */
+	public static void recordDispatchWait(long nanos) {
+		dispatchWait.record(nanos);
+	}
+
+	/** Counts a response going out */
+	public static void recordResponse() {
+		responses.increment();
+	}
+
+	/** Counts content going out, as it's sent: after any compression */
+	public static void recordResponseBytes(int bytes) {
+		responseBytes.add(bytes);
+	}
+
+	/** Everything, in Prometheus text format (version 0.0.4) */
+	public static String scrape(GameDispatcher dispatcher) {
+		StringBuilder out = new StringBuilder(16 * 1024);
+
+		header(out, "trainserver_message_phase_seconds", "histogram", "Time spent on each phase of a message, by message type");
+		for (Map.Entry<String, Histogram[]> entry: new TreeMap<String, Histogram[]>(latencies).entrySet())
+			for (Phase phase: Phase.values()) {
+				Histogram histogram = entry.getValue()[phase.ordinal()];
+				if (histogram.count() > 0)
+					histogram.write(out, "trainserver_message_phase_seconds",
+							"type=\"" + entry.getKey() + "\",phase=\"" + phase.label + "\"");
+			}
+
+		if (dispatcher != null) {
+			header(out, "trainserver_dispatcher_queued", "gauge", "Messages dispatched and not yet finished");
+			out.append("trainserver_dispatcher_queued{dispatcher=\"games\"} ").append(dispatcher.queued()).append('\n');
+			header(out, "trainserver_dispatcher_wait_seconds", "histogram", "Time a message waits for its game's mailbox to run it");
+			dispatchWait.write(out, "trainserver_dispatcher_wait_seconds", "dispatcher=\"games\"");
+		}
+
+		header(out, "trainserver_games", "gauge", "Games on the server, by state");
+		for (Map.Entry<String, Integer> entry: TrainServer.gameCounts().entrySet())
+			out.append("trainserver_games{state=\"").append(entry.getKey()).append("\"} ").append(entry.getValue()).append('\n');
+		header(out, "trainserver_games_expired_total", "counter", "Games deleted, by why they were");
+		for (Map.Entry<String, Long> entry: TrainServer.expiredGames().entrySet())
+			out.append("trainserver_games_expired_total{reason=\"").append(entry.getKey()).append("\"} ").append(entry.getValue()).append('\n');
+
+		StatusCache cache = TrainServer.getStatusCache();
+		counter(out, "trainserver_status_cache_hits_total", "Status requests answered from the cache", cache.hits());
+		counter(out, "trainserver_status_cache_misses_total", "Status requests that had to be built", cache.misses());
+		counter(out, "trainserver_status_cache_evictions_total", "Statuses dropped to keep the cache in its size", cache.evictions());
+		header(out, "trainserver_status_cache_bytes", "gauge", "Size of the statuses in the cache");
+		out.append("trainserver_status_cache_bytes ").append(cache.bytes()).append('\n');
+
+		counter(out, "trainserver_responses_total", "Http responses sent", responses.sum());
+		counter(out, "trainserver_response_bytes_total", "Content bytes of the http responses sent, after compression", responseBytes.sum());
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		header(out, "trainserver_jvm_heap_used_bytes", "gauge", "Heap in use");
+		out.append("trainserver_jvm_heap_used_bytes ").append(memory.getHeapMemoryUsage().getUsed()).append('\n');
+		long allocatedBytes = allocatedBytes();
+		if (allocatedBytes >= 0)
+			counter(out, "trainserver_jvm_allocated_bytes_total", "Heap allocated by all threads; its rate is the allocation rate", allocatedBytes);
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		header(out, name, "counter", help);
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/** Bytes allocated since the server started. The JVM only counts by thread, and only
+	 * for threads still alive, so each thread's growth since the last scrape is added on;
+	 * a thread that ends between scrapes loses what it allocated since the last one.
+	 * @return the total, or -1 if the JVM doesn't count allocation
+	 */
+	private static synchronized long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> seen = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; ++i) {
+			if (bytes[i] < 0)
+				continue;
+			Long last = threadAllocated.get(ids[i]);
+			allocated += bytes[i] - (last == null ? 0 : last);
+			seen.put(ids[i], bytes[i]);
+		}
+		threadAllocated.clear();
+		threadAllocated.putAll(seen);
+		return allocated;
+	}
+}
@@ -24,7 +24,7 @@ public class RandomString {
     buf = new char[length];
   }
 
-  public String nextString() {
+  public synchronized String nextString() {
     for (int idx = 0; idx < buf.length; ++idx) 
       buf[idx] = symbols[random.nextInt(symbols.length)];
     return new String(buf);
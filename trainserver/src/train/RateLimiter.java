@@ -0,0 +1,85 @@
+package train;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Limits how fast each client may send requests, with a token bucket per client. A client
+ * can send a burst of requests at once, and after that as many per second as the rate
+ * allows. Buckets that have filled back up are dropped now and then, so clients that have
+ * gone away don't use memory.
+ */
+public class RateLimiter {
+	private final double rate;		/** tokens added per second */
+	private final double burst;		/** most tokens a bucket holds */
+	private final Map<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private static final int sweepInterval = 4096;	// calls between sweeps for idle buckets
+
+	private class Bucket {
+		private double tokens = burst;
+		private long lastRefill = System.nanoTime();
+
+		/** Takes a token if there is one
+		 * @return 0 if a token was taken, otherwise nanoseconds until there will be one
+		 */
+		synchronized long take(long now) {
+			refill(now);
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			return (long) Math.ceil((1 - tokens) / rate * 1e9);
+		}
+
+		synchronized boolean isFull(long now) {
+			refill(now);
+			return tokens >= burst;
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+		}
+	}
+
+	/** Creates a limiter
+	 * @param rate	requests per second each client may send, or 0 for no limit
+	 * @param burst	requests a client may send at once
+	 */
+	public RateLimiter(double rate, double burst) {
+		this.rate = rate;
+		this.burst = Math.max(burst, 1);
+	}
+
+	/** Creates a limiter from the "clientRate" and "clientBurst" system properties */
+	public RateLimiter() {
+		this(Double.parseDouble(System.getProperty("clientRate", "50")),
+				Double.parseDouble(System.getProperty("clientBurst", "100")));
+	}
+
+	/** Counts a request from the client against its limit
+	 * @return 0 if the request may go ahead, otherwise how many seconds (at least 1) until
+	 * 		the client may send another
+	 */
+	public long acquire(String client) {
+		if (rate <= 0)
+			return 0;
+		long now = System.nanoTime();
+		if (calls.incrementAndGet() % sweepInterval == 0)
+			sweep(now);
+		Bucket bucket = buckets.computeIfAbsent(client, key -> new Bucket());
+		long wait = bucket.take(now);
+		return wait == 0 ? 0 : Math.max(1, (wait + 999999999L) / 1000000000L);
+	}
+
+	/** Number of clients being tracked */
+	public int clients() {
+		return buckets.size();
+	}
+
+	private void sweep(long now) {
+		buckets.entrySet().removeIf(entry -> entry.getValue().isFull(now));
+	}
+}
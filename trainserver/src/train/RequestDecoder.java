@@ -0,0 +1,204 @@
+package train;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import static train.HttpTrainServerHandler.*;
+
+/** Decodes requests into the data classes TrainServer's messages take. The message type and
+ * gid are read from the front of the request, which is where clients put them, and then the
+ * request is bound to the data class for its type, straight from the bytes it arrived in.
+ *
+ * Requests missing a field their type needs are turned away here, on the event loop, rather
+ * than failing on the game's mailbox.
+ *
+ * Gson is thread-safe once built, so one instance, and one adapter per data class, serves
+ * every request.
+ */
+public final class RequestDecoder {
+	private static final Gson gson = new Gson();
+
+	/** Adapter for each message type; types with no data of their own map to null */
+	private static final Map<String, TypeAdapter<?>> adapters = new HashMap<String, TypeAdapter<?>>();
+
+	/** Fields each message type can't do without, which mustn't be null (nor, for arrays,
+	 * have nulls in them)
+	 */
+	private static final Map<String, Field[]> required = new HashMap<String, Field[]>();
+
+	static {
+		register(NEW_GAME, TrainServer.NewGameData.class, "pid", "color", "gameType");
+		register(JOIN_GAME, TrainServer.JoinGameData.class, "gid", "pid", "color");
+		register(RESUME_GAME, TrainServer.JoinGameData.class, "gid", "pid");
+		register(START_GAME, TrainServer.StartGameData.class, "gid", "pid");
+		register(BUILD_TRACK, TrainServer.BuildTrackData.class, "gid", "pid", "mileposts");
+		register(TEST_BUILD_TRACK, TrainServer.BuildTrackData.class, "gid", "pid", "mileposts");
+		register(UPGRADE_TRAIN, TrainServer.UpgradeTrainData.class, "gid", "pid", "upgradeType");
+		register(PLACE_TRAIN, TrainServer.PlaceTrainData.class, "gid", "pid", "where");
+		register(PICKUP_LOAD, TrainServer.PickupLoadData.class, "gid", "pid", "load");
+		register(DELIVER_LOAD, TrainServer.DeliverLoadData.class, "gid", "pid");
+		register(DUMP_LOAD, TrainServer.DumpLoadData.class, "gid", "pid", "load");
+		register(TEST_MOVE_TRAIN, TrainServer.MoveTrainData.class, "gid", "pid", "mileposts");
+		register(MOVE_TRAIN, TrainServer.MoveTrainData.class, "gid", "pid", "mileposts");
+		register(TURN_IN_CARDS, TrainServer.TurnInCardsData.class, "gid", "pid");
+		register(UNDO, TrainServer.UndoData.class, "gid", "pid");
+		register(REDO, TrainServer.UndoData.class, "gid", "pid");
+		register(END_TURN, TrainServer.EndTurnData.class, "gid", "pid");
+		register(END_GAME, TrainServer.EndGame.class, "gid", "pid");
+		register(RESIGN_GAME, TrainServer.ResignData.class, "gid", "pid");
+		register(BATCH, TrainServer.BatchData.class, "gid", "pid", "actions");
+		register(LIST, TrainServer.ListRequest.class, "listType");
+		register(STATUS, TrainServer.StatusRequest.class, "gid");
+		register(LIST_COLORS, TrainServer.StatusRequest.class, "gid");
+		register(LIST_GEOGRAPHIES, null);
+		register(PLAN_ROUTE, TrainServer.PlanRouteData.class, "gid", "pid", "route", "to");
+	}
+
+	private RequestDecoder() {}
+
+	private static void register(String messageType, Class<?> type, String... fields) {
+		adapters.put(messageType, type != null ? gson.getAdapter(type) : null);
+		Field[] checked = new Field[fields.length];
+		try {
+			for (int i = 0; i < fields.length; ++i) {
+				checked[i] = type.getDeclaredField(fields[i]);
+				checked[i].setAccessible(true);
+			}
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException(messageType + " has no field " + e.getMessage());
+		}
+		required.put(messageType, checked);
+	}
+
+	/** @throws GameException if any of the fields the type needs is missing */
+	private static void checkRequired(String messageType, Object data) throws GameException {
+		try {
+			for (Field field: required.get(messageType)) {
+				Object value = field.get(data);
+				if (value == null)
+					throw new GameException(GameException.BAD_MESSAGE);
+				if (value instanceof Object[])
+					for (Object element: (Object[]) value)
+						if (element == null)
+							throw new GameException(GameException.BAD_MESSAGE);
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Every message type there's a decoder for */
+	static Set<String> messageTypes() {
+		return Collections.unmodifiableSet(adapters.keySet());
+	}
+
+	/** A decoded request */
+	public static final class Request {
+		public final String messageType;
+		public final String gid;		/** game the request is for, or null if it isn't for a game */
+		public final Object data;		/** instance of the data class for the type, or null if it has none */
+
+		Request(String messageType, String gid, Object data) {
+			this.messageType = messageType;
+			this.gid = gid;
+			this.data = data;
+		}
+	}
+
+	/** Decodes a request body
+	 * @throws GameException if the body isn't a json object, its message type isn't known, or
+	 * it doesn't fit its message type or lacks a field the type needs
+	 */
+	public static Request decode(ByteBuf content) throws GameException {
+		return decode(new ByteBufReader(content), new ByteBufReader(content));
+	}
+
+	/** Decodes a request sent as the query of a GET, which is url-encoded json
+	 * @throws GameException if the query isn't a json object, its message type isn't known, or
+	 * it doesn't fit its message type or lacks a field the type needs
+	 */
+	public static Request decodeQuery(String uri) throws GameException {
+		String path = new QueryStringDecoder(uri).path();
+		String query = path.length() < uri.length() ? uri.substring(path.length() + 1) : "";
+		try {
+			query = QueryStringDecoder.decodeComponent(query, CharsetUtil.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new GameException(GameException.BAD_MESSAGE);		// malformed escape
+		}
+		return decode(new StringReader(query), new StringReader(query));
+	}
+
+	/** Decodes the data for a message from a string, for callers that already have the type.
+	 * Returns null for an empty string, as Gson does.
+	 */
+	public static <T> T decode(String json, Class<T> type) {
+		return gson.fromJson(json, type);
+	}
+
+	/** Decodes the data for a message of the given type, as it was serialized on its own
+	 * @throws GameException if the type isn't known, or the json doesn't fit it
+	 */
+	static Object decodeData(String messageType, String json) throws GameException {
+		if (!adapters.containsKey(messageType))
+			throw new GameException(GameException.INVALID_MESSAGE_TYPE);
+		TypeAdapter<?> adapter = adapters.get(messageType);
+		try {
+			return adapter != null ? adapter.read(newReader(new StringReader(json))) : null;
+		} catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+			throw new GameException(GameException.BAD_MESSAGE);
+		}
+	}
+
+	/** @param header	reads the request from the start, for its type and gid
+	 * 	@param body		reads the request from the start again, for its data
+	 */
+	private static Request decode(Reader header, Reader body) throws GameException {
+		try {
+			String messageType = null;
+			String gid = null;
+			JsonReader reader = newReader(header);
+			reader.beginObject();
+			while ((messageType == null || gid == null) && reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("messageType") && reader.peek() == JsonToken.STRING)
+					messageType = reader.nextString();
+				else if (name.equals("gid") && reader.peek() == JsonToken.STRING)
+					gid = reader.nextString();
+				else
+					reader.skipValue();
+			}
+			if (messageType == null || !adapters.containsKey(messageType))
+				throw new GameException(GameException.INVALID_MESSAGE_TYPE);
+
+			TypeAdapter<?> adapter = adapters.get(messageType);
+			Object data = adapter != null ? adapter.read(newReader(body)) : null;
+			checkRequired(messageType, data);
+			return new Request(messageType, gid, data);
+		} catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+			throw new GameException(GameException.BAD_MESSAGE);
+		}
+	}
+
+	/** Lenient, as Gson.fromJson is */
+	private static JsonReader newReader(Reader in) {
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		return reader;
+	}
+}
@@ -0,0 +1,28 @@
+package train;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+
+/** Counts the responses going out, and their content bytes, for the metrics. It sits between
+ * the compressor and the encoder, so a compressed response is counted at its compressed size,
+ * however many chunks the compressor makes of it.
+ */
+@Sharable
+public class ResponseCounter extends ChannelOutboundHandlerAdapter {
+	public static final ResponseCounter INSTANCE = new ResponseCounter();
+
+	private ResponseCounter() {}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (msg instanceof HttpResponse)
+			Metrics.recordResponse();
+		if (msg instanceof HttpContent)
+			Metrics.recordResponseBytes(((HttpContent) msg).content().readableBytes());
+		ctx.write(msg, promise);
+	}
+}
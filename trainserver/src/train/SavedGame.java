@@ -0,0 +1,45 @@
+package train;
+
+import java.util.Date;
+
+/** A game as written to a journal snapshot: its serialized state, plus what the state doesn't
+ * carry -- the geography and shuffle the deck came from, how much of it has been dealt, the
+ * rules, and the transaction count. Only games at rest are saved, since undo history isn't.
+ */
+class SavedGame {
+	String gid;
+	String geography;
+	long seed;
+	int cardsDealt;
+	RuleSet ruleSet;
+	int transaction;
+	long lastChange;
+	long entries;		/** journal entries the snapshot covers */
+	String state;		/** Game.toString() */
+
+	SavedGame() {}
+
+	/** Must be called from the game's mailbox */
+	SavedGame(String gid, Game game, long entries) {
+		this.gid = gid;
+		geography = game.gameData.getGeography();
+		seed = game.gameData.getSeed();
+		cardsDealt = game.gameData.cardsDealt();
+		ruleSet = game.getRuleSet();
+		transaction = game.transaction();
+		lastChange = game.lastChangeDate().getTime();
+		this.entries = entries;
+		state = game.toString();
+	}
+
+	/** Builds the game back up from the snapshot
+	 * @throws GameException if the geography is no longer available
+	 */
+	Game restore() throws GameException {
+		GameData gameData = new GameData(geography, seed);
+		gameData.skipDealt(cardsDealt);
+		Game game = Game.fromString(state, new Game(null, gameData, ruleSet));
+		game.restored(transaction, new Date(lastChange));
+		return game;
+	}
+}
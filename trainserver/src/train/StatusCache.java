@@ -0,0 +1,186 @@
+package train;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.buffer.ByteBuf;
+
+/** Serialized status messages, one per game, tagged with the transaction they were
+ * generated at. A cached status is only returned if the game is still at that transaction.
+ * Total size is kept under a budget; when it goes over, entries that haven't been used
+ * since the last sweep are evicted first (clock algorithm).
+ *
+ * Statuses sent over http are kept as the UTF-8 bytes that were sent, so a hit is written
+ * out without encoding anything. The cache holds one reference to each buffer, and gives
+ * each caller a duplicate with a reference of its own, taken under the entry's lock so it
+ * can't race the cache letting go of the buffer.
+ */
+public class StatusCache {
+	private static class Entry {
+		final int transaction;
+		final String status;	// null if only the encoded form was cached
+		final ByteBuf encoded;	// null if only the string was cached
+		volatile boolean used;	// requested since the eviction sweep last passed it
+		private boolean released;	// guarded by this
+
+		// Taken up front: once released, a pooled buffer's fields belong to its next user
+		final long size;
+		final int length;
+
+		Entry(int transaction, String status, ByteBuf encoded) {
+			this.transaction = transaction;
+			this.status = status;
+			this.encoded = encoded;
+			this.size = status != null ? 2L * status.length() : encoded.capacity();
+			this.length = encoded != null ? encoded.readableBytes() : 0;
+		}
+
+		long size() { return size; }
+
+		/** A duplicate of the encoded status with a reference of its own, or null if the
+		 * cache has let go of it. Taking the reference under the same lock as release means
+		 * the buffer can't go back to the pool, and be handed to someone else, in between.
+		 */
+		synchronized ByteBuf retain() {
+			return released ? null : encoded.duplicate().retain();
+		}
+
+		synchronized String decode() {
+			return released ? null : encoded.toString(StandardCharsets.UTF_8);
+		}
+
+		/** Gives up the cache's reference; once only, however many ways the entry is dropped */
+		synchronized void release() {
+			if (released)
+				return;
+			released = true;
+			if (encoded != null)
+				encoded.release();
+		}
+	}
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final long maxBytes;
+	private final AtomicLong bytes = new AtomicLong();
+	private Iterator<Map.Entry<String, Entry>> clockHand;	// guarded by this
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/** Creates an empty cache
+	 * @param maxBytes	approximate limit on the memory used by cached messages
+	 */
+	public StatusCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/** Returns the cached status for the game, or null if there isn't one for this transaction */
+	public String get(String gid, int transaction) {
+		Entry entry = entries.get(gid);
+		if (entry == null || entry.transaction != transaction) {
+			misses.increment();
+			return null;
+		}
+		String status = entry.status != null ? entry.status : entry.decode();
+		if (status == null) {
+			misses.increment();		// evicted since we looked it up
+			return null;
+		}
+		entry.used = true;
+		hits.increment();
+		return status;
+	}
+
+	/** Returns the cached status for the game as UTF-8, or null if there isn't one for this
+	 * transaction. The caller owns the returned buffer and must release it.
+	 */
+	public ByteBuf getEncoded(String gid, int transaction) {
+		Entry entry = entries.get(gid);
+		if (entry == null || entry.transaction != transaction || entry.encoded == null) {
+			misses.increment();
+			return null;
+		}
+		ByteBuf buf = entry.retain();
+		if (buf == null) {
+			misses.increment();		// evicted and released since we looked it up
+			return null;
+		}
+		entry.used = true;
+		hits.increment();
+		return buf;
+	}
+
+	/** Cache the status for the game at the given transaction, replacing any older status */
+	public void put(String gid, int transaction, String status) {
+		add(gid, new Entry(transaction, status, null));
+	}
+
+	/** Cache the encoded status for the game at the given transaction, replacing any older
+	 * status. The cache takes a reference of its own; the caller still owns the buffer it
+	 * passed in, and may go on to read or send it.
+	 */
+	public void putEncoded(String gid, int transaction, ByteBuf status) {
+		add(gid, new Entry(transaction, null, status.duplicate().retain()));
+	}
+
+	/** Size in bytes of the last encoded status cached for the game, at any transaction, or
+	 * 0 if there isn't one. Statuses grow slowly, so it's a good guess at the next one's size.
+	 */
+	public int sizeHint(String gid) {
+		Entry entry = entries.get(gid);
+		return entry != null ? entry.length : 0;
+	}
+
+	/** Drop the cached status for a game, typically because the game has been removed */
+	public void remove(String gid) {
+		Entry old = entries.remove(gid);
+		if (old != null) {
+			bytes.addAndGet(-old.size());
+			old.release();
+		}
+	}
+
+	private void add(String gid, Entry entry) {
+		if (entry.size() > maxBytes) {
+			entry.release();
+			return;
+		}
+		Entry old = entries.put(gid, entry);
+		bytes.addAndGet(entry.size() - (old != null ? old.size() : 0));
+		if (old != null)
+			old.release();
+		if (bytes.get() > maxBytes)
+			evict();
+	}
+
+	private synchronized void evict() {
+		// Two passes around the clock clears every used bit, so an entry is always found
+		for (int checked = 0; bytes.get() > maxBytes && checked <= 2 * entries.size(); ++checked) {
+			if (clockHand == null || !clockHand.hasNext()) {
+				clockHand = entries.entrySet().iterator();
+				if (!clockHand.hasNext())
+					return;
+			}
+			Map.Entry<String, Entry> candidate = clockHand.next();
+			Entry entry = candidate.getValue();
+			if (entry.used)
+				entry.used = false;		// give it a second chance
+			else if (entries.remove(candidate.getKey(), entry)) {
+				bytes.addAndGet(-entry.size());
+				entry.release();
+				evictions.increment();
+			}
+		}
+	}
+
+	public long hits() { return hits.sum(); }
+	public long misses() { return misses.sum(); }
+	public long evictions() { return evictions.sum(); }
+	public long bytes() { return bytes.get(); }
+	public int size() { return entries.size(); }
+}
@@ -0,0 +1,97 @@
+package train;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import map.Milepost;
+import map.MilepostId;
+
+/** What changed in a game at each of its recent transactions, so a client that is only a
+ * few transactions behind can be sent just the changes instead of the whole status.
+ * Changes are noted as the game is modified, and committed when the transaction is
+ * registered. Like the game itself, this is only touched from the game's mailbox.
+ */
+class StatusChanges {
+	/** Changes made by one transaction, or merged across several */
+	static class Change {
+		int transaction;
+		boolean full;		// too much changed to describe -- the client needs the full status
+		final Set<String> pids = new HashSet<String>();		// players whose status changed
+		final Map<String, List<MilepostId>> track = new HashMap<String, List<MilepostId>>();	// new track, by pid, in pairs of mileposts
+
+		void add(Change other) {
+			transaction = other.transaction;
+			full |= other.full;
+			pids.addAll(other.pids);
+			for (Map.Entry<String, List<MilepostId>> entry: other.track.entrySet())
+				trackFor(entry.getKey()).addAll(entry.getValue());
+		}
+
+		List<MilepostId> trackFor(String pid) {
+			List<MilepostId> built = track.get(pid);
+			if (built == null) {
+				built = new ArrayList<MilepostId>();
+				track.put(pid, built);
+			}
+			return built;
+		}
+	}
+
+	/** Number of transactions kept; clients further behind than this get a full status */
+	private static final int historySize = Integer.getInteger("statusHistory", 64);
+
+	private final ArrayDeque<Change> history = new ArrayDeque<Change>();
+	private Change pending = new Change();
+
+	/** Note that the player's status (money, trains, hand, stats) changed */
+	void player(String pid) {
+		pending.pids.add(pid);
+	}
+
+	/** Note that the player built track along these mileposts */
+	void track(String pid, Milepost[] mps) {
+		List<MilepostId> built = pending.trackFor(pid);
+		for (int i = 1; i < mps.length; ++i) {
+			built.add(mps[i - 1].getMilepostId());
+			built.add(mps[i].getMilepostId());
+		}
+	}
+
+	/** Note a change that can't be sent as a delta (e.g., undo) */
+	void full() {
+		pending.full = true;
+	}
+
+	/** Close out the changes noted so far as belonging to this transaction */
+	void commit(int transaction) {
+		pending.transaction = transaction;
+		history.addLast(pending);
+		if (history.size() > historySize)
+			history.removeFirst();
+		pending = new Change();
+	}
+
+	/** Returns everything that changed after the given transaction, up to the current one,
+	 * or null if that can't be described as a delta and a full status is needed.
+	 */
+	Change since(int since, int current) {
+		if (since > current)
+			return null;		// not one of ours
+		Change merged = new Change();
+		merged.transaction = current;
+		if (since == current)
+			return merged;
+		if (history.isEmpty() || history.peekFirst().transaction > since + 1)
+			return null;		// gap is bigger than the history we keep
+		for (Change change: history) {
+			if (change.transaction > since)
+				merged.add(change);
+		}
+		return merged.full ? null : merged;
+	}
+}
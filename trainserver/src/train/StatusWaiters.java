@@ -0,0 +1,89 @@
+package train;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Status requests that are parked until their game moves past the transaction the client
+ * already has (long polling). All the calls for a given gid must be made from that game's
+ * mailbox, so the waiters for one game are never touched by two threads at once.
+ */
+class StatusWaiters {
+	/** Sends the status back to a parked client */
+	interface Waiter {
+		/** @param status the status, or "{}" if the game no longer exists; can be serialized on any thread */
+		void respond(TrainServer.PreparedStatus status);
+	}
+
+	private static class Parked {
+		final TrainServer.StatusRequest request;
+		final Waiter waiter;
+
+		Parked(TrainServer.StatusRequest request, Waiter waiter) {
+			this.request = request;
+			this.waiter = waiter;
+		}
+	}
+
+	private final Map<String, List<Parked>> waiting = new ConcurrentHashMap<String, List<Parked>>();
+	private final AtomicInteger count = new AtomicInteger();
+
+	/** Park a request until the game's transaction is past its sinceTransaction */
+	void park(String gid, TrainServer.StatusRequest request, Waiter waiter) {
+		List<Parked> parked = waiting.get(gid);
+		if (parked == null) {
+			parked = new ArrayList<Parked>();
+			waiting.put(gid, parked);
+		}
+		parked.add(new Parked(request, waiter));
+		count.incrementAndGet();
+	}
+
+	/** Respond to every request that is waiting on a transaction the game has moved past.
+	 * Called after each message for the game is handled.
+	 */
+	void wake(String gid) {
+		List<Parked> parked = waiting.get(gid);
+		if (parked == null)
+			return;
+		Game game = TrainServer.getGame(gid);
+		for (Iterator<Parked> it = parked.iterator(); it.hasNext(); ) {
+			Parked p = it.next();
+			if (game == null || game.transaction() > p.request.sinceTransaction) {
+				it.remove();
+				count.decrementAndGet();
+				p.waiter.respond(TrainServer.prepareStatus(p.request));
+			}
+		}
+		if (parked.isEmpty())
+			waiting.remove(gid);
+	}
+
+	/** The request has waited as long as it may -- if it's still parked, respond with the
+	 * current status even though it hasn't changed, so the client can poll again.
+	 */
+	void expire(String gid, Waiter waiter) {
+		List<Parked> parked = waiting.get(gid);
+		if (parked == null)
+			return;
+		for (Iterator<Parked> it = parked.iterator(); it.hasNext(); ) {
+			Parked p = it.next();
+			if (p.waiter == waiter) {
+				it.remove();
+				count.decrementAndGet();
+				waiter.respond(TrainServer.prepareStatus(p.request));
+				break;
+			}
+		}
+		if (parked.isEmpty())
+			waiting.remove(gid);
+	}
+
+	/** Number of requests currently parked */
+	int size() {
+		return count.get();
+	}
+}
@@ -0,0 +1,49 @@
+package train;
+
+import io.netty.buffer.ByteBufHolder;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+
+/** Compresses responses with gzip or deflate, as the client accepts, but only when they're
+ * big enough to be worth it. Most responses are a few bytes of "OK" that would only grow.
+ *
+ * A compressed response is a different representation from the uncompressed one, so its
+ * strong ETag gets the content coding added to it.
+ */
+public class ThresholdContentCompressor extends HttpContentCompressor {
+	/** Smallest response that gets compressed, in bytes */
+	private final int threshold;
+
+	public ThresholdContentCompressor(int threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+		if (response instanceof ByteBufHolder && ((ByteBufHolder) response).content().readableBytes() < threshold)
+			return null;
+		Result result = super.beginEncode(response, acceptEncoding);
+		String etag = response.headers().get(HttpHeaders.Names.ETAG);
+		if (result != null && etag != null)
+			response.headers().set(HttpHeaders.Names.ETAG, codedTag(etag, result.targetContentEncoding()));
+		return result;
+	}
+
+	/** The tag for the representation with the content coding applied */
+	static String codedTag(String etag, String coding) {
+		if (etag.endsWith("\""))
+			return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+		return etag + "-" + coding;
+	}
+
+	/** The tag for the uncompressed representation, whichever coding the tag is for */
+	static String identityTag(String etag) {
+		for (String coding: new String[] { HttpHeaders.Values.GZIP, HttpHeaders.Values.DEFLATE }) {
+			String suffix = "-" + coding + "\"";
+			if (etag.endsWith(suffix))
+				return etag.substring(0, etag.length() - suffix.length()) + "\"";
+		}
+		return etag;
+	}
+}
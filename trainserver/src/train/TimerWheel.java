@@ -0,0 +1,194 @@
+package train;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Hierarchical timing wheel: schedules and cancels in constant time, however many timeouts
+ * are pending, and each tick only looks at the timeouts that are due.
+ *
+ * The first level has a slot per tick. Each level above has slots as wide as the whole level
+ * below it, so a few levels cover years. A timeout goes in the lowest level its deadline fits
+ * in; when the level below has gone all the way round, the next slot up is emptied into it,
+ * and its timeouts land in finer slots as they get closer.
+ *
+ * Deadlines are in System.currentTimeMillis() time. Tasks run on the thread that advances the
+ * wheel, so they should be quick -- hand anything else off to an executor.
+ */
+public class TimerWheel {
+	private static Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+	private final long tickMillis;
+	private final int bits;				/** slots per level, as a power of two */
+	private final int mask;
+	private final Timeout[][] levels;	/** circular list of timeouts in each slot, by its head */
+	private final long start;			/** time of tick 0 */
+	private long tick;					/** ticks done so far */
+	private int size;
+	private Thread ticker;
+	private volatile boolean stopped;
+
+	/** A task waiting on the wheel */
+	public final class Timeout {
+		private final long deadline;
+		private final long dueTick;
+		private final Runnable task;
+		private Timeout next, prev;		// in its slot's list
+		private Timeout[] level;		// where it is, or null once it's fired or cancelled
+		private int slot;
+
+		private Timeout(long deadline, long dueTick, Runnable task) {
+			this.deadline = deadline;
+			this.dueTick = dueTick;
+			this.task = task;
+		}
+
+		public long deadline() { return deadline; }
+
+		/** Takes the timeout off the wheel
+		 * @return false if it has already run, or was already cancelled
+		 */
+		public boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (level == null)
+					return false;
+				unlink(this);
+				return true;
+			}
+		}
+	}
+
+	/**	@param tickMillis	how far apart the ticks are; timeouts run up to a tick late
+	 * 	@param bits			slots per level, as a power of two
+	 * 	@param levelCount	number of levels; deadlines beyond the top level wait there and go round again
+	 */
+	public TimerWheel(long tickMillis, int bits, int levelCount) {
+		this.tickMillis = tickMillis;
+		this.bits = bits;
+		mask = (1 << bits) - 1;
+		levels = new Timeout[levelCount][1 << bits];
+		start = System.currentTimeMillis();
+	}
+
+	/** Schedules the task to run at the deadline, or on the next tick if that's already past */
+	public Timeout schedule(long deadline, Runnable task) {
+		synchronized (this) {
+			long due = Math.max(tick + 1, (deadline - start + tickMillis - 1) / tickMillis);
+			Timeout timeout = new Timeout(deadline, due, task);
+			insert(timeout);
+			return timeout;
+		}
+	}
+
+	/** Number of timeouts waiting */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** Runs the ticks up to the given time, and with them every task that has come due */
+	public void advanceTo(long now) {
+		List<Runnable> due = new ArrayList<Runnable>();
+		synchronized (this) {
+			long target = (now - start) / tickMillis;
+			while (tick < target) {
+				++tick;
+				cascade();
+				int slot = (int) (tick & mask);
+				Timeout head;
+				while ((head = levels[0][slot]) != null) {
+					unlink(head);
+					if (head.dueTick <= tick)
+						due.add(head.task);
+					else
+						insert(head);		// a whole turn of the wheel away yet
+				}
+			}
+		}
+		for (Runnable task: due) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.error("Timer task failed", e);
+			}
+		}
+	}
+
+	/** Advances the wheel from a thread of its own, once a tick */
+	public void start(String name) {
+		ticker = new Thread(() -> {
+			while (!stopped) {
+				try {
+					Thread.sleep(tickMillis);
+				} catch (InterruptedException e) {
+					break;
+				}
+				advanceTo(System.currentTimeMillis());
+			}
+		}, name);
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	public void stop() {
+		stopped = true;
+		if (ticker != null)
+			ticker.interrupt();
+	}
+
+	/** Each time a level comes round to slot 0, the next slot of the level above is emptied
+	 * down into the finer levels
+	 */
+	private void cascade() {
+		for (int level = 1; level < levels.length; ++level) {
+			if (((tick >> (bits * (level - 1))) & mask) != 0)
+				return;
+			int slot = (int) ((tick >> (bits * level)) & mask);
+			Timeout head;
+			while ((head = levels[level][slot]) != null) {
+				unlink(head);
+				insert(head);
+			}
+		}
+	}
+
+	private void insert(Timeout timeout) {
+		long delta = timeout.dueTick - tick;
+		int level = 0;
+		while (level < levels.length - 1 && delta >= 1L << (bits * (level + 1)))
+			++level;
+		long at = Math.min(timeout.dueTick, tick + ((long) mask << (bits * level)));	// beyond the top level, go round again
+		int slot = (int) ((at >> (bits * level)) & mask);
+		Timeout[] slots = levels[level];
+		Timeout head = slots[slot];
+		if (head == null) {
+			timeout.next = timeout.prev = timeout;
+			slots[slot] = timeout;
+		}
+		else {
+			timeout.next = head;
+			timeout.prev = head.prev;
+			head.prev.next = timeout;
+			head.prev = timeout;
+		}
+		timeout.level = slots;
+		timeout.slot = slot;
+		++size;
+	}
+
+	private void unlink(Timeout timeout) {
+		Timeout[] slots = timeout.level;
+		if (timeout.next == timeout)
+			slots[timeout.slot] = null;
+		else {
+			timeout.prev.next = timeout.next;
+			timeout.next.prev = timeout.prev;
+			if (slots[timeout.slot] == timeout)
+				slots[timeout.slot] = timeout.next;
+		}
+		timeout.next = timeout.prev = null;
+		timeout.level = null;
+		--size;
+	}
+}
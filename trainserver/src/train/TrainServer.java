@@ -1,21 +1,30 @@
 package train;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
 import map.Milepost;
 import map.MilepostId;
 import map.MilepostTypeAdapter;
+import map.RoutePlanner;
 import map.TrainMap;
 
 import org.slf4j.Logger;
@@ -32,37 +41,20 @@ import reference.UpgradeType;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-class GameGCTask extends TimerTask {
-
-	@Override
-	public void run() {
-		TrainServer.removeOldGames();
-	}
-}
-
-class GameGC  {
-
-	private Timer timer;
-	private GameGCTask task;
-	
-	GameGC(long interval) {
-		timer = new Timer();
-		task = new GameGCTask();
-		timer.schedule(task, interval, interval);
-	}
-	
-	void stop() { task.cancel(); }
-}
-	
 /** Maps incoming data from JSON strings into calls on a specific game. Maintains the list 
  * of in progress games.
  */
 public class TrainServer {
 	private static Logger log = LoggerFactory.getLogger(TrainServer.class);
 	
-	private static String statusCache = null;
-	private static int statusTransaction = 0;	// transaction that was current when statusCache was created
-	private static String statusGid = null;		// GID used for generating statusCache
+	/** Serialized status for each game, so repeated polls don't regenerate it */
+	private static StatusCache statusCache = new StatusCache(Long.getLong("statusCacheBytes", 64L * 1024 * 1024));
+	/** Gson is thread-safe and caches its type adapters, so responses share one instance */
+	private static final Gson gson = new Gson();
+	private static final Gson statusGson = new GsonBuilder()
+		.registerTypeAdapter(Milepost.class, new MilepostTypeAdapter())
+		.serializeNulls()
+		.create();
 
 	private static long hourMilli = 3600000L;		// Number of milliseconds in one hour
 	private static long fortnightMilli = 1209600000L; // Number of milliseconds in 14 days
@@ -70,18 +62,170 @@ public class TrainServer {
 	private static long notStartedExpiration = hourMilli;// Number of milliseconds before a game was never started will be removed
 	private static long abandonedExpiration = fortnightMilli;// Number of milliseconds since last change before a game will be removed
 	
-	private static GameGC gameGC = new GameGC(hourMilli);		// garbage collect old games
+	
+	/** Why games are deleted */
+	static final String EXPIRED_ENDED = "ended";
+	static final String EXPIRED_NOT_STARTED = "notStarted";
+	static final String EXPIRED_ABANDONED = "abandoned";
+	private static final Map<String, AtomicLong> expiredCounts = new HashMap<String, AtomicLong>();
+	static {
+		for (String reason: new String[] { EXPIRED_ENDED, EXPIRED_NOT_STARTED, EXPIRED_ABANDONED })
+			expiredCounts.put(reason, new AtomicLong());
+	}
+	
+	/** Game expiry, and anything else that waits on the clock */
+	private static final TimerWheel timers = new TimerWheel(Long.getLong("timerTick", 100), 8, 4);
+	static {
+		timers.start("game-timers");
+	}
+	private static final Map<String, TimerWheel.Timeout> expiries = new ConcurrentHashMap<String, TimerWheel.Timeout>();
+	private static final long geographySweepMillis = Long.getLong("geographySweep", 60000);
+	private static final AtomicBoolean geographySweepPending = new AtomicBoolean();
+	private static volatile GameDispatcher dispatcher;	// timers run their work on the game's mailbox, once there is one
 	private static RandomString gameNamer = new RandomString(8); // use for
+	/** Seeds the shuffle of each new game's deck. Unseeded, every game gets a random shuffle;
+	 * with "gameSeed" set, or after seedGames, the same games are dealt in every run.
+	 */
+	private static volatile Random shuffles = Long.getLong("gameSeed") != null ? new Random(Long.getLong("gameSeed")) : null;
 																	// generating
 																	// (semi)unique
 																	// gameIds
 
-	static Map<String, Game> games = new HashMap<String, Game>(); // games currently in progress;
+	static GameRegistry games = new GameRegistry(); // games currently in progress;
+	private static volatile Journal journal;		// changes are journaled here, if it's set
+	private static volatile Hibernator hibernator;	// idle games are moved here, if it's set
 	
-	static void stop() { gameGC.stop(); }
+	/** Messages that change a game, and so are journaled */
+	private static final Set<String> journaledTypes = new HashSet<String>(Arrays.asList(
+		HttpTrainServerHandler.NEW_GAME, HttpTrainServerHandler.JOIN_GAME, HttpTrainServerHandler.START_GAME,
+		HttpTrainServerHandler.BUILD_TRACK, HttpTrainServerHandler.UPGRADE_TRAIN, HttpTrainServerHandler.PLACE_TRAIN,
+		HttpTrainServerHandler.MOVE_TRAIN, HttpTrainServerHandler.PICKUP_LOAD, HttpTrainServerHandler.DELIVER_LOAD,
+		HttpTrainServerHandler.DUMP_LOAD, HttpTrainServerHandler.TURN_IN_CARDS, HttpTrainServerHandler.UNDO,
+		HttpTrainServerHandler.REDO, HttpTrainServerHandler.END_TURN, HttpTrainServerHandler.END_GAME,
+		HttpTrainServerHandler.RESIGN_GAME, HttpTrainServerHandler.BATCH));
 	
+	static void stop() { timers.stop(); }
+	
+	/** Returns the game, waking it if it's hibernated, or null if there's no such game.
+	 * Must be called from the game's mailbox.
+	 */
 	static public Game getGame(String gid) {
-		return games.get(gid);		
+		Game game = games.get(gid);
+		if (game == null && hibernator != null && gid != null)
+			game = hibernator.wake(gid, games);
+		if (game != null)
+			game.touch();
+		return game;
+	}
+	
+	/** True if there's such a game, in memory or hibernated. Doesn't wake it, so it can be
+	 * called from any thread.
+	 */
+	static boolean hasGame(String gid) {
+		return games.get(gid) != null || (hibernator != null && hibernator.has(gid));
+	}
+	
+	/** Hibernates games that go unused, from here on */
+	static public void setHibernator(Hibernator hibernator) {
+		TrainServer.hibernator = hibernator;
+		if (hibernator != null)
+			hibernator.forEach((gid, sleeper) -> scheduleExpiry(gid, expiresAt(sleeper.ended, sleeper.joinable, sleeper.lastChange)));
+	}
+	
+	/** Deals the games created from here on from the seed, so they come out the same in
+	 * every run (for benchmarks and load tests)
+	 */
+	static public void seedGames(long seed) {
+		shuffles = new Random(seed);
+	}
+	
+	/** Timers do their work for a game on its mailbox, from here on */
+	static public void setDispatcher(GameDispatcher dispatcher) {
+		TrainServer.dispatcher = dispatcher;
+	}
+	
+	/** The timer wheel, for anything that needs to happen at a given time */
+	static public TimerWheel timers() {
+		return timers;
+	}
+	
+	/** Number of games deleted, by why they were: ended, notStarted or abandoned */
+	static public Map<String, Long> expiredGames() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry: expiredCounts.entrySet())
+			counts.put(entry.getKey(), entry.getValue().get());
+		return counts;
+	}
+	
+	/** Number of games by state: joinable, playing, ended, and hibernated */
+	static public Map<String, Integer> gameCounts() {
+		int[] counts = new int[3];
+		games.forEach((gid, game) -> ++counts[game.isOver() ? 2 : game.isJoinable() ? 0 : 1]);
+		Map<String, Integer> result = new TreeMap<String, Integer>();
+		result.put("joinable", counts[0]);
+		result.put("playing", counts[1]);
+		result.put("ended", counts[2]);
+		Hibernator h = hibernator;
+		result.put("hibernated", h == null ? 0 : h.size());
+		return result;
+	}
+	
+	/** Games that haven't been changed or looked at for the given time */
+	static public List<String> idleGames(long idleMillis) {
+		long oldest = System.currentTimeMillis() - idleMillis;
+		List<String> idle = new ArrayList<String>();
+		games.forEach((gid, game) -> {
+			if (game.lastUsed() < oldest)
+				idle.add(gid);
+		});
+		return idle;
+	}
+	
+	/** Writes the game to disk and drops it from memory, if it's still idle. Must be called
+	 * from the game's mailbox.
+	 * @return true if the game was hibernated
+	 */
+	static public boolean hibernate(String gid, long idleMillis) {
+		Game game = games.get(gid);
+		Hibernator h = hibernator;
+		if (h == null || game == null || game.lastUsed() >= System.currentTimeMillis() - idleMillis)
+			return false;
+		try {
+			h.save(gid, game);
+		} catch (IOException e) {
+			log.error("Can't hibernate game {}: {}", gid, e.getMessage());
+			return false;
+		}
+		games.remove(gid);
+		statusCache.remove(gid);
+		game.gameData.release();
+		Journal j = journal;
+		if (j != null)
+			j.release(gid);
+		log.info("Hibernated game {}", gid);
+		return true;
+	}
+	
+	static public StatusCache getStatusCache() {
+		return statusCache;
+	}
+	
+	/** Returns the journal changes are written to, or null if they aren't */
+	static public Journal getJournal() {
+		return journal;
+	}
+	
+	/** True if a message of this type is journaled when it succeeds */
+	static boolean isJournaled(String messageType) {
+		return journaledTypes.contains(messageType);
+	}
+	
+	/** TEST ONLY! Stops journaling, once everything journaled so far is on disk */
+	static public void closeJournal() throws InterruptedException {
+		Journal closing = journal;
+		journal = null;
+		if (closing != null)
+			closing.close();
 	}
 	
 	/** TEST ONLY! */
@@ -89,8 +233,6 @@ public class TrainServer {
 		endedExpiration = ended;
 		notStartedExpiration = notStarted;
 		abandonedExpiration = abandoned;
-		gameGC.stop();
-		gameGC = new GameGC(endedExpiration);
 	}
 	
 	/** TEST ONLY! */
@@ -98,18 +240,12 @@ public class TrainServer {
 		endedExpiration = hourMilli;
 		notStartedExpiration = hourMilli;
 		abandonedExpiration = fortnightMilli;
-		gameGC.stop();
-		gameGC = new GameGC(endedExpiration);
 	}
 	
 	
 	// For a given game, return its gameId, or null if not found
 	static public String getGameId(Game game) {
-		for (Map.Entry<String, Game> entry: games.entrySet()) {
-			if (entry.getValue() == game)
-				return entry.getKey();
-		}
-		return null;
+		return games.getGameId(game);
 	}
 	
 	static class PlayerStatus {
@@ -144,60 +280,173 @@ public class TrainServer {
 		GameStatus() {}
 	}
 	
+	/** Just what changed since the transaction the client already has */
+	static class StatusDelta {
+		public String gid;
+		public boolean delta = true;
+		public int since;
+		public TurnData turnData;
+		public String lastid;
+		public String geography;
+		public boolean ended;
+		public int turns;
+		public List<PlayerStatus> players;	// only the players that changed, without their rail
+		public Map<String, List<MilepostId>> track;	// track built since, by pid, as pairs of mileposts
+		public int transaction;
+		StatusDelta() {}
+	}
+	
 	static class StatusRequest {
 		public String gid;
+		public Integer sinceTransaction;	// for long polling: wait until the game is past this transaction
+		public boolean delta;	// only send what changed after sinceTransaction
 		StatusRequest() {}
 	}
 	
 	static public String status(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		StatusRequest data = gson.fromJson(requestText, StatusRequest.class);
-		String gid = data.gid;
-		Game game = getGame(gid);
+		return getStatus(RequestDecoder.decode(requestText, StatusRequest.class));
+	}
+	
+	/** Returns the status the request asked for: a delta if it wants one and the game
+	 * can still describe what changed since then, otherwise the full status.
+	 */
+	static String getStatus(StatusRequest request) {
+		return prepareStatus(request).toJson();
+	}
+	
+	/** Returns the serialized status of the game, or "{}" if there's no such game */
+	static String getStatus(String gid) {
+		return prepareStatus(gid).toJson();
+	}
+	
+	/** Gets the status the request asked for ready to be serialized. This part has to be
+	 * called from the game's mailbox, but the status it returns can be serialized on any thread.
+	 */
+	static PreparedStatus prepareStatus(StatusRequest request) {
+		if (!request.delta || request.sinceTransaction == null)
+			return prepareStatus(request.gid);
+		Game game = getGame(request.gid);
 		if (game == null)
-			return "{}";
-
-		// Status hasn't changed since the last time we sent a response -- just resend
-		if (gid.equals(statusGid) && game.transaction() == statusTransaction && statusCache != null)  
-			return statusCache;
+			return new PreparedStatus(request.gid, null, null, 0);
+		StatusChanges.Change changes = game.changesSince(request.sinceTransaction);
+		if (changes == null)
+			return prepareStatus(request.gid);
+		return new PreparedStatus(request.gid, game.snapshot(), changes, request.sinceTransaction);
+	}
+	
+	/** Gets the full status of the game ready to be serialized. This part has to be
+	 * called from the game's mailbox, but the status it returns can be serialized on any thread.
+	 */
+	static PreparedStatus prepareStatus(String gid) {
+		Game game = getGame(gid);
+		return new PreparedStatus(gid, game != null ? game.snapshot() : null, null, 0);
+	}
+	
+	/** A status response, with everything it needs already taken from the game. The full
+	 * status is looked up in the cache when it's serialized, and cached if it wasn't there.
+	 */
+	static class PreparedStatus {
+		private final String gid;
+		private final GameSnapshot snapshot;		// null if there's no such game
+		private final StatusChanges.Change changes;	// null for the full status
+		private final int since;
 		
-		// Generate a new status message
-		GsonBuilder gsonBuilder = new GsonBuilder();
-		gsonBuilder.registerTypeAdapter(Milepost.class, new MilepostTypeAdapter());
-		GameStatus status = new GameStatus();
-		status.gid = gid;
-		status.players = new ArrayList<PlayerStatus>();
-		status.geography = game.gameData.getGeography();
-		status.transaction = game.transaction();
-		status.turnData = game.getTurnData();
-		status.ended = game.isOver();
-		status.turns = game.getTurns();
-		status.lastid = game.getLastPid();
+		PreparedStatus(String gid, GameSnapshot snapshot, StatusChanges.Change changes, int since) {
+			this.gid = gid;
+			this.snapshot = snapshot;
+			this.changes = changes;
+			this.since = since;
+		}
 		
-		for(String pid : game.getPids()){
-			PlayerStatus p = new PlayerStatus(game.getPlayer(pid), game.getGlobalRail().getRail(pid).getRail());
-			status.players.add(p);
+		/** Status as a string, for callers that want one */
+		String toJson() {
+			if (snapshot == null)
+				return "{}";
+			if (changes != null)
+				return statusGson.toJson(buildDelta());
+			
+			// Status hasn't changed since the last time we sent a response -- just resend
+			String cached = statusCache.get(gid, snapshot.transaction);
+			if (cached != null)
+				return cached;
+			String result = statusGson.toJson(buildStatus());
+			statusCache.put(gid, snapshot.transaction, result);
+			return result;
 		}
 		
-		statusCache = gsonBuilder.serializeNulls().create().toJson(status);
-		statusGid = gid;
-		statusTransaction = game.transaction();
+		/** Status as UTF-8, serialized straight into a buffer from the allocator. The caller
+		 * owns the buffer.
+		 */
+		ByteBuf write(ByteBufAllocator alloc) {
+			if (snapshot == null)
+				return ByteBufWriter.encode(alloc, "{}");
+			if (changes != null)
+				return ByteBufWriter.toJson(alloc, statusGson, buildDelta(), 0);
+			
+			ByteBuf cached = statusCache.getEncoded(gid, snapshot.transaction);
+			if (cached != null)
+				return cached;
+			ByteBuf result = ByteBufWriter.toJson(alloc, statusGson, buildStatus(), statusCache.sizeHint(gid));
+			statusCache.putEncoded(gid, snapshot.transaction, result);
+			return result;
+		}
 		
-		return statusCache;
+		private GameStatus buildStatus() {
+			GameStatus status = new GameStatus();
+			status.gid = gid;
+			status.players = new ArrayList<PlayerStatus>();
+			status.geography = snapshot.geography;
+			status.transaction = snapshot.transaction;
+			status.turnData = snapshot.turnData;
+			status.ended = snapshot.ended;
+			status.turns = snapshot.turns;
+			status.lastid = snapshot.lastid;
+			
+			for(Player player : snapshot.players){
+				PlayerStatus p = new PlayerStatus(player, snapshot.rails.get(player.name).getRail());
+				status.players.add(p);
+			}
+			return status;
+		}
+		
+		private StatusDelta buildDelta() {
+			StatusDelta status = new StatusDelta();
+			status.gid = gid;
+			status.since = since;
+			status.players = new ArrayList<PlayerStatus>();
+			status.geography = snapshot.geography;
+			status.transaction = snapshot.transaction;
+			status.turnData = snapshot.turnData;
+			status.ended = snapshot.ended;
+			status.turns = snapshot.turns;
+			status.lastid = snapshot.lastid;
+			status.track = changes.track;
+			for (Player player : snapshot.players) {
+				if (changes.pids.contains(player.name))
+					status.players.add(new PlayerStatus(player, null));
+			}
+			return status;
+		}
 	}
 	
 	/** List all available game geographies (map boards)
 	 * 
 	 */
 	static public String listGeographies(String requestText) throws GameException {		
+		return listGeographies();
+	}
+	
+	static String listGeographies() throws GameException {
 		List<String> geographies = GameData.getGeographies();
-		return new GsonBuilder().create().toJson(geographies);
+		return gson.toJson(geographies);
 	}
 	
 	/** Returns a list of the colors in use in a given game */
 	static public String listColors(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		StatusRequest data = gson.fromJson(requestText, StatusRequest.class);
+		return listColors(RequestDecoder.decode(requestText, StatusRequest.class));
+	}
+	
+	static String listColors(StatusRequest data) throws GameException {
 		String gid = data.gid;
 		Game game = getGame(gid);
 		if (game == null)
@@ -206,7 +455,7 @@ public class TrainServer {
 		List<String> colors = new ArrayList<String>();
 		for (Player p: game.getPlayers()) 
 			colors.add(p.color);
-		return new GsonBuilder().create().toJson(colors);
+		return gson.toJson(colors);
 	}
 	
 	static class ListRequest {
@@ -224,31 +473,37 @@ public class TrainServer {
 	 * Games may be resumed once they have started.
 	 */
 	static public String list(String requestText) throws GameException {
-		log.info("list requestText: {}", requestText);
-		Gson gson = new GsonBuilder().create();
-		ListRequest data = gson.fromJson(requestText, ListRequest.class);
+		return list(RequestDecoder.decode(requestText, ListRequest.class));
+	}
+	
+	static String list(ListRequest data) throws GameException {
+		log.info("list listType: {}", data.listType);
 		ListResponse responseData = new ListResponse();
 		if (data.listType.equals("joinable")) {
-			for (String gid : games.keySet()) {
-				Game game = games.get(gid);
+			games.forEach((gid, game) -> {
 				if (game.isJoinable())
 					responseData.gidNames.put(gid, game.name());
-			}
+			});
 		}
 		else if (data.listType.equals("resumeable")) {
-			for (String gid : games.keySet()) {
-				Game game = games.get(gid);
+			games.forEach((gid, game) -> {
 				if (!game.isJoinable())
 					responseData.gidNames.put(gid, game.name());
-			}
+			});
 		}
-		else if (data.listType == "all") {
-			for (String gid : games.keySet()) 
-				responseData.gidNames.put(gid, games.get(gid).name());
+		else if (data.listType.equals("all")) {
+			games.forEach((gid, game) -> responseData.gidNames.put(gid, game.name()));
+		}
+		Hibernator h = hibernator;
+		if (h != null) {
+			h.forEach((gid, sleeper) -> {
+				if (data.listType.equals("all") || data.listType.equals("joinable") == sleeper.joinable)
+					responseData.gidNames.put(gid, sleeper.name);
+			});
 		}
 		String result = gson.toJson(responseData);
 		log.info("list response {}", result);
-		return gson.toJson(responseData);
+		return result;
 	}
 	
 	static class NewGameData {
@@ -271,16 +526,16 @@ public class TrainServer {
 		NewGameResponse() {}
 	}
 	
-	static private NewGameResponse newGameResponse(String gid, GameData gameData){
+	static private NewGameResponse newGameResponse(String gid, Geography geography){
 		NewGameResponse response = new NewGameResponse();
-		response.mapData = gameData.getMap().getSerializeData();
-		response.cities = gameData.getCities().values();
-		response.geography = gameData.getGeography();
+		response.mapData = geography.getMap().getSerializeData();
+		response.cities = geography.getCities().values();
+		response.geography = geography.getName();
 		// Convert from loads to set of cities to loads to set of city names
 		response.loadset = new TreeMap<String, Set<String>>();
-		for (String load: gameData.getLoads().keySet()) {
+		for (String load: geography.getLoads().keySet()) {
 			Set<String> cities = new HashSet<String>();
-			for (City city:gameData.getLoads().get(load))
+			for (City city:geography.getLoads().get(load))
 				cities.add(city.name);
 			response.loadset.put(load, cities);
 		}
@@ -288,29 +543,64 @@ public class TrainServer {
 		return response;
 	}
 	
-	static public String buildNewGameResponse(String gid, GameData gameData) {
-		// Build a JSON string that has gid, serialized map data, list of cities and loads
+	/** Serializes everything in the newGame response but the gid, once per geography */
+	static MapPayload buildMapPayload(Geography geography) {
 		GsonBuilder gsonBuilder = new GsonBuilder();
 		gsonBuilder.registerTypeAdapter(Milepost.class, new MilepostTypeAdapter());
-
-		String s = gsonBuilder.serializeNulls().create().toJson(newGameResponse(gid, gameData));
-		return s;
+		return new MapPayload(gsonBuilder.serializeNulls().create().toJson(newGameResponse(null, geography)));
+	}
+	
+	static public String buildNewGameResponse(String gid, GameData gameData) {
+		// JSON string that has gid, serialized map data, list of cities and loads
+		return gameData.getPayload().toJson(gid);
+	}
+	
+	/** A game the player has just created, joined or resumed, and the map to send them */
+	static class JoinedGame {
+		final String gid;
+		final MapPayload payload;
+		
+		JoinedGame(String gid, GameData gameData) {
+			this.gid = gid;
+			this.payload = gameData.getPayload();
+		}
+		
+		String toJson() { return payload.toJson(gid); }
 	}
 	
 	/** Create a new game */
-	static public String newGame(String requestText) throws GameException {			
+	static public String newGame(String requestText) throws GameException {
+		return createGame(RequestDecoder.decode(requestText, NewGameData.class)).toJson();
+	}
+	
+	static JoinedGame createGame(NewGameData data) throws GameException {
 		String gameId = null;
-		Gson gson = new GsonBuilder().create();
-		NewGameData data = gson.fromJson(requestText, NewGameData.class);
-		
-		GameData gameData = new GameData(data.gameType);
+		Random seeds = shuffles;
+		GameData gameData = new GameData(data.gameType,
+				seeds != null ? seeds.nextLong() : ThreadLocalRandom.current().nextLong());
 		if (data.ruleSet == null)
 			data.ruleSet = new RuleSet(4, 70, 1);
 		Game game = new Game(data.name, gameData, data.ruleSet);
-		gameId = gameNamer.nextString();
-		games.put(gameId, game);
+		do {
+			gameId = gameNamer.nextString();
+		} while (!games.add(gameId, game));	// retry in the unlikely case the gid is taken
 		game.joinGame(data.pid, data.color);
-		return buildNewGameResponse(gameId, gameData);
+		record(HttpTrainServerHandler.NEW_GAME, gameId, new CreatedGame(gameId, gameData.getSeed(), data));
+		scheduleExpiry(gameId, game);
+		return new JoinedGame(gameId, gameData);
+	}
+	
+	/** How a game was created, as journaled: the request, and the gid and shuffle it got */
+	static class CreatedGame {
+		String gid;
+		long seed;
+		NewGameData request;
+		
+		CreatedGame(String gid, long seed, NewGameData request) {
+			this.gid = gid;
+			this.seed = seed;
+			this.request = request;
+		}
 	}
 
 	static class JoinGameData {
@@ -321,18 +611,19 @@ public class TrainServer {
 	
 	/** Join a game */
 	static public String joinGame(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		JoinGameData data = gson.fromJson(requestText, JoinGameData.class);
-		Game game = games.get(data.gid);
+		return addPlayer(RequestDecoder.decode(requestText, JoinGameData.class)).toJson();
+	}
+	
+	static JoinedGame addPlayer(JoinGameData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 		{
-			log.warn("Can't find game {}", data.gid);
-			for (String key: games.keySet())
-				log.info("found gid {}", key);
+			log.warn("Can't find game {} among {} games", data.gid, games.size());
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		}
 		game.joinGame(data.pid, data.color);
-		return buildNewGameResponse(data.gid, game.gameData);
+		record(HttpTrainServerHandler.JOIN_GAME, data.gid, data);
+		return new JoinedGame(data.gid, game.gameData);
 	}
 
 	/** Resume a game
@@ -343,20 +634,20 @@ public class TrainServer {
 	 * @throws GameException if the requested doesn't exist, or the player wasn't part of the game
 	 */
 	static public String resumeGame(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		JoinGameData data = gson.fromJson(requestText, JoinGameData.class);
-		Game game = games.get(data.gid);
+		return findPlayer(RequestDecoder.decode(requestText, JoinGameData.class)).toJson();
+	}
+	
+	static JoinedGame findPlayer(JoinGameData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 		{
-			log.warn("Can't find game {}", data.gid);
-			for (String key: games.keySet())
-				log.info("found gid {}", key);
+			log.warn("Can't find game {} among {} games", data.gid, games.size());
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		}
 		game.getPlayer(data.pid);	// throws PLAYER_NOT_FOUND if player not in game
 		log.info("resumeGame(pid={})", data.pid);
 		
-		return buildNewGameResponse(data.gid, game.gameData);
+		return new JoinedGame(data.gid, game.gameData);
 	}
 
 	static class StartGameData {
@@ -371,12 +662,15 @@ public class TrainServer {
 	 * @throws GameException if game doesn't exist
 	 */
 	static public void startGame(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		StartGameData data = gson.fromJson(requestText, StartGameData.class);
-		Game game = games.get(data.gid);
+		startGame(RequestDecoder.decode(requestText, StartGameData.class));
+	}
+	
+	static void startGame(StartGameData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.startGame(data.pid, data.ready);
+		record(HttpTrainServerHandler.START_GAME, data.gid, data);
 	}
 
 	static class BuildTrackData {
@@ -391,9 +685,11 @@ public class TrainServer {
 	 * @throws GameException if the track cannot be buit, game or player is unknown
 	 */
 	static public void testBuildTrack(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		BuildTrackData data = gson.fromJson(requestText, BuildTrackData.class);
-		Game game = games.get(data.gid);
+		testBuildTrack(RequestDecoder.decode(requestText, BuildTrackData.class));
+	}
+	
+	static void testBuildTrack(BuildTrackData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		if (!game.testBuildTrack(data.pid, data.mileposts))
@@ -406,13 +702,48 @@ public class TrainServer {
 	 * @throws GameException if the track cannot be buit, game or player is unknown
 	 */
 	static public void buildTrack(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		BuildTrackData data = gson.fromJson(requestText, BuildTrackData.class);
-		Game game = games.get(data.gid);
+		buildTrack(RequestDecoder.decode(requestText, BuildTrackData.class));
+	}
+	
+	static void buildTrack(BuildTrackData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		if (data.mileposts.length > 0)
 			game.buildTrack(data.pid, data.mileposts);
+		record(HttpTrainServerHandler.BUILD_TRACK, data.gid, data);
+	}
+
+	static class PlanRouteData {
+		public String gid;
+		public String pid;
+		public String route;	// "build" or "move"
+		public int train;
+		public MilepostId from;	// for building: where to start, if not anywhere the player can build from
+		public MilepostId[] to;	// the route goes to whichever of these is nearest
+	}
+	
+	/** Plan the cheapest track to build, or the shortest move for a train, to the nearest 
+	 * of a set of mileposts. Doesn't change the game. Returns the mileposts along the 
+	 * route and what it costs (money to build, or mileposts to move).
+	 * @throws GameException if no route can be found
+	 */
+	static public String planRoute(String requestText) throws GameException {
+		return planRoute(RequestDecoder.decode(requestText, PlanRouteData.class));
+	}
+	
+	static String planRoute(PlanRouteData data) throws GameException {
+		Game game = getGame(data.gid);
+		if (game == null)
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		RoutePlanner.Route route;
+		if ("move".equals(data.route))
+			route = game.planMove(data.pid, data.train, data.to);
+		else if ("build".equals(data.route))
+			route = game.planBuild(data.pid, data.from, data.to);
+		else
+			throw new GameException(GameException.INVALID_MESSAGE_TYPE);
+		return gson.toJson(route);
 	}
 
 	static class UpgradeTrainData {
@@ -429,17 +760,23 @@ public class TrainServer {
 	/** Upgrade the player's train, either to go faster or to carry more loads
 	 */
 	static public void upgradeTrain(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		UpgradeTrainData data = gson.fromJson(requestText,
-				UpgradeTrainData.class);
-		Game game = games.get(data.gid);
+		upgradeTrain(RequestDecoder.decode(requestText, UpgradeTrainData.class));
+	}
+	
+	static void upgradeTrain(UpgradeTrainData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
-		if (!data.upgradeType.equals("Capacity") && !data.upgradeType.equals("Speed"))
-			throw new GameException(GameException.INVALID_UPGRADE);
-		game.upgradeTrain(data.pid, data.train,
-				data.upgradeType.equals("Capacity") ? UpgradeType.CAPACITY
-						: UpgradeType.SPEED);
+		game.upgradeTrain(data.pid, data.train, upgradeType(data.upgradeType));
+		record(HttpTrainServerHandler.UPGRADE_TRAIN, data.gid, data);
+	}
+	
+	private static UpgradeType upgradeType(String upgradeType) throws GameException {
+		if ("Capacity".equals(upgradeType))
+			return UpgradeType.CAPACITY;
+		if ("Speed".equals(upgradeType))
+			return UpgradeType.SPEED;
+		throw new GameException(GameException.INVALID_UPGRADE);
 	}
 
 	static class PlaceTrainData {
@@ -457,12 +794,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void placeTrain(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		PlaceTrainData data = gson.fromJson(requestText, PlaceTrainData.class);
-		Game game = games.get(data.gid);
+		placeTrain(RequestDecoder.decode(requestText, PlaceTrainData.class));
+	}
+	
+	static void placeTrain(PlaceTrainData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.placeTrain(data.pid, data.train, data.where);
+		record(HttpTrainServerHandler.PLACE_TRAIN, data.gid, data);
 	}
 
 	static class MoveTrainData {
@@ -478,9 +818,11 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void testMoveTrain(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		MoveTrainData data = gson.fromJson(requestText, MoveTrainData.class);
-		Game game = games.get(data.gid);
+		testMoveTrain(RequestDecoder.decode(requestText, MoveTrainData.class));
+	}
+	
+	static void testMoveTrain(MoveTrainData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.testMoveTrain(data.pid, data.train, data.mileposts);
@@ -492,12 +834,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void moveTrain(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		MoveTrainData data = gson.fromJson(requestText, MoveTrainData.class);
-		Game game = games.get(data.gid);
+		moveTrain(RequestDecoder.decode(requestText, MoveTrainData.class));
+	}
+	
+	static void moveTrain(MoveTrainData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.moveTrain(data.pid, data.train, data.mileposts);
+		record(HttpTrainServerHandler.MOVE_TRAIN, data.gid, data);
 	}
 
 	static class PickupLoadData {
@@ -513,12 +858,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void pickupLoad(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		PickupLoadData data = gson.fromJson(requestText, PickupLoadData.class);
-		Game game = games.get(data.gid);
+		pickupLoad(RequestDecoder.decode(requestText, PickupLoadData.class));
+	}
+	
+	static void pickupLoad(PickupLoadData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.pickupLoad(data.pid, data.train, data.load);
+		record(HttpTrainServerHandler.PICKUP_LOAD, data.gid, data);
 	}
 
 	static class DeliverLoadData {
@@ -536,13 +884,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void deliverLoad(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		DeliverLoadData data = gson
-				.fromJson(requestText, DeliverLoadData.class);
-		Game game = games.get(data.gid);
+		deliverLoad(RequestDecoder.decode(requestText, DeliverLoadData.class));
+	}
+	
+	static void deliverLoad(DeliverLoadData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.deliverLoad(data.pid, data.train, data.load, data.card);
+		record(HttpTrainServerHandler.DELIVER_LOAD, data.gid, data);
 	}
 
 	static class DumpLoadData {
@@ -558,12 +908,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void dumpLoad(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		DumpLoadData data = gson.fromJson(requestText, DumpLoadData.class);
-		Game game = games.get(data.gid);
+		dumpLoad(RequestDecoder.decode(requestText, DumpLoadData.class));
+	}
+	
+	static void dumpLoad(DumpLoadData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.dumpLoad(data.pid, data.train, data.load);
+		record(HttpTrainServerHandler.DUMP_LOAD, data.gid, data);
 	}
 
 	static class TurnInCardsData{
@@ -578,12 +931,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void turnInCards(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		TurnInCardsData data = gson.fromJson(requestText, TurnInCardsData.class);
-		Game game = games.get(data.gid);
+		turnInCards(RequestDecoder.decode(requestText, TurnInCardsData.class));
+	}
+	
+	static void turnInCards(TurnInCardsData data) throws GameException {
+		Game game = getGame(data.gid);
 		if(game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.turnInCards(data.pid);
+		record(HttpTrainServerHandler.TURN_IN_CARDS, data.gid, data);
 	}
 	
 	static class UndoData {
@@ -599,18 +955,19 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void undo(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		UndoData data = gson.fromJson(requestText, UndoData.class);
-		Game game = games.get(data.gid);
+		undo(RequestDecoder.decode(requestText, UndoData.class));
+	}
+	
+	static void undo(UndoData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		if (game.getActivePlayer() == null)
 			throw new GameException(GameException.NOTHING_TO_UNDO);
 		if (!data.pid.equals(game.getActivePlayer().name))
 			throw new GameException(GameException.PLAYER_NOT_ACTIVE);
-		Game newGame = game.undo();
-		if (newGame != null)
-			games.replace(data.gid, newGame);
+		game.undo();
+		record(HttpTrainServerHandler.UNDO, data.gid, data);
 	}
 	
 	/** Redo the previous action
@@ -621,18 +978,19 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void redo(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		UndoData data = gson.fromJson(requestText, UndoData.class);
-		Game game = games.get(data.gid);
+		redo(RequestDecoder.decode(requestText, UndoData.class));
+	}
+	
+	static void redo(UndoData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		if (game.getActivePlayer() == null)
 			throw new GameException(GameException.NOTHING_TO_REDO);
 		if (!data.pid.equals(game.getActivePlayer().name))
 			throw new GameException(GameException.PLAYER_NOT_ACTIVE);
-		Game newGame = game.redo();
-		if (newGame != null)
-			games.replace(data.gid, newGame);
+		game.redo();
+		record(HttpTrainServerHandler.REDO, data.gid, data);
 	}
 	
 	static class EndTurnData {
@@ -644,12 +1002,15 @@ public class TrainServer {
 	 * 
 	 */
 	static public void endTurn(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		EndTurnData data = gson.fromJson(requestText, EndTurnData.class);
-		Game game = games.get(data.gid);
+		endTurn(RequestDecoder.decode(requestText, EndTurnData.class));
+	}
+	
+	static void endTurn(EndTurnData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.endTurn(data.pid);
+		record(HttpTrainServerHandler.END_TURN, data.gid, data);
 	}
 
 	static class ResignData {
@@ -663,12 +1024,15 @@ public class TrainServer {
 	 * @throws GameException
 	 */
 	static public void resignGame(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		ResignData data = gson.fromJson(requestText, ResignData.class);
-		Game game = games.get(data.gid);
+		resignGame(RequestDecoder.decode(requestText, ResignData.class));
+	}
+	
+	static void resignGame(ResignData data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.resign(data.pid);
+		record(HttpTrainServerHandler.RESIGN_GAME, data.gid, data);
 	}
 	
 	static class EndGame {
@@ -681,39 +1045,409 @@ public class TrainServer {
 	 * When all players are ready to end, the game will be over.
 	 */
 	static public void endGame(String requestText) throws GameException {
-		Gson gson = new GsonBuilder().create();
-		EndGame data = gson.fromJson(requestText, EndGame.class);
-		Game game = games.get(data.gid);
+		endGame(RequestDecoder.decode(requestText, EndGame.class));
+	}
+	
+	static void endGame(EndGame data) throws GameException {
+		Game game = getGame(data.gid);
 		if (game == null)
 			throw new GameException(GameException.GAME_NOT_FOUND);
 		game.endGame(data.pid, data.ready);
+		record(HttpTrainServerHandler.END_GAME, data.gid, data);
+		scheduleExpiry(data.gid, game);		// ended games go sooner
+	}
+	
+	/** One action of a batch. It has the fields of whichever message it is, without the gid
+	 * and pid, which come from the batch.
+	 */
+	static class BatchAction {
+		public String messageType;
+		public int train;
+		public MilepostId[] mileposts;	// buildTrack, moveTrain
+		public MilepostId where;		// placeTrain
+		public String load;				// pickupLoad, deliverLoad, dumpLoad
+		public int card;				// deliverLoad
+		public String upgradeType;		// upgradeTrain
+	}
+	
+	static class BatchData {
+		public String gid;
+		public String pid;
+		public BatchAction[] actions;
+	}
+	
+	static class BatchResult {
+		public String messageType;
+		public String status;	// OK, the error if it failed, or why it didn't take effect
+		
+		BatchResult(String messageType, String status) {
+			this.messageType = messageType;
+			this.status = status;
+		}
+	}
+	
+	static class BatchResponse {
+		public boolean applied;		// all of the actions were; if not, none were
+		public int transaction;
+		public List<BatchResult> results = new ArrayList<BatchResult>();
+	}
+	
+	static final String BATCH_OK = "OK";
+	static final String BATCH_NOT_RUN = "NotRun";		// an earlier action failed
+	static final String BATCH_REVERTED = "Reverted";	// succeeded, but a later action failed
+	
+	/** Apply a list of actions from one player, all or nothing, as a single transaction that
+	 * is undone as one. A turn can be played in one round trip: build or move, pick up and
+	 * deliver, and end the turn. Ending the turn can only be the last action.
+	 * Returns the result of each action.
+	 * @throws GameException if the game or player is unknown, or the batch can't be run at all
+	 */
+	static public String batch(String requestText) throws GameException {
+		return gson.toJson(batch(RequestDecoder.decode(requestText, BatchData.class)));
+	}
+	
+	static BatchResponse batch(BatchData data) throws GameException {
+		Game game = getGame(data.gid);
+		if (game == null)
+			throw new GameException(GameException.GAME_NOT_FOUND);
+		if (data.actions == null)
+			throw new GameException(GameException.BAD_MESSAGE);
+		BatchResponse response = new BatchResponse();
+		List<Game.Action> actions = new ArrayList<Game.Action>();
+		int[] running = { -1 };		// index of the action being applied
+		for (int i = 0; i < data.actions.length; ++i) {
+			BatchAction action = data.actions[i];
+			if (HttpTrainServerHandler.END_TURN.equals(action.messageType) && i != data.actions.length - 1)
+				throw new GameException(GameException.BAD_MESSAGE);
+			Game.Action apply = batchAction(game, data.pid, action);
+			int index = i;
+			actions.add(() -> {
+				running[0] = index;
+				apply.apply();
+				response.results.get(index).status = BATCH_OK;
+			});
+			response.results.add(new BatchResult(action.messageType, BATCH_NOT_RUN));
+		}
+		try {
+			game.batch(data.pid, actions);
+			response.applied = true;
+			record(HttpTrainServerHandler.BATCH, data.gid, data);
+		} catch (GameException e) {
+			if (running[0] < 0)
+				throw e;		// the batch as a whole was refused
+			for (int i = 0; i < running[0]; ++i)
+				response.results.get(i).status = BATCH_REVERTED;
+			response.results.get(running[0]).status = e.getMessage();
+		}
+		response.transaction = game.transaction();
+		return response;
+	}
+	
+	/** What the action does to the game, if it's one that can be batched */
+	private static Game.Action batchAction(Game game, String pid, BatchAction action) throws GameException {
+		String messageType = action.messageType != null ? action.messageType : "";
+		switch (messageType) {
+			case HttpTrainServerHandler.BUILD_TRACK:
+				return () -> {
+					if (action.mileposts.length > 0)
+						game.buildTrack(pid, action.mileposts);
+				};
+			case HttpTrainServerHandler.UPGRADE_TRAIN:
+				return () -> game.upgradeTrain(pid, action.train, upgradeType(action.upgradeType));
+			case HttpTrainServerHandler.PLACE_TRAIN:
+				return () -> game.placeTrain(pid, action.train, action.where);
+			case HttpTrainServerHandler.MOVE_TRAIN:
+				return () -> game.moveTrain(pid, action.train, action.mileposts);
+			case HttpTrainServerHandler.PICKUP_LOAD:
+				return () -> game.pickupLoad(pid, action.train, action.load);
+			case HttpTrainServerHandler.DELIVER_LOAD:
+				return () -> game.deliverLoad(pid, action.train, action.load, action.card);
+			case HttpTrainServerHandler.DUMP_LOAD:
+				return () -> game.dumpLoad(pid, action.train, action.load);
+			case HttpTrainServerHandler.END_TURN:
+				return () -> game.endTurn(pid);
+			default:
+				throw new GameException(GameException.INVALID_MESSAGE_TYPE);
+		}
+	}
+	
+	/** Records a change that was just made to a game in the journal, if there is one, and
+	 * snapshots the game when its journal has grown long enough and it has no undo history.
+	 * Must be called from the game's mailbox.
+	 */
+	private static void record(String messageType, String gid, Object data) {
+		Journal j = journal;
+		if (j == null)
+			return;
+		j.append(gid, messageType, gson.toJson(data));
+		Game game = games.get(gid);
+		if (game != null && game.atRest() && j.wantsSnapshot(gid))
+			j.snapshot(gid, game);
+	}
+	
+	/** Reads back the games in the journal, then journals every change from here on. Games
+	 * are restored in parallel, each from its latest snapshot and the entries after it.
+	 * Must be called before any requests are taken.
+	 * @return number of games restored
+	 */
+	static public int recover(Journal journal) throws IOException {
+		long start = System.currentTimeMillis();
+		List<String> gids = journal.gids();
+		int restored = (int) gids.parallelStream().filter(gid -> restore(journal, gid)).count();
+		TrainServer.journal = journal;
+		log.info("Restored {} of {} games from the journal in {} ms", restored, gids.size(), 
+			System.currentTimeMillis() - start);
+		return restored;
+	}
+	
+	private static boolean restore(Journal journal, String gid) {
+		try {
+			Journal.Saved saved = journal.read(gid);
+			if (saved.snapshot != null && !games.add(gid, saved.snapshot.restore()))
+				throw new GameException(GameException.GAME_ALREADY_EXISTS);
+			for (Journal.Entry entry: saved.entries) {
+				try {
+					replay(gid, entry.messageType, entry.data);
+				} catch (GameException e) {
+					log.error("Game {} entry {} ({}) failed on replay: {}", gid, entry.number, entry.messageType, e.getMessage());
+				}
+			}
+			Game game = games.get(gid);
+			if (game == null) {
+				log.warn("Nothing to restore for game {}", gid);
+				journal.remove(gid);
+				return false;
+			}
+			if (!saved.entries.isEmpty())
+				game.restored(game.transaction(), new Date(saved.entries.get(saved.entries.size() - 1).time));
+			scheduleExpiry(gid, game);
+			return true;
+		} catch (IOException | GameException | RuntimeException e) {
+			log.error("Can't restore game " + gid, e);
+			return false;
+		}
+	}
+	
+	/** Applies a change read back from the journal, through the same calls that first made it */
+	static void replay(String gid, String messageType, String json) throws GameException {
+		if (messageType.equals(HttpTrainServerHandler.NEW_GAME)) {
+			CreatedGame created = RequestDecoder.decode(json, CreatedGame.class);
+			NewGameData request = created.request;
+			GameData gameData = new GameData(request.gameType, created.seed);
+			Game game = new Game(request.name, gameData, request.ruleSet);
+			if (!gid.equals(created.gid) || !games.add(gid, game))
+				throw new GameException(GameException.GAME_ALREADY_EXISTS);
+			game.joinGame(request.pid, request.color);
+			return;
+		}
+		Object data = RequestDecoder.decodeData(messageType, json);
+		switch (messageType) {
+			case HttpTrainServerHandler.JOIN_GAME:
+				addPlayer((JoinGameData) data);
+				break;
+			case HttpTrainServerHandler.START_GAME:
+				startGame((StartGameData) data);
+				break;
+			case HttpTrainServerHandler.BUILD_TRACK:
+				buildTrack((BuildTrackData) data);
+				break;
+			case HttpTrainServerHandler.UPGRADE_TRAIN:
+				upgradeTrain((UpgradeTrainData) data);
+				break;
+			case HttpTrainServerHandler.PLACE_TRAIN:
+				placeTrain((PlaceTrainData) data);
+				break;
+			case HttpTrainServerHandler.MOVE_TRAIN:
+				moveTrain((MoveTrainData) data);
+				break;
+			case HttpTrainServerHandler.PICKUP_LOAD:
+				pickupLoad((PickupLoadData) data);
+				break;
+			case HttpTrainServerHandler.DELIVER_LOAD:
+				deliverLoad((DeliverLoadData) data);
+				break;
+			case HttpTrainServerHandler.DUMP_LOAD:
+				dumpLoad((DumpLoadData) data);
+				break;
+			case HttpTrainServerHandler.TURN_IN_CARDS:
+				turnInCards((TurnInCardsData) data);
+				break;
+			case HttpTrainServerHandler.UNDO:
+				undo((UndoData) data);
+				break;
+			case HttpTrainServerHandler.REDO:
+				redo((UndoData) data);
+				break;
+			case HttpTrainServerHandler.END_TURN:
+				endTurn((EndTurnData) data);
+				break;
+			case HttpTrainServerHandler.END_GAME:
+				endGame((EndGame) data);
+				break;
+			case HttpTrainServerHandler.RESIGN_GAME:
+				resignGame((ResignData) data);
+				break;
+			case HttpTrainServerHandler.BATCH:
+				if (!batch((BatchData) data).applied)
+					throw new GameException(GameException.BAD_MESSAGE);
+				break;
+			default:
+				throw new GameException(GameException.INVALID_MESSAGE_TYPE);
+		}
 	}
 	
 	/** Delete specified games */
 	static public void removeOldGames(Predicate<Game> tester) {
-		for(Iterator<Map.Entry<String, Game>> it = games.entrySet().iterator(); it.hasNext(); ) {
-		      Map.Entry<String, Game> entry = it.next();
-		      Game game = entry.getValue();
-			if (tester.test(game)) {
-				log.warn("Removing expired game {}", entry.getKey());
-		        it.remove();
+		List<Game> removed = new ArrayList<Game>();
+		for (String gid: games.removeIf(game -> tester.test(game) && removed.add(game))) {
+			log.warn("Removing expired game {}", gid);
+			forget(gid);
+		}
+		for (Game game: removed)
+			if (game.gameData != null)
+				game.gameData.release();
+	}
+	
+	/** Delete hibernated games, without waking them */
+	static void removeHibernatedGames(Predicate<Hibernator.Sleeper> tester) {
+		Hibernator h = hibernator;
+		if (h == null)
+			return;
+		for (String gid: h.removeIf(tester)) {
+			log.warn("Removing expired hibernated game {}", gid);
+			forget(gid);
+		}
+	}
+	
+	/** Drops everything kept about a game that has been deleted */
+	private static void forget(String gid) {
+		statusCache.remove(gid);
+		if (journal != null)
+			journal.remove(gid);
+		TimerWheel.Timeout expiry = expiries.remove(gid);
+		if (expiry != null)
+			expiry.cancel();
+	}
+	
+	/** When a game is due to be deleted: the soonest of the rules that apply to it */
+	private static long expiresAt(boolean ended, boolean joinable, long lastChange) {
+		long wait = abandonedExpiration;
+		if (ended)
+			wait = Math.min(wait, endedExpiration);
+		if (joinable)
+			wait = Math.min(wait, notStartedExpiration);
+		return lastChange + wait;
+	}
+	
+	/** Why the game is due to be deleted by now, or null if it isn't */
+	private static String expiredReason(boolean ended, boolean joinable, long lastChange, long now) {
+		if (ended && lastChange + endedExpiration <= now)
+			return EXPIRED_ENDED;
+		if (joinable && lastChange + notStartedExpiration <= now)
+			return EXPIRED_NOT_STARTED;
+		if (lastChange + abandonedExpiration <= now)
+			return EXPIRED_ABANDONED;
+		return null;
+	}
+	
+	private static boolean expired(boolean ended, boolean joinable, long lastChange, long now) {
+		String reason = expiredReason(ended, joinable, lastChange, now);
+		if (reason == null)
+			return false;
+		expiredCounts.get(reason).incrementAndGet();
+		return true;
+	}
+	
+	/** Puts the game's expiry on the timer wheel. Every change pushes the time back, but the
+	 * timeout is left where it is and checked again when it goes off, so a change costs
+	 * nothing; only a change that brings the time forward (the game ending) replaces it.
+	 * Must be called from the game's mailbox.
+	 */
+	static void scheduleExpiry(String gid, Game game) {
+		scheduleExpiry(gid, expiresAt(game.isOver(), game.isJoinable(), game.lastChangeDate().getTime()));
+	}
+	
+	private static void scheduleExpiry(String gid, long deadline) {
+		TimerWheel.Timeout current = expiries.get(gid);
+		if (current != null && current.deadline() <= deadline)
+			return;
+		if (current != null)
+			current.cancel();
+		expiries.put(gid, timers.schedule(deadline, () -> onMailbox(gid, () -> checkExpiry(gid))));
+	}
+	
+	private static void onMailbox(String gid, Runnable task) {
+		GameDispatcher d = dispatcher;
+		if (d != null) {
+			try {
+				d.dispatch(gid, task);
+				return;
+			} catch (RejectedExecutionException e) {
+				// server is shutting down
 			}
 		}
+		task.run();
 	}
 	
-	/** Delete expired games */
+	/** The game's expiry went off: delete the game if it's really due, otherwise put it back on
+	 * the wheel for when it will be. Runs on the game's mailbox.
+	 */
+	private static void checkExpiry(String gid) {
+		TimerWheel.Timeout expiry = expiries.remove(gid);
+		if (expiry != null)
+			expiry.cancel();
+		long now = System.currentTimeMillis();
+		Game game = games.get(gid);
+		if (game != null) {
+			if (!expired(game.isOver(), game.isJoinable(), game.lastChangeDate().getTime(), now)) {
+				scheduleExpiry(gid, game);
+				return;
+			}
+			// Just this game: the registry's removeIf would look at every game
+			if (games.remove(gid) != null) {
+				log.warn("Removing expired game {}", gid);
+				forget(gid);
+				if (game.gameData != null)
+					game.gameData.release();
+				sweepGeographies();
+			}
+			return;
+		}
+		Hibernator h = hibernator;
+		Hibernator.Sleeper sleeper = h != null ? h.get(gid) : null;
+		if (sleeper == null)
+			return;
+		if (!expired(sleeper.ended, sleeper.joinable, sleeper.lastChange, now)) {
+			scheduleExpiry(gid, expiresAt(sleeper.ended, sleeper.joinable, sleeper.lastChange));
+			return;
+		}
+		if (h.remove(gid)) {
+			log.warn("Removing expired hibernated game {}", gid);
+			forget(gid);
+		}
+	}
+	
+	/** Drops unused geographies a while after a game is deleted. However many games are
+	 * deleted in the meantime, there's one sweep.
+	 */
+	private static void sweepGeographies() {
+		if (geographySweepPending.compareAndSet(false, true))
+			timers.schedule(System.currentTimeMillis() + geographySweepMillis, () -> {
+				geographySweepPending.set(false);
+				Geography.evictUnused();
+			});
+	}
+	
+	/** Delete expired games, all at once. Games are normally deleted one at a time as their
+	 * expiry goes off; this checks every game, in one pass.
+	 */
 	static public void removeOldGames() {
-		// Delete games that have ended, and are older than endedExpiration
-		Date oldestEnded = new Date(System.currentTimeMillis() - endedExpiration);
-		removeOldGames(game -> game.isOver() && game.lastChangeDate().before(oldestEnded));
-		
-		// Delete games that were never started and are older than notStartedExpiration
-		Date oldestNotStarted = new Date(System.currentTimeMillis() - notStartedExpiration);
-		removeOldGames(game -> game.isJoinable() && game.lastChangeDate().before(oldestNotStarted));
-		
-		// Delete games that have been abandoned -- last previous change is older than abandonedExpiration
-		Date oldestPlayed = new Date(System.currentTimeMillis() - abandonedExpiration);
-		removeOldGames(game -> game.lastChangeDate().before(oldestPlayed));
+		long now = System.currentTimeMillis();
+		removeOldGames(game -> expired(game.isOver(), game.isJoinable(), game.lastChangeDate().getTime(), now));
+		removeHibernatedGames(game -> expired(game.ended, game.joinable, game.lastChange, now));
+
+		// Drop the map and cards for geographies nobody is playing any more
+		Geography.evictUnused();
 	}
 	
 }
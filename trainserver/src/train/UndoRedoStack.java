@@ -3,32 +3,35 @@ package train;
 import java.util.EmptyStackException;
 import java.util.Stack;
 
-class UndoRedoStack {
-	Stack<String> stack;
+class UndoRedoStack<T> {
+	Stack<T> stack;
 	String error;			// thrown in case of stack underflow error
 
 	UndoRedoStack(String error) {
-		this.stack = new Stack<String>();
+		this.stack = new Stack<T>();
 		this.error = error;
 	}
 
-	void push(String gameState) { 
-		stack.push(gameState); 
+	void push(T edit) {
+		stack.push(edit);
 	}
-		
-	String pop() throws GameException
-	{ 
-		String gameString = null;
+
+	T pop() throws GameException
+	{
+		T edit = null;
 		try {
-			gameString = stack.pop(); 
+			edit = stack.pop();
 		} catch (EmptyStackException e) {
 			throw new GameException(error);
 		}
-		return gameString;
+		return edit;
 	}
-	
+
 	void clear() {
 		stack.clear();
-	}	
-}
+	}
 
+	boolean isEmpty() {
+		return stack.isEmpty();
+	}
+}